@@ -0,0 +1,259 @@
+/**************************************************************************
+ PublishR file filter for OmegaT
+
+ Copyright (C) 2018 Lev Abashkin
+
+ This file is NOT a part of OmegaT.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ **************************************************************************/
+
+package com.pilulerouge.publishr.omegat;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+
+/**
+ * Multi-pattern string matcher (Aho-Corasick automaton).
+ * Finds all keywords in a single pass over the text.
+ */
+final class AhoCorasick {
+
+    /**
+     * Maximum number of keywords reported by {@link #scan(CharSequence)}.
+     */
+    static final int MAX_MASK_KEYWORDS = Long.SIZE;
+
+    private final String[] keywords;
+
+    // Trie transitions of each state, sorted by character
+    private char[][] edgeChars;
+    private int[][] edgeTargets;
+    private int[] failure;
+    // Longest keyword ending in state or -1
+    private int[] output;
+    // Next state on failure chain having an output or -1
+    private int[] dictLink;
+    // Length of the prefix represented by state
+    private int[] depth;
+    private int stateCount;
+
+    /**
+     * Constructor.
+     * @param keywords non-empty keywords to search for
+     */
+    AhoCorasick(final String... keywords) {
+        this.keywords = keywords.clone();
+
+        int capacity = 1;
+        for (String keyword : keywords) {
+            if (keyword.isEmpty()) {
+                throw new IllegalArgumentException("Empty keyword");
+            }
+            capacity += keyword.length();
+        }
+
+        edgeChars = new char[capacity][];
+        edgeTargets = new int[capacity][];
+        output = new int[capacity];
+        Arrays.fill(output, -1);
+        stateCount = 1;
+        edgeChars[0] = new char[0];
+        edgeTargets[0] = new int[0];
+
+        // Build trie
+        for (int k = 0; k < keywords.length; k++) {
+            int state = 0;
+            for (int i = 0; i < keywords[k].length(); i++) {
+                char c = keywords[k].charAt(i);
+                int next = transition(state, c);
+                if (next < 0) {
+                    next = addState();
+                    addEdge(state, c, next);
+                }
+                state = next;
+            }
+            if (output[state] < 0 || keywords[output[state]].length() < keywords[k].length()) {
+                output[state] = k;
+            }
+        }
+
+        // Build failure and dictionary links breadth-first
+        failure = new int[stateCount];
+        dictLink = new int[stateCount];
+        depth = new int[stateCount];
+        Arrays.fill(dictLink, -1);
+        Deque<Integer> queue = new ArrayDeque<>();
+        for (int target : edgeTargets[0]) {
+            depth[target] = 1;
+            queue.add(target);
+        }
+        while (!queue.isEmpty()) {
+            int state = queue.poll();
+            for (int e = 0; e < edgeChars[state].length; e++) {
+                char c = edgeChars[state][e];
+                int child = edgeTargets[state][e];
+                depth[child] = depth[state] + 1;
+                int f = failure[state];
+                while (f > 0 && transition(f, c) < 0) {
+                    f = failure[f];
+                }
+                int fNext = transition(f, c);
+                if (fNext >= 0 && fNext != child) {
+                    failure[child] = fNext;
+                }
+                dictLink[child] = firstOutput(failure[child]);
+                queue.add(child);
+            }
+        }
+    }
+
+    /**
+     * Find which keywords occur in text.
+     * @param text text to scan
+     * @return bit mask where bit N is set if keyword N was found
+     */
+    long scan(final CharSequence text) {
+        if (keywords.length > MAX_MASK_KEYWORDS) {
+            throw new IllegalStateException("Too many keywords for a bit mask");
+        }
+        long mask = 0;
+        int state = 0;
+        for (int i = 0; i < text.length(); i++) {
+            state = step(state, text.charAt(i));
+            for (int s = firstOutput(state); s > 0; s = dictLink[s]) {
+                mask |= 1L << output[s];
+            }
+        }
+        return mask;
+    }
+
+    /**
+     * Replace keywords with their counterparts in a single pass.
+     * Leftmost match wins, longer keyword wins on the same position.
+     * @param text input text
+     * @param replacements replacement for every keyword, in keyword order
+     * @return text with replacements or the same instance if nothing was found
+     */
+    String replace(final String text, final String[] replacements) {
+        StringBuilder result = null;
+        int lastPosition = 0;
+        // Best match candidate not yet written
+        int bestStart = -1;
+        int bestKeyword = -1;
+        int state = 0;
+        for (int i = 0; i < text.length(); i++) {
+            state = step(state, text.charAt(i));
+            for (int s = firstOutput(state); s > 0; s = dictLink[s]) {
+                int k = output[s];
+                int start = i + 1 - keywords[k].length();
+                if (start < lastPosition) {
+                    continue;
+                }
+                if (bestStart < 0 || start < bestStart || (start == bestStart
+                        && keywords[k].length() > keywords[bestKeyword].length())) {
+                    bestStart = start;
+                    bestKeyword = k;
+                }
+            }
+            // No longer keyword can start at bestStart once we are past its reach
+            if (bestStart >= 0 && (i + 1 == text.length() || !canExtend(state, bestStart, i))) {
+                if (result == null) {
+                    result = new StringBuilder(text.length());
+                }
+                result.append(text, lastPosition, bestStart);
+                result.append(replacements[bestKeyword]);
+                lastPosition = bestStart + keywords[bestKeyword].length();
+                bestStart = -1;
+                bestKeyword = -1;
+                // Restart matching right after the written keyword
+                i = lastPosition - 1;
+                state = 0;
+            }
+        }
+        if (result == null) {
+            return text;
+        }
+        result.append(text, lastPosition, text.length());
+        return result.toString();
+    }
+
+    /**
+     * Check if a partial match starting at or before given position is still alive.
+     */
+    private boolean canExtend(final int state, final int start, final int position) {
+        for (int s = state; s > 0; s = failure[s]) {
+            if (position + 1 - depth[s] > start) {
+                return false;
+            }
+            if (edgeChars[s].length > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private int step(final int fromState, final char c) {
+        int state = fromState;
+        int next;
+        while ((next = transition(state, c)) < 0 && state > 0) {
+            state = failure[state];
+        }
+        if (next < 0) {
+            return 0;
+        }
+        return next;
+    }
+
+    /**
+     * Get first state on dictionary chain which has an output.
+     */
+    private int firstOutput(final int state) {
+        if (output[state] >= 0) {
+            return state;
+        }
+        return dictLink[state];
+    }
+
+    private int transition(final int state, final char c) {
+        int idx = Arrays.binarySearch(edgeChars[state], c);
+        if (idx < 0) {
+            return -1;
+        }
+        return edgeTargets[state][idx];
+    }
+
+    private int addState() {
+        edgeChars[stateCount] = new char[0];
+        edgeTargets[stateCount] = new int[0];
+        return stateCount++;
+    }
+
+    private void addEdge(final int state, final char c, final int target) {
+        char[] chars = edgeChars[state];
+        int[] targets = edgeTargets[state];
+        int pos = -Arrays.binarySearch(chars, c) - 1;
+        char[] newChars = new char[chars.length + 1];
+        int[] newTargets = new int[targets.length + 1];
+        System.arraycopy(chars, 0, newChars, 0, pos);
+        System.arraycopy(targets, 0, newTargets, 0, pos);
+        newChars[pos] = c;
+        newTargets[pos] = target;
+        System.arraycopy(chars, pos, newChars, pos + 1, chars.length - pos);
+        System.arraycopy(targets, pos, newTargets, pos + 1, targets.length - pos);
+        edgeChars[state] = newChars;
+        edgeTargets[state] = newTargets;
+    }
+}
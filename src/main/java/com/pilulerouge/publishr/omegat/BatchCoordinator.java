@@ -0,0 +1,399 @@
+/**************************************************************************
+ PublishR file filter for OmegaT
+
+ Copyright (C) 2018 Lev Abashkin
+
+ This file is NOT a part of OmegaT.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ **************************************************************************/
+
+
+package com.pilulerouge.publishr.omegat;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Runs command line work in several worker processes.
+ * Coordinator hands out shards of files to workers through their standard
+ * input and gathers results from their standard output, so a crash of a
+ * worker JVM costs only its current shard, which is retried by a restarted
+ * worker. A worker which does not finish a shard in time is killed and
+ * handled like a crashed one.
+ *
+ * Protocol: coordinator writes file paths relative to input root one per
+ * line and ends a shard with an empty line. Worker answers with a line per
+ * file, {@code OK <bytes> <segments> <untranslated> <path>} or
+ * {@code FAIL <bytes> <message> <path>} separated by tabs, and
+ * {@code DONE} after the shard. Lines the task prints as results come
+ * before the answer of their file as {@code OUT <text>} and are printed by
+ * coordinator to its standard output. Closed standard input stops the
+ * worker.
+ */
+final class BatchCoordinator {
+
+    /**
+     * First argument of worker process command line.
+     */
+    static final String WORKER_COMMAND = "worker";
+
+    private static final int SHARD_SIZE = 16;
+    private static final int MAX_ATTEMPTS = 2;
+    private static final String OK = "OK";
+    private static final String FAIL = "FAIL";
+    private static final String DONE = "DONE";
+    private static final String OUT = "OUT";
+
+    private final Path root;
+    private final List<String> arguments;
+    private final List<String> jvmOptions;
+    private final int processes;
+    private final int timeoutSeconds;
+
+    // Files waiting for a worker, retried ones go first
+    private final Deque<String> queue = new ArrayDeque<>();
+    private final Map<String, Integer> attempts = new HashMap<>();
+
+    /**
+     * Constructor.
+     * @param root input directory
+     * @param arguments command line arguments of workers
+     * @param jvmOptions JVM options of workers
+     * @param processes number of worker processes
+     * @param timeoutSeconds time limit of a worker for a single shard
+     */
+    BatchCoordinator(final Path root, final List<String> arguments,
+                     final List<String> jvmOptions, final int processes,
+                     final int timeoutSeconds) {
+        this.root = root;
+        this.arguments = arguments;
+        this.jvmOptions = jvmOptions;
+        this.processes = processes;
+        this.timeoutSeconds = timeoutSeconds;
+    }
+
+    /**
+     * Process files in worker processes and wait for all of them.
+     * @param files files under input root
+     * @param report report to add results to
+     */
+    void run(final List<Path> files, final BatchReport report) {
+        for (Path file : files) {
+            queue.add(PublishrCli.relativePath(root, file));
+        }
+        List<Thread> slots = new ArrayList<>();
+        int count = getProcessCount(files.size(), processes);
+        ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor();
+        try {
+            for (int i = 0; i < count; i++) {
+                Thread slot = new Thread(() -> runSlot(watchdog, report),
+                        "publishr-worker-" + i);
+                slot.start();
+                slots.add(slot);
+            }
+            for (Thread slot : slots) {
+                slot.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            watchdog.shutdownNow();
+        }
+    }
+
+    /**
+     * Take next shard from queue.
+     * @return relative paths, empty if queue is empty
+     */
+    private synchronized List<String> nextShard() {
+        List<String> shard = new ArrayList<>();
+        while (shard.size() < SHARD_SIZE && !queue.isEmpty()) {
+            shard.add(queue.poll());
+        }
+        return shard;
+    }
+
+    /**
+     * Put files of crashed shard back to queue or report them as failed
+     * if they were given enough chances.
+     * @param pending unanswered files
+     * @param reason failure message of files out of chances
+     * @param report report
+     */
+    private synchronized void requeue(final List<String> pending, final String reason,
+                                      final BatchReport report) {
+        for (int i = pending.size() - 1; i >= 0; i--) {
+            String path = pending.get(i);
+            int count = attempts.merge(path, 1, Integer::sum);
+            if (count < MAX_ATTEMPTS) {
+                queue.addFirst(path);
+            } else {
+                report.addFailure(path, root.resolve(path).toFile().length(), reason);
+            }
+        }
+    }
+
+    /**
+     * Keep one worker process busy until queue is empty,
+     * restarting it after a crash or timeout.
+     * @param watchdog executor killing workers which run out of time
+     * @param report report
+     */
+    private void runSlot(final ScheduledExecutorService watchdog, final BatchReport report) {
+        List<String> shard = nextShard();
+        while (!shard.isEmpty()) {
+            Process process;
+            try {
+                process = startWorker();
+            } catch (IOException e) {
+                for (String path : shard) {
+                    report.addFailure(path, root.resolve(path).toFile().length(),
+                            "cannot start worker: " + e.getMessage());
+                }
+                shard = nextShard();
+                continue;
+            }
+            AtomicBoolean timedOut = new AtomicBoolean();
+            try (Writer in = new BufferedWriter(new OutputStreamWriter(
+                         process.getOutputStream(), StandardCharsets.UTF_8));
+                 BufferedReader out = new BufferedReader(new InputStreamReader(
+                         process.getInputStream(), StandardCharsets.UTF_8))) {
+                while (!shard.isEmpty()) {
+                    ScheduledFuture<?> deadline = watchdog.schedule(() -> {
+                        timedOut.set(true);
+                        process.destroyForcibly();
+                    }, timeoutSeconds, TimeUnit.SECONDS);
+                    runShard(shard, in, out, report);
+                    if (!deadline.cancel(false)) {
+                        // Killed right after answering, next shard needs a new worker
+                        throw new IOException("Worker timed out");
+                    }
+                    shard = nextShard();
+                }
+            } catch (IOException e) {
+                // Worker died or was killed, files left in shard were not answered
+                process.destroyForcibly();
+                if (timedOut.get()) {
+                    requeue(shard, "worker timed out", report);
+                } else {
+                    requeue(shard, "worker crashed", report);
+                }
+                report.addWorkerRestart();
+                shard = nextShard();
+                continue;
+            }
+            waitFor(process);
+        }
+    }
+
+    /**
+     * Send shard to worker and read its results. Answered files are removed
+     * from shard, so only unanswered ones are left after an exception.
+     * @param shard relative paths
+     * @param in worker standard input
+     * @param out worker standard output
+     * @param report report
+     * @throws IOException if worker does not answer
+     */
+    private void runShard(final List<String> shard, final Writer in, final BufferedReader out,
+                          final BatchReport report) throws IOException {
+        for (String path : shard) {
+            in.write(path);
+            in.write('\n');
+        }
+        in.write('\n');
+        in.flush();
+        List<String> results = new ArrayList<>();
+        String line;
+        while ((line = out.readLine()) != null) {
+            if (line.startsWith(OUT + "\t")) {
+                results.add(line.substring(OUT.length() + 1));
+                continue;
+            }
+            if (!results.isEmpty()) {
+                PublishrCli.printResults(results);
+                results = new ArrayList<>();
+            }
+            if (DONE.equals(line)) {
+                if (!shard.isEmpty()) {
+                    throw new IOException("Worker skipped files");
+                }
+                return;
+            }
+            String[] fields = line.split("\t", -1);
+            String path = fields[fields.length - 1];
+            if (!shard.remove(path)) {
+                throw new IOException("Unexpected worker answer: " + line);
+            }
+            try {
+                long bytes = Long.parseLong(fields[1]);
+                if (OK.equals(fields[0]) && fields.length == 5) {
+                    report.addFile(bytes, new BatchReport.Counters(
+                            Long.parseLong(fields[2]), Long.parseLong(fields[3])));
+                } else {
+                    report.addFailure(path, bytes, fields[2]);
+                }
+            } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                throw new IOException("Invalid worker answer: " + line);
+            }
+        }
+        throw new IOException("Worker exited");
+    }
+
+    /**
+     * Start worker process with the same class path.
+     * @return process
+     * @throws IOException on start error
+     */
+    private Process startWorker() throws IOException {
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        command.addAll(jvmOptions);
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(PublishrCli.class.getName());
+        command.add(WORKER_COMMAND);
+        command.addAll(arguments);
+        return new ProcessBuilder(command)
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+    }
+
+    /**
+     * Wait for worker to exit after its standard input was closed,
+     * kill it if it takes longer than a shard may.
+     */
+    private void waitFor(final Process process) {
+        try {
+            if (!process.waitFor(timeoutSeconds, TimeUnit.SECONDS)) {
+                process.destroyForcibly();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            process.destroyForcibly();
+        }
+    }
+
+    /**
+     * Worker process main loop: read shards from standard input, process
+     * them on a thread pool and write results to standard output.
+     * Result lines of tasks are passed as protocol messages, everything
+     * else the worker prints goes to standard error.
+     * @param root input directory
+     * @param threads number of threads
+     * @param task work for a single file
+     * @return exit code
+     * @throws IOException on protocol stream error
+     */
+    static int runWorker(final Path root, final int threads, final PublishrCli.FileTask task)
+            throws IOException {
+        PrintStream protocol = new PrintStream(System.out, false, StandardCharsets.UTF_8.name());
+        System.setOut(System.err);
+        PublishrCli.setResultPrinter(lines -> {
+            synchronized (protocol) {
+                for (String line : lines) {
+                    protocol.println(OUT + "\t" + line.replaceAll("[\r\n]+", " "));
+                }
+            }
+        });
+        BufferedReader in = new BufferedReader(
+                new InputStreamReader(System.in, StandardCharsets.UTF_8));
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (!line.isEmpty()) {
+                    String path = line;
+                    futures.add(executor.submit(() -> runFile(path, root, task, protocol)));
+                    continue;
+                }
+                for (Future<?> future : futures) {
+                    future.get();
+                }
+                futures.clear();
+                protocol.println(DONE);
+                protocol.flush();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return 1;
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        } finally {
+            executor.shutdownNow();
+            PublishrCli.setResultPrinter(null);
+        }
+        return 0;
+    }
+
+    /**
+     * Process single file in worker and write its result line.
+     */
+    private static void runFile(final String path, final Path root,
+                                final PublishrCli.FileTask task, final PrintStream protocol) {
+        Path file = root.resolve(path);
+        long bytes = file.toFile().length();
+        String result;
+        try {
+            BatchReport.Counters counters = task.process(file, path);
+            result = String.join("\t", OK, Long.toString(bytes),
+                    Long.toString(counters.getSegments()),
+                    Long.toString(counters.getUntranslated()), path);
+        } catch (Exception e) {
+            String message = e.getMessage();
+            if (message == null) {
+                message = e.toString();
+            }
+            result = String.join("\t", FAIL, Long.toString(bytes),
+                    message.replaceAll("[\t\r\n]+", " "), path);
+        }
+        synchronized (protocol) {
+            protocol.println(result);
+        }
+    }
+
+    /**
+     * Get number of processes to start, never more than shards.
+     * @param files number of files
+     * @param processes requested number of processes
+     * @return number of processes
+     */
+    private static int getProcessCount(final int files, final int processes) {
+        return Math.max(1, Math.min(processes, (files + SHARD_SIZE - 1) / SHARD_SIZE));
+    }
+}
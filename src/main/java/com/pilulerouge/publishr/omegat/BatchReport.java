@@ -0,0 +1,127 @@
+/**************************************************************************
+ PublishR file filter for OmegaT
+
+ Copyright (C) 2018 Lev Abashkin
+
+ This file is NOT a part of OmegaT.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ **************************************************************************/
+
+package com.pilulerouge.publishr.omegat;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Results of a command line run gathered from all threads and worker processes.
+ */
+final class BatchReport {
+
+    private static final double MEGABYTE = 1024 * 1024;
+
+    /**
+     * Counters of a single processed file.
+     */
+    static final class Counters {
+        private final long segments;
+        private final long untranslated;
+
+        /**
+         * Constructor.
+         * @param segments number of segments
+         * @param untranslated number of segments without translation
+         */
+        Counters(final long segments, final long untranslated) {
+            this.segments = segments;
+            this.untranslated = untranslated;
+        }
+
+        long getSegments() {
+            return segments;
+        }
+
+        long getUntranslated() {
+            return untranslated;
+        }
+    }
+
+    private final long start = System.nanoTime();
+    private final List<String> failures = new ArrayList<>();
+    private long files;
+    private long bytes;
+    private long segments;
+    private long untranslated;
+    private long workerRestarts;
+
+    /**
+     * Add successfully processed file.
+     * @param fileBytes file size
+     * @param counters file counters
+     */
+    synchronized void addFile(final long fileBytes, final Counters counters) {
+        files++;
+        bytes += fileBytes;
+        segments += counters.getSegments();
+        untranslated += counters.getUntranslated();
+    }
+
+    /**
+     * Add failed file.
+     * @param relativePath file path relative to input root
+     * @param fileBytes file size
+     * @param message failure description
+     */
+    synchronized void addFailure(final String relativePath, final long fileBytes,
+                                 final String message) {
+        files++;
+        bytes += fileBytes;
+        failures.add(relativePath + ": " + message);
+    }
+
+    /**
+     * Count restart of crashed worker process.
+     */
+    synchronized void addWorkerRestart() {
+        workerRestarts++;
+    }
+
+    /**
+     * Print failures and totals.
+     * @param out output
+     * @return exit code, 1 if any file failed
+     */
+    synchronized int print(final PrintStream out) {
+        double seconds = Math.max(System.nanoTime() - start, 1) / 1e9;
+        for (String failure : failures) {
+            out.println("FAILED " + failure);
+        }
+        out.println(String.format(
+                "Files: %d, failed: %d, %.1f MB in %.2f s (%.1f MB/s), "
+                        + "%d segments (%.0f segments/s)",
+                files, failures.size(), bytes / MEGABYTE, seconds,
+                bytes / MEGABYTE / seconds, segments, segments / seconds));
+        if (untranslated > 0) {
+            out.println("Untranslated segments: " + untranslated);
+        }
+        if (workerRestarts > 0) {
+            out.println("Crashed workers restarted: " + workerRestarts);
+        }
+        if (failures.isEmpty()) {
+            return 0;
+        }
+        return 1;
+    }
+}
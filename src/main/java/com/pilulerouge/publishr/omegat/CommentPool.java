@@ -0,0 +1,94 @@
+/**************************************************************************
+ PublishR file filter for OmegaT
+
+ Copyright (C) 2018 Lev Abashkin
+
+ This file is NOT a part of OmegaT.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ **************************************************************************/
+
+package com.pilulerouge.publishr.omegat;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Pool of translator comments shared between segments.
+ * Equal comments are stored only once no matter how many segments use them.
+ */
+final class CommentPool {
+
+    /**
+     * Pool is dropped when it grows over this size. Comments with unique
+     * parameters (line numbers, footnote labels) would otherwise pile up.
+     */
+    private static final int MAX_SIZE = 65536;
+
+    private static final ConcurrentMap<String, String> COMMENTS = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, String> EXTRA_COMMENTS = new ConcurrentHashMap<>();
+
+    /**
+     * Get pooled instance of comment.
+     * @param comment comment text
+     * @return equal comment shared with other segments
+     */
+    static String intern(final String comment) {
+        String pooled = COMMENTS.get(comment);
+        if (pooled != null) {
+            return pooled;
+        }
+        if (COMMENTS.size() >= MAX_SIZE) {
+            COMMENTS.clear();
+        }
+        pooled = COMMENTS.putIfAbsent(comment, comment);
+        if (pooled == null) {
+            return comment;
+        }
+        return pooled;
+    }
+
+    /**
+     * Get comment for extra string segment.
+     * @param shortcutName name of shortcut the extra string belongs to
+     * @return comment like {@code <a1>}
+     */
+    static String extraComment(final String shortcutName) {
+        return EXTRA_COMMENTS.computeIfAbsent(shortcutName, n -> "<" + n + ">");
+    }
+
+    /**
+     * Get shortcut name from comment of extra string segment.
+     * @param comment segment comment
+     * @return shortcut name or null if segment is not an extra string
+     */
+    static String getExtraShortcut(final String comment) {
+        if (comment == null || comment.length() < 3 || comment.charAt(0) != '<'
+                || comment.charAt(comment.length() - 1) != '>') {
+            return null;
+        }
+        String name = comment.substring(1, comment.length() - 1);
+        if (!comment.equals(EXTRA_COMMENTS.get(name))) {
+            return null;
+        }
+        return name;
+    }
+
+    /**
+     * Do not allow instances of this class.
+     */
+    private CommentPool() {
+
+    }
+}
@@ -0,0 +1,271 @@
+/**************************************************************************
+ PublishR file filter for OmegaT
+
+ Copyright (C) 2018 Lev Abashkin
+
+ This file is NOT a part of OmegaT.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ **************************************************************************/
+
+
+package com.pilulerouge.publishr.omegat;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Counts of a document or a part of it collected while the filter reads it.
+ * Partial statistics of chunks or files are combined with {@link #merge}.
+ * Instances are not thread safe, every thread should fill its own one.
+ */
+final class DocumentStatistics implements ParseObserver {
+
+    private static final Element[] ELEMENTS = Element.values();
+
+    private final String name;
+    private long files;
+    private long segments;
+    private long extras;
+    private long words;
+    private long characters;
+    private long charactersWithSpaces;
+    private final long[] elementCounts = new long[ELEMENTS.length];
+
+    /**
+     * Constructor.
+     * @param name file path or another name of statistics row
+     */
+    DocumentStatistics(final String name) {
+        this.name = name;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    long getSegments() {
+        return segments;
+    }
+
+    long getExtras() {
+        return extras;
+    }
+
+    long getWords() {
+        return words;
+    }
+
+    long getCharacters() {
+        return characters;
+    }
+
+    long getCharactersWithSpaces() {
+        return charactersWithSpaces;
+    }
+
+    /**
+     * Get number of element occurrences.
+     * @param element element
+     * @return number of times element was converted to shortcut
+     */
+    long getElementCount(final Element element) {
+        return elementCounts[element.ordinal()];
+    }
+
+    @Override
+    public void startDocument(final PublishrDocument document) {
+        files++;
+    }
+
+    @Override
+    public void addSegment(final int line, final String text) {
+        segments++;
+        countText(text);
+    }
+
+    @Override
+    public void addExtra(final int line, final String text) {
+        extras++;
+        countText(text);
+    }
+
+    @Override
+    public void addElement(final int line, final Element element,
+                           final ElementProcessor.PendingShortcut match) {
+        elementCounts[element.ordinal()]++;
+    }
+
+    /**
+     * Add counts of other statistics to this one.
+     * @param other partial statistics
+     * @return this instance
+     */
+    DocumentStatistics merge(final DocumentStatistics other) {
+        files += other.files;
+        segments += other.segments;
+        extras += other.extras;
+        words += other.words;
+        characters += other.characters;
+        charactersWithSpaces += other.charactersWithSpaces;
+        for (int i = 0; i < elementCounts.length; i++) {
+            elementCounts[i] += other.elementCounts[i];
+        }
+        return this;
+    }
+
+    /**
+     * Count words and characters of text skipping shortcut tags.
+     * Word is a run of letters and digits.
+     */
+    private void countText(final String text) {
+        boolean inWord = false;
+        int length = text.length();
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            if (c == '<') {
+                int tagEnd = findTagEnd(text, i);
+                if (tagEnd > 0) {
+                    i = tagEnd;
+                    continue;
+                }
+            }
+            if (Character.isLowSurrogate(c)) {
+                continue;
+            }
+            charactersWithSpaces++;
+            if (Character.isWhitespace(c)) {
+                inWord = false;
+                continue;
+            }
+            characters++;
+            boolean wordChar = Character.isLetterOrDigit(text.codePointAt(i));
+            if (wordChar && !inWord) {
+                words++;
+            }
+            inWord = wordChar;
+        }
+    }
+
+    /**
+     * Find end of shortcut tag like {@code <a1>}, {@code </a1>} or {@code <f1/>}.
+     * @return index of '>' or -1 if there is no tag at position
+     */
+    private static int findTagEnd(final String text, final int start) {
+        int i = start + 1;
+        if (i < text.length() && text.charAt(i) == '/') {
+            i++;
+        }
+        int nameStart = i;
+        while (i < text.length() && isTagNameChar(text.charAt(i))) {
+            i++;
+        }
+        if (i == nameStart) {
+            return -1;
+        }
+        if (i < text.length() && text.charAt(i) == '/') {
+            i++;
+        }
+        if (i < text.length() && text.charAt(i) == '>') {
+            return i;
+        }
+        return -1;
+    }
+
+    private static boolean isTagNameChar(final char c) {
+        return (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9');
+    }
+
+    /**
+     * Write statistics as CSV with a header, a row per item and a total row.
+     * @param items statistics of files
+     * @param total merged statistics
+     * @param out output
+     * @throws IOException on write error
+     */
+    static void writeCsv(final List<DocumentStatistics> items, final DocumentStatistics total,
+                         final Writer out) throws IOException {
+        out.write("file,files,segments,extras,words,characters,characters_with_spaces");
+        for (Element element : ELEMENTS) {
+            out.write(',');
+            out.write(element.name().toLowerCase(Locale.ROOT));
+        }
+        out.write('\n');
+        for (DocumentStatistics item : items) {
+            item.writeCsvRow(out);
+        }
+        total.writeCsvRow(out);
+    }
+
+    private void writeCsvRow(final Writer out) throws IOException {
+        // Quote names, paths may contain commas
+        out.write('"');
+        out.write(name.replace("\"", "\"\""));
+        out.write('"');
+        for (long value : new long[] {files, segments, extras, words, characters,
+                charactersWithSpaces}) {
+            out.write(',');
+            out.write(Long.toString(value));
+        }
+        for (long value : elementCounts) {
+            out.write(',');
+            out.write(Long.toString(value));
+        }
+        out.write('\n');
+    }
+
+    /**
+     * Write statistics as JSON object with file list and total.
+     * @param items statistics of files
+     * @param total merged statistics
+     * @param out output
+     * @throws IOException on write error
+     */
+    static void writeJson(final List<DocumentStatistics> items, final DocumentStatistics total,
+                          final Writer out) throws IOException {
+        out.write("{\"files\":[");
+        for (int i = 0; i < items.size(); i++) {
+            if (i > 0) {
+                out.write(',');
+            }
+            out.write("\n");
+            items.get(i).writeJsonObject(out);
+        }
+        out.write("\n],\"total\":");
+        total.writeJsonObject(out);
+        out.write("}\n");
+    }
+
+    private void writeJsonObject(final Writer out) throws IOException {
+        out.write("{\"file\":");
+        JsonLinesSegmentWriter.writeString(out, name);
+        out.write(",\"files\":" + files);
+        out.write(",\"segments\":" + segments);
+        out.write(",\"extras\":" + extras);
+        out.write(",\"words\":" + words);
+        out.write(",\"characters\":" + characters);
+        out.write(",\"charactersWithSpaces\":" + charactersWithSpaces);
+        out.write(",\"elements\":{");
+        for (int i = 0; i < ELEMENTS.length; i++) {
+            if (i > 0) {
+                out.write(',');
+            }
+            JsonLinesSegmentWriter.writeString(out, ELEMENTS[i].name());
+            out.write(":" + elementCounts[i]);
+        }
+        out.write("}}");
+    }
+}
@@ -0,0 +1,360 @@
+/**************************************************************************
+ PublishR file filter for OmegaT
+
+ Copyright (C) 2018 Lev Abashkin
+
+ This file is NOT a part of OmegaT.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ **************************************************************************/
+
+
+package com.pilulerouge.publishr.omegat;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Inverted index of formatting across project files. Keys are
+ * <ul>
+ * <li>{@code element:NAME} for every {@link Element},</li>
+ * <li>{@code format:NAME} for every {@link FormattingType} of a text line,</li>
+ * <li>{@code link:URL}, {@code domain:HOST} and {@code image:PATH} for
+ * link targets and image paths.</li>
+ * </ul>
+ * Every key maps to sorted line indexes of text lines in every file.
+ * Files are indexed while the filter parses them and replaced one by one,
+ * so an index is updated only for files that changed.
+ */
+final class ElementIndex {
+
+    private static final int MAGIC = 0x50524958; // "PRIX"
+    private static final int VERSION = 1;
+
+    static final String ELEMENT_PREFIX = "element:";
+    static final String FORMAT_PREFIX = "format:";
+    static final String LINK_PREFIX = "link:";
+    static final String DOMAIN_PREFIX = "domain:";
+    static final String IMAGE_PREFIX = "image:";
+
+    private static final FormattingType[] FORMATTING_TYPES = FormattingType.values();
+
+    /**
+     * Index of a single file.
+     */
+    static final class FileEntry {
+        private final long modified;
+        private final String[] keys;
+        private final int[][] lines;
+
+        private FileEntry(final long modified, final String[] keys, final int[][] lines) {
+            this.modified = modified;
+            this.keys = keys;
+            this.lines = lines;
+        }
+
+        long getModified() {
+            return modified;
+        }
+    }
+
+    /**
+     * Collects index of a file while filter parses it.
+     */
+    static final class Builder implements ParseObserver {
+
+        private final Map<String, int[]> postings = new HashMap<>();
+        // Number of used values in every posting array
+        private final Map<String, Integer> sizes = new HashMap<>();
+        private PublishrDocument document;
+
+        @Override
+        public void startDocument(final PublishrDocument newDocument) {
+            document = newDocument;
+        }
+
+        @Override
+        public void addSegment(final int line, final String text) {
+            for (FormattingType fType : FORMATTING_TYPES) {
+                if (document.hasFormatting(line, fType)) {
+                    add(FORMAT_PREFIX + fType.name(), line);
+                }
+            }
+        }
+
+        @Override
+        public void addElement(final int line, final Element element,
+                               final ElementProcessor.PendingShortcut match) {
+            add(ELEMENT_PREFIX + element.name(), line);
+            // Keys are built from original text, parts of it may be taken
+            // by elements matched earlier, e.g. subscript in "/~a/~b"
+            if (element == Element.LINK) {
+                String url = match.getExtraText();
+                add(LINK_PREFIX + url, line);
+                String host = getHost(url);
+                if (host != null) {
+                    add(DOMAIN_PREFIX + host, line);
+                }
+            } else if (element == Element.IMAGE) {
+                // Last label is "](path)"
+                String label = match.getLastLabel();
+                add(IMAGE_PREFIX + label.substring(2, label.length() - 1), line);
+            }
+        }
+
+        @Override
+        public void addExtra(final int line, final String text) {
+        }
+
+        /**
+         * Add line to posting list of key. Lines come in ascending order.
+         */
+        private void add(final String key, final int line) {
+            int[] lines = postings.get(key);
+            int size = 0;
+            if (lines == null) {
+                lines = new int[4];
+                postings.put(key, lines);
+            } else {
+                size = sizes.get(key);
+                if (lines[size - 1] == line) {
+                    return;
+                }
+                if (size == lines.length) {
+                    lines = Arrays.copyOf(lines, size * 2);
+                    postings.put(key, lines);
+                }
+            }
+            lines[size] = line;
+            sizes.put(key, size + 1);
+        }
+
+        /**
+         * Build compact file entry.
+         * @param modified file modification time
+         * @return file entry
+         */
+        FileEntry build(final long modified) {
+            String[] keys = postings.keySet().toArray(new String[0]);
+            Arrays.sort(keys);
+            int[][] lines = new int[keys.length][];
+            for (int i = 0; i < keys.length; i++) {
+                lines[i] = Arrays.copyOf(postings.get(keys[i]), sizes.get(keys[i]));
+            }
+            return new FileEntry(modified, keys, lines);
+        }
+    }
+
+    // File path -> file entry
+    private final Map<String, FileEntry> files = new HashMap<>();
+    // Key -> file path -> lines
+    private final NavigableMap<String, Map<String, int[]>> postings = new TreeMap<>();
+
+    /**
+     * Get host part of URL.
+     * @param url URL
+     * @return lower case host or null if URL has no scheme
+     */
+    static String getHost(final String url) {
+        int start = url.indexOf("://");
+        if (start < 0) {
+            return null;
+        }
+        start += 3;
+        int end = start;
+        while (end < url.length() && "/?#".indexOf(url.charAt(end)) < 0) {
+            end++;
+        }
+        // Skip user info, which may contain colon, then port
+        int at = url.lastIndexOf('@', end - 1);
+        if (at >= start) {
+            start = at + 1;
+        }
+        int colon = url.indexOf(':', start);
+        if (colon >= 0 && colon < end) {
+            end = colon;
+        }
+        if (end == start) {
+            return null;
+        }
+        return url.substring(start, end).toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Get indexed files.
+     * @return unmodifiable map of file path to entry
+     */
+    synchronized Map<String, FileEntry> getFiles() {
+        return Collections.unmodifiableMap(new HashMap<>(files));
+    }
+
+    /**
+     * Replace index of a file.
+     * @param path file path
+     * @param entry new entry, null to remove file
+     */
+    synchronized void update(final String path, final FileEntry entry) {
+        FileEntry old = files.remove(path);
+        if (old != null) {
+            for (String key : old.keys) {
+                Map<String, int[]> byFile = postings.get(key);
+                byFile.remove(path);
+                if (byFile.isEmpty()) {
+                    postings.remove(key);
+                }
+            }
+        }
+        if (entry != null) {
+            files.put(path, entry);
+            for (int i = 0; i < entry.keys.length; i++) {
+                postings.computeIfAbsent(entry.keys[i], k -> new HashMap<>())
+                        .put(path, entry.lines[i]);
+            }
+        }
+    }
+
+    /**
+     * Find lines with key.
+     * @param key index key
+     * @return sorted map of file path to sorted line indexes
+     */
+    synchronized SortedMap<String, int[]> find(final String key) {
+        Map<String, int[]> byFile = postings.get(key);
+        if (byFile == null) {
+            return Collections.emptySortedMap();
+        }
+        return new TreeMap<>(byFile);
+    }
+
+    /**
+     * Find keys starting with prefix and count their lines.
+     * @param prefix key prefix
+     * @return sorted map of key to number of lines
+     */
+    synchronized Map<String, Long> findKeys(final String prefix) {
+        Map<String, Long> result = new LinkedHashMap<>();
+        for (Map.Entry<String, Map<String, int[]>> e
+                : postings.tailMap(prefix, true).entrySet()) {
+            if (!e.getKey().startsWith(prefix)) {
+                break;
+            }
+            long count = 0;
+            for (int[] lines : e.getValue().values()) {
+                count += lines.length;
+            }
+            result.put(e.getKey(), count);
+        }
+        return result;
+    }
+
+    /**
+     * Save index. Posting lists are written as variable length deltas.
+     * @param path index file
+     * @throws IOException on write error
+     */
+    synchronized void write(final Path path) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                Files.newOutputStream(path)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(files.size());
+            for (Map.Entry<String, FileEntry> e : files.entrySet()) {
+                FileEntry entry = e.getValue();
+                out.writeUTF(e.getKey());
+                out.writeLong(entry.modified);
+                writeVarInt(out, entry.keys.length);
+                for (int i = 0; i < entry.keys.length; i++) {
+                    out.writeUTF(entry.keys[i]);
+                    int[] lines = entry.lines[i];
+                    writeVarInt(out, lines.length);
+                    int last = 0;
+                    for (int line : lines) {
+                        writeVarInt(out, line - last);
+                        last = line;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Load index saved by {@link #write}.
+     * @param path index file
+     * @return index
+     * @throws IOException on read error or unknown format
+     */
+    static ElementIndex read(final Path path) throws IOException {
+        ElementIndex index = new ElementIndex();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                Files.newInputStream(path)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Unknown index format: " + path);
+            }
+            int fileCount = in.readInt();
+            for (int f = 0; f < fileCount; f++) {
+                String file = in.readUTF();
+                long modified = in.readLong();
+                String[] keys = new String[readVarInt(in)];
+                int[][] lines = new int[keys.length][];
+                for (int i = 0; i < keys.length; i++) {
+                    keys[i] = in.readUTF();
+                    lines[i] = new int[readVarInt(in)];
+                    int last = 0;
+                    for (int j = 0; j < lines[i].length; j++) {
+                        last += readVarInt(in);
+                        lines[i][j] = last;
+                    }
+                }
+                index.update(file, new FileEntry(modified, keys, lines));
+            }
+        }
+        return index;
+    }
+
+    private static void writeVarInt(final DataOutputStream out, final int value)
+            throws IOException {
+        int v = value;
+        while ((v & ~0x7F) != 0) {
+            out.writeByte((v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        out.writeByte(v);
+    }
+
+    private static int readVarInt(final DataInputStream in) throws IOException {
+        int value = 0;
+        int shift = 0;
+        int b;
+        do {
+            b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+}
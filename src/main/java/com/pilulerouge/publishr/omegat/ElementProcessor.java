@@ -35,6 +35,7 @@ import java.util.regex.Pattern;
 public class ElementProcessor {
 
     private final Pattern pattern, reversePattern;
+    private final String trigger;
     private final String shortcutName;
     private final boolean useCounter;
     private final int textGroup;
@@ -45,13 +46,21 @@ public class ElementProcessor {
 
     private int counter;
 
+    /*
+     Placeholder tags are written as START + index + END. Both are Unicode
+     noncharacters, lines containing them are not converted.
+     */
+    static final char PLACEHOLDER_START = '\uFFFF';
+    static final char PLACEHOLDER_END = '\uFFFE';
+
     private Map<String, String> shortcutMap; // Label -> shortcut
     private Map<String, String> labelMap;  // Shortcut -> actual text
 
-    ElementProcessor(final String regexp, final String shortcutName,
+    ElementProcessor(final String regexp, final String trigger, final String shortcutName,
                      final int textGroup, final int extraGroup,
                      final String left, final String right) {
         this.pattern = Pattern.compile(regexp);
+        this.trigger = trigger;
         this.shortcutName = shortcutName;
         this.textGroup = textGroup;
         this.extraGroup = extraGroup;
@@ -82,14 +91,74 @@ public class ElementProcessor {
         reversePattern = Pattern.compile(rpt);
     }
 
+    /**
+     * Create processor sharing compiled patterns of another one, with its
+     * own shortcut numbering.
+     * @param compiled processor to take patterns and settings from
+     */
+    private ElementProcessor(final ElementProcessor compiled) {
+        pattern = compiled.pattern;
+        reversePattern = compiled.reversePattern;
+        trigger = compiled.trigger;
+        shortcutName = compiled.shortcutName;
+        useCounter = compiled.useCounter;
+        textGroup = compiled.textGroup;
+        extraGroup = compiled.extraGroup;
+        left = compiled.left;
+        right = compiled.right;
+        shortcutMap = new HashMap<>();
+        labelMap = new HashMap<>();
+    }
+
+    /**
+     * Get processor with the same patterns and empty shortcut numbering.
+     * Patterns are immutable, so both processors may run concurrently.
+     * @return new processor
+     */
+    ElementProcessor copy() {
+        return new ElementProcessor(this);
+    }
+
+    /**
+     * Get literal which must be present in text for this element to match.
+     * @return trigger literal
+     */
+    String getTrigger() {
+        return trigger;
+    }
+
     /**
      * Substitute formatting elements with shortcut tags. Found extra strings
      * to be translated as separate segments go to extras map.
+     * Text may contain escaped characters masked by {@link EscapeMask},
+     * extras and labels are stored unmasked.
      * @param text      text to be processed
      * @param extras    extra strings container
      * @return          processed text
      */
     public String toShortcuts(final String text, final Map<String, String> extras) {
+        List<PendingShortcut> pending = new ArrayList<>();
+        String result = match(text, pending);
+        if (pending.isEmpty()) {
+            return result;
+        }
+        String[] names = new String[pending.size()];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = pending.get(i).bind(names, extras);
+        }
+        return resolveNames(result, names);
+    }
+
+    /**
+     * Substitute formatting elements with placeholder tags. Does not touch
+     * internal state, so it can run concurrently for different texts.
+     * Shortcut names are assigned later by {@link PendingShortcut#bind}
+     * in the order matches were added to the list.
+     * @param text      text to be processed
+     * @param pending   list of matches waiting for shortcut names
+     * @return          text with placeholder tags
+     */
+    String match(final String text, final List<PendingShortcut> pending) {
 
         Matcher matcher = pattern.matcher(text);
 
@@ -128,50 +197,24 @@ public class ElementProcessor {
                 }
             }
 
-            String firstLabel = firstLabelBuilder.toString();
-            String lastLabel = lastLabelBuilder.toString();
-
-            // Check if this shortcut is already registered
-            // Assume tabulation cannot be found in any labels
-            String searchLabel = firstLabel + "\t" + lastLabel;
-            String scName = shortcutMap.get(searchLabel);
+            // Placeholder stands for shortcut name until it is bound
+            String placeholder = PLACEHOLDER_START + Integer.toString(pending.size())
+                    + PLACEHOLDER_END;
+            pending.add(new PendingShortcut(this, pending,
+                    EscapeMask.unmask(firstLabelBuilder.toString()),
+                    EscapeMask.unmask(lastLabelBuilder.toString()),
+                    extraText));
 
-            // If not then create a new shortcut
-            boolean newShortcutName = false;
-            if (scName == null) {
-                scName = getShortcutName();
-                newShortcutName = true;
-            }
-
-            // Save extra text if any
-            if (extraText != null) {
-                extras.put(scName, extraText);
-            }
-
-            // Create actual shortcuts
-            String openingSC, closingSC;
+            // Append placeholder tags/text to result
             if (textGroup == 0) {
                 // Self-closing shortcut
-                openingSC = "<" + scName + "/>";
-                closingSC = "";
+                result.append("<").append(placeholder).append("/>");
             } else {
-                openingSC = "<" + scName + ">";
-                closingSC = "</" + scName + ">";
-            }
-
-            // Save inverse mapping
-            if (newShortcutName) {
-                labelMap.put(openingSC, firstLabel);
-                if (!closingSC.isEmpty()) {
-                    labelMap.put(closingSC, lastLabel);
-                }
+                result.append("<").append(placeholder).append(">");
+                result.append(shortcutText);
+                result.append("</").append(placeholder).append(">");
             }
 
-            // Append shortcuts/text to result
-            result.append(openingSC);
-            result.append(shortcutText);
-            result.append(closingSC);
-
         } while (matcher.find());
 
         result.append(text.substring(lastMatcherPosition, text.length()));
@@ -179,6 +222,71 @@ public class ElementProcessor {
         return result.toString();
     }
 
+    /**
+     * Register shortcut for matched element.
+     * @param firstLabel original formatting before text
+     * @param lastLabel original formatting after text
+     * @param extraText extra string or null
+     * @param extras extra strings container
+     * @return shortcut name
+     */
+    private String bind(final String firstLabel, final String lastLabel, final String extraText,
+                        final Map<String, String> extras) {
+
+        // Check if this shortcut is already registered
+        // Assume tabulation cannot be found in any labels
+        String searchLabel = firstLabel + "\t" + lastLabel;
+        String scName = shortcutMap.get(searchLabel);
+
+        // If not then create a new shortcut
+        boolean newShortcutName = false;
+        if (scName == null) {
+            scName = getShortcutName();
+            newShortcutName = true;
+        }
+
+        // Save extra text if any
+        if (extraText != null) {
+            extras.put(scName, EscapeMask.unmask(extraText));
+        }
+
+        // Save inverse mapping
+        if (newShortcutName) {
+            if (textGroup == 0) {
+                labelMap.put("<" + scName + "/>", firstLabel);
+            } else {
+                labelMap.put("<" + scName + ">", firstLabel);
+                labelMap.put("</" + scName + ">", lastLabel);
+            }
+        }
+
+        return scName;
+    }
+
+    /**
+     * Replace placeholders with bound shortcut names.
+     * @param text text with placeholders
+     * @param names shortcut names by placeholder index
+     * @return text with shortcut names
+     */
+    static String resolveNames(final String text, final String[] names) {
+        int start = text.indexOf(PLACEHOLDER_START);
+        if (start < 0) {
+            return text;
+        }
+        StringBuilder result = new StringBuilder(text.length());
+        int lastPosition = 0;
+        while (start >= 0) {
+            int end = text.indexOf(PLACEHOLDER_END, start);
+            result.append(text, lastPosition, start);
+            result.append(names[Integer.parseInt(text.substring(start + 1, end))]);
+            lastPosition = end + 1;
+            start = text.indexOf(PLACEHOLDER_START, lastPosition);
+        }
+        result.append(text, lastPosition, text.length());
+        return result.toString();
+    }
+
     /**
      * Remove shortcuts and restore original formatting.
      * @param text      piece of text where shortcuts should be removed
@@ -196,12 +304,13 @@ public class ElementProcessor {
                 String replacement = scEntry.getValue();
                 if (extraGroup > 0) {
                     for (Map.Entry<String, String> egEntry : extras.entrySet()) {
-                        replacement = replacement.replaceAll(egEntry.getKey(),
+                        replacement = replacement.replace(egEntry.getKey(),
                                 egEntry.getValue());
                     }
                 }
 
-                result = result.replaceAll(shortcut, replacement);
+                // Labels may contain escapes, replace them literally
+                result = result.replace(shortcut, replacement);
             }
         }
         return result;
@@ -318,4 +427,137 @@ public class ElementProcessor {
             return shortcutName;
         }
     }
+
+    /**
+     * Element match waiting for its shortcut name.
+     */
+    static final class PendingShortcut {
+
+        private final ElementProcessor processor;
+        // Matches of the same text, earlier ones are referred by placeholders
+        private final List<PendingShortcut> pending;
+        private final String firstLabel;
+        private final String lastLabel;
+        private final String extraText;
+
+        PendingShortcut(final ElementProcessor processor, final List<PendingShortcut> pending,
+                        final String firstLabel, final String lastLabel,
+                        final String extraText) {
+            this.processor = processor;
+            this.pending = pending;
+            this.firstLabel = firstLabel;
+            this.lastLabel = lastLabel;
+            this.extraText = extraText;
+        }
+
+        /**
+         * Get processor which found this match.
+         * @return element processor
+         */
+        ElementProcessor getProcessor() {
+            return processor;
+        }
+
+        /**
+         * Get original formatting before element text.
+         * @return label with original formatting of earlier matches
+         */
+        String getFirstLabel() {
+            return toOriginal(firstLabel);
+        }
+
+        /**
+         * Get original formatting after element text.
+         * @return label with original formatting of earlier matches
+         */
+        String getLastLabel() {
+            return toOriginal(lastLabel);
+        }
+
+        /**
+         * Get extra string of element.
+         * @return unmasked extra string with original formatting of earlier
+         * matches or null
+         */
+        String getExtraText() {
+            if (extraText == null) {
+                return null;
+            }
+            return toOriginal(EscapeMask.unmask(extraText));
+        }
+
+        /**
+         * Replace placeholder tags of earlier matches with their original
+         * formatting, e.g. URL part taken for subscript gets its tildes back.
+         * @param text label or extra string
+         * @return original text
+         */
+        private String toOriginal(final String text) {
+            int start = text.indexOf(PLACEHOLDER_START);
+            if (start < 0) {
+                return text;
+            }
+            StringBuilder result = new StringBuilder(text.length());
+            int lastPosition = 0;
+            while (start >= 0) {
+                int end = text.indexOf(PLACEHOLDER_END, start);
+                boolean closing = start > 1 && text.charAt(start - 1) == '/';
+                int tagStart = start - 1;
+                if (closing) {
+                    tagStart--;
+                }
+                int tagEnd = text.indexOf('>', end);
+                if (tagStart < lastPosition || text.charAt(tagStart) != '<' || tagEnd < 0) {
+                    // Cut tag, keep it as is
+                    result.append(text, lastPosition, end + 1);
+                    lastPosition = end + 1;
+                } else {
+                    PendingShortcut match = pending.get(
+                            Integer.parseInt(text.substring(start + 1, end)));
+                    result.append(text, lastPosition, tagStart);
+                    if (closing) {
+                        result.append(match.getLastLabel());
+                    } else {
+                        result.append(match.getFirstLabel());
+                    }
+                    lastPosition = tagEnd + 1;
+                }
+                start = text.indexOf(PLACEHOLDER_START, lastPosition);
+            }
+            result.append(text, lastPosition, text.length());
+            return result.toString();
+        }
+
+        /**
+         * Assign shortcut name and register labels and extra string.
+         * Labels and extra string may contain placeholders of matches
+         * found earlier, these are resolved first.
+         * @param names names bound so far by placeholder index
+         * @param extras extra strings container
+         * @return shortcut name
+         */
+        String bind(final String[] names, final Map<String, String> extras) {
+            String extra = null;
+            if (extraText != null) {
+                extra = resolveNames(extraText, names);
+            }
+            return processor.bind(resolveNames(firstLabel, names),
+                    resolveNames(lastLabel, names), extra, extras);
+        }
+
+        /**
+         * Collect shortcut tags of bound match with their original formatting.
+         * @param name shortcut name bound to this match
+         * @param names names bound so far by placeholder index
+         * @param tags tag to original formatting map
+         */
+        void addTags(final String name, final String[] names, final Map<String, String> tags) {
+            if (processor.textGroup == 0) {
+                tags.put("<" + name + "/>", resolveNames(firstLabel, names));
+            } else {
+                tags.put("<" + name + ">", resolveNames(firstLabel, names));
+                tags.put("</" + name + ">", resolveNames(lastLabel, names));
+            }
+        }
+    }
 }
@@ -0,0 +1,119 @@
+/**************************************************************************
+ PublishR file filter for OmegaT
+
+ Copyright (C) 2018 Lev Abashkin
+
+ This file is NOT a part of OmegaT.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ **************************************************************************/
+
+package com.pilulerouge.publishr.omegat;
+
+/**
+ * Backslash escape handling for lexing.
+ * Escaped characters are replaced by Unicode noncharacters so formatting
+ * patterns never see them. Text length and offsets are preserved.
+ * Noncharacters should not appear in interchange text, but nothing stops
+ * a document from containing them. Lines with reserved characters are
+ * therefore never converted, see {@link #isReserved(char)}.
+ */
+final class EscapeMask {
+
+    /**
+     * Characters escapable in kramdown and PublishR.
+     */
+    static final String KRAMDOWN_ESCAPABLE = "\\.*_+-`()[]{}#!:|\"'$=<>^~";
+
+    /**
+     * Escapable characters in plain shortcut mode (pre 1.0 format).
+     */
+    static final String ASTERISK_ESCAPABLE = "*";
+
+    private static final char MASK_BASE = '\uFDD0';
+    private static final char MASK_LAST = '\uFDEF';
+    private static final char MASK_END = (char) (MASK_BASE + KRAMDOWN_ESCAPABLE.length());
+
+    /**
+     * Mask escaped characters.
+     * @param text source text
+     * @param escapable characters which can be escaped
+     * @return masked text or the same instance if there are no escapes
+     */
+    static String mask(final String text, final String escapable) {
+        int i = text.indexOf('\\');
+        if (i < 0) {
+            return text;
+        }
+        char[] chars = null;
+        while (i >= 0 && i < text.length() - 1) {
+            int index = escapable.indexOf(text.charAt(i + 1));
+            if (index >= 0) {
+                if (chars == null) {
+                    chars = text.toCharArray();
+                }
+                int maskIndex = KRAMDOWN_ESCAPABLE.indexOf(escapable.charAt(index));
+                chars[i + 1] = (char) (MASK_BASE + maskIndex);
+                // Escaped character cannot start another escape
+                i = text.indexOf('\\', i + 2);
+            } else {
+                i = text.indexOf('\\', i + 1);
+            }
+        }
+        if (chars == null) {
+            return text;
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Restore escaped characters.
+     * @param text masked text
+     * @return unmasked text or the same instance if nothing is masked
+     */
+    static String unmask(final String text) {
+        char[] chars = null;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c >= MASK_BASE && c < MASK_END) {
+                if (chars == null) {
+                    chars = text.toCharArray();
+                }
+                chars[i] = KRAMDOWN_ESCAPABLE.charAt(c - MASK_BASE);
+            }
+        }
+        if (chars == null) {
+            return text;
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Check if character is reserved for escape masks or placeholder tags.
+     * Text containing it cannot be converted and restored safely.
+     * @param c character
+     * @return true for noncharacters used by masks and placeholders
+     */
+    static boolean isReserved(final char c) {
+        return c >= MASK_BASE && c <= MASK_LAST
+                || c == ElementProcessor.PLACEHOLDER_START || c == ElementProcessor.PLACEHOLDER_END;
+    }
+
+    /**
+     * Do not allow instances of this class.
+     */
+    private EscapeMask() {
+
+    }
+}
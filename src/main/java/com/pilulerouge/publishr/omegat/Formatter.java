@@ -22,9 +22,17 @@
 package com.pilulerouge.publishr.omegat;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.EnumSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.stream.Collectors;
 
 
 /**
@@ -34,17 +42,37 @@ public class Formatter {
 
     private static final String CORK = "@@";
 
+    // Compiled formatters by element profile, documents get copies of them
+    private static final ConcurrentMap<Set<Element>, Formatter> COMPILED =
+            new ConcurrentHashMap<>();
+
+    private final Set<Element> enabledElements;
     private final Map<Element, ElementProcessor> processorMap;
 
+    // Processors in conversion order with their trigger bit masks
+    private final Element[] elements;
+    private final ElementProcessor[] processors;
+    private final long[] triggerMasks;
+    private final AhoCorasick triggerAutomaton;
+
+    // How many times each processor was skipped by trigger prefilter,
+    // shared by all copies of compiled formatter
+    private final AtomicLongArray skipCounts;
+
     /**
      * Constructor.
+     * @param enabledElements elements to convert, others are left as plain text
      */
-    public Formatter() {
+    public Formatter(final Set<Element> enabledElements) {
+        Set<Element> elementSet = EnumSet.noneOf(Element.class);
+        elementSet.addAll(enabledElements);
+        this.enabledElements = Collections.unmodifiableSet(elementSet);
         processorMap = new LinkedHashMap<>();
 
         addProcessor(
                 Element.STRONG,
-                "(?<!\\\\)(\\*{2})(?!\\s)(.+?)(?<![\\s\\\\])(\\*{2})",
+                "(\\*{2})(?!\\s)(.+?)(?<!\\s)(\\*{2})",
+                "*",
                 "e2",
                 2,
                 0,
@@ -53,7 +81,8 @@ public class Formatter {
 
         addProcessor(
                 Element.EMPHASIS,
-                "(?<!\\\\)(\\*{1})(?!\\s)(.+?)(?<![\\s\\\\])(\\*{1})",
+                "(\\*{1})(?!\\s)(.+?)(?<!\\s)(\\*{1})",
+                "*",
                 "e1",
                 2,
                 0,
@@ -63,6 +92,7 @@ public class Formatter {
         addProcessor(
                 Element.FOOTNOTE,
                 "(\\[\\^.+?\\])",
+                "[^",
                 "f",
                 0,
                 0,
@@ -71,7 +101,8 @@ public class Formatter {
 
         addProcessor(
                 Element.SEPARATOR,
-                "(?<!\\\\)(\\|)",
+                "(\\|)",
+                "|",
                 "s1",
                 0,
                 0,
@@ -81,6 +112,7 @@ public class Formatter {
         addProcessor(
                 Element.SUPERSCRIPT,
                 "(\\^)(.+?)(\\^)",
+                "^",
                 "s2",
                 2,
                 0,
@@ -90,6 +122,7 @@ public class Formatter {
         addProcessor(
                 Element.SUBSCRIPT,
                 "(~)(.+?)(~)",
+                "~",
                 "s3",
                 2,
                 0,
@@ -99,6 +132,7 @@ public class Formatter {
         addProcessor(
                 Element.NAME,
                 "(name\\()(.+?)(\\))",
+                "name(",
                 "n1",
                 2,
                 0,
@@ -108,6 +142,7 @@ public class Formatter {
         addProcessor(
                 Element.TITLE,
                 "(title\\()(.+?)(\\))",
+                "title(",
                 "t1",
                 2,
                 0,
@@ -117,6 +152,7 @@ public class Formatter {
         addProcessor(
                 Element.IMAGE,
                 "(\\!\\[)(.*?)(\\]\\(.+?\\))",
+                "![",
                 "i",
                 2,
                 0,
@@ -126,41 +162,219 @@ public class Formatter {
         addProcessor(
                 Element.LINK,
                 "(\\[)(.+?)(\\]\\()(.+?)(\\))",
+                "](",
                 "a",
                 2,
                 4,
                 null,
                 null);
+
+        // Build trigger prefilter
+        elements = processorMap.keySet().toArray(new Element[0]);
+        processors = processorMap.values().toArray(new ElementProcessor[0]);
+        List<String> triggers = processorMap.values().stream()
+                .map(ElementProcessor::getTrigger)
+                .distinct()
+                .collect(Collectors.toList());
+        triggerAutomaton = new AhoCorasick(triggers.toArray(new String[0]));
+        triggerMasks = new long[processors.length];
+        for (int i = 0; i < processors.length; i++) {
+            triggerMasks[i] = 1L << triggers.indexOf(processors[i].getTrigger());
+        }
+        skipCounts = new AtomicLongArray(processors.length);
+    }
+
+    /**
+     * Create formatter sharing patterns, trigger prefilter and skip counts
+     * of compiled one, with its own shortcut numbering.
+     * @param compiled compiled formatter
+     */
+    private Formatter(final Formatter compiled) {
+        enabledElements = compiled.enabledElements;
+        elements = compiled.elements;
+        triggerMasks = compiled.triggerMasks;
+        triggerAutomaton = compiled.triggerAutomaton;
+        skipCounts = compiled.skipCounts;
+        processorMap = new LinkedHashMap<>();
+        processors = new ElementProcessor[compiled.processors.length];
+        for (int i = 0; i < processors.length; i++) {
+            processors[i] = compiled.processors[i].copy();
+            processorMap.put(elements[i], processors[i]);
+        }
+    }
+
+    /**
+     * Get formatter for a single document. Patterns are compiled once for
+     * every element profile, shortcut numbering belongs to the document.
+     * @param enabledElements elements to convert
+     * @return new formatter
+     */
+    static Formatter forDocument(final Set<Element> enabledElements) {
+        Set<Element> key = EnumSet.noneOf(Element.class);
+        key.addAll(enabledElements);
+        return new Formatter(COMPILED.computeIfAbsent(key, Formatter::new));
+    }
+
+    /**
+     * Get skip counts of all documents converted by formatters from
+     * {@link #forDocument}, summed over element profiles.
+     * @return skip counts by element
+     */
+    static Map<Element, Long> getTotalSkipCounts() {
+        Map<Element, Long> result = new EnumMap<>(Element.class);
+        for (Formatter compiled : COMPILED.values()) {
+            for (Map.Entry<Element, Long> e : compiled.getSkipCounts().entrySet()) {
+                result.merge(e.getKey(), e.getValue(), Long::sum);
+            }
+        }
+        return result;
     }
 
-    private void addProcessor(final Element element, final String re, final String shortcutName,
-                             final int textGroup, final int extraGroup,
+    private void addProcessor(final Element element, final String re, final String trigger,
+                             final String shortcutName, final int textGroup, final int extraGroup,
                              final String left, final String right) {
 
-        ElementProcessor processor = new ElementProcessor(re, shortcutName, textGroup, extraGroup,
-                left, right);
+        if (!enabledElements.contains(element)) {
+            return;
+        }
+        ElementProcessor processor = new ElementProcessor(re, trigger, shortcutName, textGroup,
+                extraGroup, left, right);
         processorMap.put(element, processor);
     }
 
     /**
-     * Reset all converters.
+     * Get elements this formatter was built for.
+     * @return enabled elements
+     */
+    Set<Element> getElements() {
+        return enabledElements;
+    }
+
+    /**
+     * Check if element is enabled in this formatter.
+     * @param element element
+     * @return true if element is processed
+     */
+    boolean hasElement(final Element element) {
+        return enabledElements.contains(element);
+    }
+
+    /**
+     * Set skip counts of all compiled formatters to zero.
+     */
+    static void resetTotalSkipCounts() {
+        for (Formatter compiled : COMPILED.values()) {
+            for (int i = 0; i < compiled.skipCounts.length(); i++) {
+                compiled.skipCounts.set(i, 0);
+            }
+        }
+    }
+
+    /**
+     * Reset shortcut numbering of all converters. Skip counts are kept.
      */
     void resetConverters() {
         processorMap.values().forEach(ElementProcessor::reset);
     }
 
+    /**
+     * Get number of times each element processor was skipped because its
+     * trigger literal was not found in text. Copies made for documents
+     * count together with their compiled formatter.
+     * @return skip counts by element
+     */
+    Map<Element, Long> getSkipCounts() {
+        Map<Element, Long> result = new LinkedHashMap<>();
+        for (int i = 0; i < elements.length; i++) {
+            result.put(elements[i], skipCounts.get(i));
+        }
+        return result;
+    }
+
     /**
      * Substitute original formatting with shortcuts.
+     * Escaped characters are masked before matching, so they never form elements.
+     * Only processors whose trigger literals are found in text are run.
+     * Shortcuts never contain trigger literals so skipping is safe.
      * @param text text with original formatting
      * @param extras element specific extra strings
      * @return text with shortcuts
      */
     String toShortcuts(final String text, final Map<String, String> extras) {
-        String result = text;
-        for (ElementProcessor converter : processorMap.values()) {
-            result = converter.toShortcuts(result, extras);
+        return bind(convert(text), extras);
+    }
+
+    /**
+     * First half of {@link #toShortcuts}: find elements and replace them with
+     * placeholder tags. Does not change converter state, so different texts
+     * can be converted concurrently.
+     * @param text text with original formatting
+     * @return conversion waiting for shortcut names
+     */
+    Conversion convert(final String text) {
+        List<ElementProcessor.PendingShortcut> pending = new ArrayList<>();
+        String result = EscapeMask.mask(text, EscapeMask.KRAMDOWN_ESCAPABLE);
+        long triggers = triggerAutomaton.scan(result);
+        for (int i = 0; i < processors.length; i++) {
+            if ((triggers & triggerMasks[i]) == 0) {
+                skipCounts.incrementAndGet(i);
+                continue;
+            }
+            result = processors[i].match(result, pending);
         }
-        return result;
+        if (result != text) {
+            result = EscapeMask.unmask(result);
+        }
+        return new Conversion(result, pending);
+    }
+
+    /**
+     * Second half of {@link #toShortcuts}: assign shortcut names. Must be
+     * called in document order because shortcut numbering is sequential.
+     * @param conversion converted text
+     * @param extras element specific extra strings
+     * @return text with shortcuts
+     */
+    String bind(final Conversion conversion, final Map<String, String> extras) {
+        return bind(conversion, extras, null);
+    }
+
+    /**
+     * Same as {@link #bind(Conversion, Map)}, also collects every shortcut
+     * tag of text with original formatting it stands for.
+     * @param conversion converted text
+     * @param extras element specific extra strings
+     * @param tags tag to original formatting map, may be null
+     * @return text with shortcuts
+     */
+    String bind(final Conversion conversion, final Map<String, String> extras,
+                final Map<String, String> tags) {
+        List<ElementProcessor.PendingShortcut> pending = conversion.pending;
+        if (pending.isEmpty()) {
+            return conversion.text;
+        }
+        String[] names = new String[pending.size()];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = pending.get(i).bind(names, extras);
+            if (tags != null) {
+                pending.get(i).addTags(names[i], names, tags);
+            }
+        }
+        return ElementProcessor.resolveNames(conversion.text, names);
+    }
+
+    /**
+     * Get element of a match found by this formatter.
+     * @param shortcut match
+     * @return element
+     */
+    Element getElement(final ElementProcessor.PendingShortcut shortcut) {
+        for (int i = 0; i < processors.length; i++) {
+            if (processors[i] == shortcut.getProcessor()) {
+                return elements[i];
+            }
+        }
+        throw new IllegalArgumentException("Shortcut of another formatter");
     }
 
     /**
@@ -170,6 +384,10 @@ public class Formatter {
      * @return text with original formatting
      */
     String toOriginal(final String text, final Map<String, String> extras) {
+        // Every shortcut starts with '<'
+        if (text.indexOf('<') < 0) {
+            return text;
+        }
         String result = text;
         for (ElementProcessor converter : processorMap.values()) {
             result = converter.toOriginal(result, extras);
@@ -202,7 +420,8 @@ public class Formatter {
                                            final boolean findOriginal,
                                            final boolean findShortcuts) {
 
-        String text = input;
+        // Masking keeps offsets so spans match input text
+        String text = EscapeMask.mask(input, EscapeMask.KRAMDOWN_ESCAPABLE);
 
         if (!findOriginal && !findShortcuts) {
             return null;
@@ -211,9 +430,18 @@ public class Formatter {
         List<FormatSpan> result = new ArrayList<>();
         FormatSignature[] layout = new FormatSignature[text.length()];
 
-        for (Map.Entry<Element, ElementProcessor> entry : processorMap.entrySet()) {
-            Element element = entry.getKey();
-            ElementProcessor converter = entry.getValue();
+        // Shortcuts have no trigger literals, prefilter works only for original formatting
+        long triggers = -1L;
+        if (!findShortcuts) {
+            triggers = triggerAutomaton.scan(text);
+        }
+
+        for (int p = 0; p < processors.length; p++) {
+            if ((triggers & triggerMasks[p]) == 0) {
+                continue;
+            }
+            Element element = elements[p];
+            ElementProcessor converter = processors[p];
             List<FormatSpan> hits = converter.getFormatStructure(text, findOriginal, findShortcuts);
 
             for (FormatSpan span : hits) {
@@ -272,4 +500,35 @@ public class Formatter {
 
         return result;
     }
+
+    /**
+     * Text converted by {@link #convert} with matches waiting for shortcut names.
+     */
+    static final class Conversion {
+
+        private final String text;
+        private final List<ElementProcessor.PendingShortcut> pending;
+
+        private Conversion(final String text,
+                           final List<ElementProcessor.PendingShortcut> pending) {
+            this.text = text;
+            this.pending = pending;
+        }
+
+        /**
+         * Get text with placeholder tags.
+         * @return converted text
+         */
+        String getText() {
+            return text;
+        }
+
+        /**
+         * Get matches by placeholder index.
+         * @return matches
+         */
+        List<ElementProcessor.PendingShortcut> getPending() {
+            return pending;
+        }
+    }
 }
@@ -40,21 +40,45 @@ import java.util.regex.Matcher;
  */
 class Highlighter implements IMarker {
 
-    private AttributeSet tagAttributes;
-    private AttributeSet textAttributes;
-    private final Map<Integer, AttributeSet> highlightAttrs;
+    /**
+     * Text styles of marks. Styles are replaced as a whole, so marks never
+     * get tag and text styles of different settings.
+     */
+    private static final class MarkStyles {
+
+        private final AttributeSet tagAttributes;
+        private final AttributeSet textAttributes;
+
+        MarkStyles(final AttributeSet tagAttributes, final AttributeSet textAttributes) {
+            this.tagAttributes = tagAttributes;
+            this.textAttributes = textAttributes;
+        }
+
+        /**
+         * Get style of extra footnote group.
+         * @param group group of {@link Util#EF_PATTERN}: tag, text, tag
+         * @return style
+         */
+        AttributeSet getGroupAttributes(final int group) {
+            if (group == 2) {
+                return textAttributes;
+            }
+            return tagAttributes;
+        }
+    }
+
+    /**
+     * Styles are written by filter and settings dialog and read by editor
+     * thread, null until options become available.
+     */
+    private volatile MarkStyles styles;
     private final Map<Element, String> tooltipElementMap;
-    private boolean stylesAreSet;
 
     /**
      * Constructor.
      */
     Highlighter() {
 
-        stylesAreSet = false;
-
-        highlightAttrs = new HashMap<>();
-
         // Build reverse element/text map for tooltips
         tooltipElementMap = new HashMap<>();
         Util.FORMAT_ELEMENT_MAP.entrySet().forEach(
@@ -69,14 +93,15 @@ class Highlighter implements IMarker {
      * @param options plugin options
      * @param force force styles updating (when changed through settings dialog)
      */
-    void setupStyles(final Map<String, String> options, final boolean force) {
+    synchronized void setupStyles(final Map<String, String> options, final boolean force) {
 
         if (options == null || options.isEmpty()) {
             return;
         }
 
-        // Avoid redundant work.
-        if (stylesAreSet && !force) {
+        // Avoid redundant work. Checked under lock, so styles from settings
+        // dialog are never overwritten by older options of a file being processed.
+        if (styles != null && !force) {
             return;
         }
 
@@ -86,14 +111,9 @@ class Highlighter implements IMarker {
         Color textColor = Color.decode(
                 options.getOrDefault(Util.EXTRA_TEXT_COLOR, Util.DEFAULT_EXTRA_TEXT_COLOR));
 
-        // Create and store text styles
-        tagAttributes = Styles.createAttributeSet(tagColor, null, null, null);
-        textAttributes = Styles.createAttributeSet(textColor, null, null, null);
-        highlightAttrs.put(1, tagAttributes);
-        highlightAttrs.put(2, textAttributes);
-        highlightAttrs.put(3, tagAttributes);
-
-        stylesAreSet = true;
+        // Create and publish text styles
+        styles = new MarkStyles(Styles.createAttributeSet(tagColor, null, null, null),
+                Styles.createAttributeSet(textColor, null, null, null));
     }
 
     public List<Mark> getMarksForEntry(final SourceTextEntry ste, final String sourceText,
@@ -102,8 +122,23 @@ class Highlighter implements IMarker {
         if (translationText == null || !Util.isPublishrFile()) {
             return null;
         }
+        return getMarks(translationText);
+    }
+
+    /**
+     * Find marks of extra footnotes and original formatting in translation.
+     * @param translationText translation
+     * @return marks
+     */
+    List<Mark> getMarks(final String translationText) {
 
         List<Mark> result = new ArrayList<>();
+        // Read once, all marks get styles of the same settings
+        MarkStyles currentStyles = styles;
+        AttributeSet tagAttributes = null;
+        if (currentStyles != null) {
+            tagAttributes = currentStyles.tagAttributes;
+        }
 
         // Extra footnotes
         Matcher matcher = Util.EF_PATTERN.matcher(translationText);
@@ -113,7 +148,9 @@ class Highlighter implements IMarker {
                     Mark mark = new Mark(Mark.ENTRY_PART.TRANSLATION, matcher.start(g),
                             matcher.end(g));
                     mark.painter = null;
-                    mark.attributes = highlightAttrs.get(g);
+                    if (currentStyles != null) {
+                        mark.attributes = currentStyles.getGroupAttributes(g);
+                    }
                     mark.toolTipText = Util.RB.getString("FOOTNOTE_HINT");
                     result.add(mark);
                 }
@@ -121,7 +158,7 @@ class Highlighter implements IMarker {
         }
 
         // Original formatting
-        List<FormatSpan> spans = Util.FORMATTER.parseStructure(translationText, true, false);
+        List<FormatSpan> spans = Util.getFormatter().parseStructure(translationText, true, false);
         for (FormatSpan span : spans) {
             if (span.getSignature().getType() == BlockType.ELEMENT) {
                 Mark mark = new Mark(Mark.ENTRY_PART.TRANSLATION, span.getBegin(), span.getEnd());
@@ -0,0 +1,443 @@
+/**************************************************************************
+ PublishR file filter for OmegaT
+
+ Copyright (C) 2018 Lev Abashkin
+
+ This file is NOT a part of OmegaT.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ **************************************************************************/
+
+
+package com.pilulerouge.publishr.omegat;
+
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Renders PublishR documents to HTML for preview.
+ * Paragraphs are found the same way the filter finds them and inline
+ * elements are matched by the filter's formatter. Rendered paragraphs are
+ * cached by their source text, so rendering a new version of a document
+ * converts only paragraphs that changed since the previous version.
+ * Instances are not thread safe, use one renderer per document.
+ */
+final class HtmlRenderer {
+
+    private static final String HEADER = "<!DOCTYPE html>\n<html>\n<head>\n"
+            + "<meta charset=\"utf-8\">\n<title>%s</title>\n<style>\n"
+            + ".name { font-variant: small-caps; }\n"
+            + ".line-number { color: #888; }\n"
+            + ".footnote { font-size: smaller; }\n"
+            + "</style>\n</head>\n<body>\n";
+    private static final String FOOTER = "</body>\n</html>\n";
+
+    private static final String PARAGRAPH = "p";
+    private static final String TABLE = "table";
+    private static final String ORDERED_LIST = "ol";
+    private static final String UNORDERED_LIST = "ul";
+
+    /*
+     Opening and closing HTML of elements that only wrap text.
+     */
+    private static final Map<Element, String[]> WRAPPING_TAGS = new EnumMap<>(Element.class);
+    static {
+        WRAPPING_TAGS.put(Element.EMPHASIS, new String[] {"<em>", "</em>"});
+        WRAPPING_TAGS.put(Element.STRONG, new String[] {"<strong>", "</strong>"});
+        WRAPPING_TAGS.put(Element.NAME, new String[] {"<span class=\"name\">", "</span>"});
+        WRAPPING_TAGS.put(Element.TITLE, new String[] {"<cite>", "</cite>"});
+        WRAPPING_TAGS.put(Element.SUPERSCRIPT, new String[] {"<sup>", "</sup>"});
+        WRAPPING_TAGS.put(Element.SUBSCRIPT, new String[] {"<sub>", "</sub>"});
+    }
+
+    private final Formatter formatter;
+
+    // Rendered paragraphs of previous document version by source text
+    private Map<String, String> cache = new HashMap<>();
+    private int paragraphCount;
+    private int renderedCount;
+
+    /**
+     * Block structure found in line prefix.
+     */
+    private static final class LinePrefix {
+        private int quoteDepth;
+        private int headingLevel;
+        private String list;
+        private String footnote;
+        private String lineNumber;
+
+        /**
+         * Parse block prefix of a line.
+         * @param prefix prefix found by document model
+         * @return parsed prefix
+         */
+        static LinePrefix parse(final String prefix) {
+            LinePrefix result = new LinePrefix();
+            int i = 0;
+            while (i < prefix.length()) {
+                char c = prefix.charAt(i);
+                if (c == '>') {
+                    result.quoteDepth++;
+                    i++;
+                } else if (c == '#') {
+                    while (i < prefix.length() && prefix.charAt(i) == '#') {
+                        result.headingLevel++;
+                        i++;
+                    }
+                    // Heading marks may be followed by asterisks
+                    while (i < prefix.length() && prefix.charAt(i) == '*') {
+                        i++;
+                    }
+                } else if (prefix.startsWith("[^", i) && prefix.indexOf("]:", i) > 0) {
+                    int end = prefix.indexOf("]:", i);
+                    result.footnote = prefix.substring(i + 2, end);
+                    i = end + 2;
+                } else if (prefix.startsWith("{L", i) && prefix.indexOf('}', i) > 0) {
+                    int end = prefix.indexOf('}', i);
+                    result.lineNumber = prefix.substring(i + 2, end);
+                    i = end + 1;
+                } else if (c == '*') {
+                    result.list = UNORDERED_LIST;
+                    i++;
+                } else if (Character.isDigit(c)) {
+                    while (i < prefix.length() && Character.isDigit(prefix.charAt(i))) {
+                        i++;
+                    }
+                    result.list = ORDERED_LIST;
+                    i++;
+                } else {
+                    i++;
+                }
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Constructor.
+     * @param elements inline elements to render, others are left as text
+     */
+    HtmlRenderer(final Set<Element> elements) {
+        formatter = new Formatter(elements);
+    }
+
+    /**
+     * Get number of paragraphs in last rendered document.
+     * @return paragraph count
+     */
+    int getParagraphCount() {
+        return paragraphCount;
+    }
+
+    /**
+     * Get number of paragraphs converted by last render, others
+     * were taken from cache.
+     * @return rendered paragraph count
+     */
+    int getRenderedCount() {
+        return renderedCount;
+    }
+
+    /**
+     * Render document to HTML page. Only paragraphs of previous document
+     * are kept in cache, so its size follows document size.
+     * @param document document
+     * @param title page title
+     * @return HTML page
+     */
+    String render(final PublishrDocument document, final String title) {
+        StringBuilder html = new StringBuilder(String.format(HEADER, escape(title)));
+        Map<String, String> rendered = new HashMap<>();
+        paragraphCount = 0;
+        renderedCount = 0;
+        int[] chunks = document.getParagraphChunks(1);
+        for (int c = 0; c < chunks.length - 1; c++) {
+            if (chunks[c] == chunks[c + 1]) {
+                continue;
+            }
+            String source = document.getText(chunks[c], chunks[c + 1]);
+            String paragraph = rendered.get(source);
+            if (paragraph == null) {
+                paragraph = cache.get(source);
+            }
+            if (paragraph == null) {
+                paragraph = renderParagraph(document, chunks[c], chunks[c + 1]);
+                renderedCount++;
+            }
+            rendered.put(source, paragraph);
+            html.append(paragraph);
+            paragraphCount++;
+        }
+        cache = rendered;
+        html.append(FOOTER);
+        return html.toString();
+    }
+
+    /**
+     * Render lines of a single paragraph.
+     */
+    private String renderParagraph(final PublishrDocument document, final int from,
+                                   final int to) {
+        StringBuilder out = new StringBuilder();
+        String container = null;
+        int quoteDepth = 0;
+        for (int line = from; line < to; line++) {
+            if (document.getKind(line) != PublishrDocument.LINE_TEXT) {
+                continue;
+            }
+            LinePrefix prefix = LinePrefix.parse(document.getPrefix(line));
+            if (prefix.quoteDepth != quoteDepth) {
+                container = close(container, out);
+                quoteDepth = nestQuotes(quoteDepth, prefix.quoteDepth, out);
+            }
+            String content = document.getContent(line);
+
+            if (prefix.headingLevel > 0) {
+                container = close(container, out);
+                int level = Math.min(prefix.headingLevel, 6);
+                out.append("<h").append(level).append('>');
+                renderInline(content, false, out);
+                out.append("</h").append(level).append(">\n");
+                continue;
+            }
+            if (prefix.footnote != null) {
+                container = close(container, out);
+                out.append("<div class=\"footnote\" id=\"fn-")
+                        .append(escape(prefix.footnote)).append("\"><sup>")
+                        .append(escape(prefix.footnote)).append("</sup> ");
+                renderInline(content, false, out);
+                out.append("</div>\n");
+                continue;
+            }
+
+            String trimmed = content.trim();
+            String block = PARAGRAPH;
+            if (prefix.list != null) {
+                block = prefix.list;
+            } else if (trimmed.startsWith("|")) {
+                block = TABLE;
+            }
+            if (block.equals(container)) {
+                if (PARAGRAPH.equals(block)) {
+                    out.append('\n');
+                }
+            } else {
+                close(container, out);
+                container = block;
+                out.append('<').append(container).append('>');
+                if (!PARAGRAPH.equals(container)) {
+                    out.append('\n');
+                }
+            }
+
+            if (TABLE.equals(block)) {
+                out.append("<tr><td>");
+                renderInline(trimTableRow(trimmed), true, out);
+                out.append("</td></tr>\n");
+                continue;
+            }
+            if (prefix.list != null) {
+                out.append("<li>");
+            }
+            if (prefix.lineNumber != null) {
+                out.append("<span class=\"line-number\">")
+                        .append(escape(prefix.lineNumber)).append("</span> ");
+            }
+            renderInline(content, false, out);
+            if (prefix.list != null) {
+                out.append("</li>\n");
+            }
+        }
+        close(container, out);
+        nestQuotes(quoteDepth, 0, out);
+        return out.toString();
+    }
+
+    /**
+     * Open or close block quotes to reach depth.
+     * @return new depth
+     */
+    private static int nestQuotes(final int depth, final int newDepth, final StringBuilder out) {
+        for (int i = depth; i < newDepth; i++) {
+            out.append("<blockquote>\n");
+        }
+        for (int i = newDepth; i < depth; i++) {
+            out.append("</blockquote>\n");
+        }
+        return newDepth;
+    }
+
+    /**
+     * Close block container.
+     * @return null
+     */
+    private static String close(final String container, final StringBuilder out) {
+        if (container != null) {
+            if (PARAGRAPH.equals(container)) {
+                out.append("</p>\n");
+            } else {
+                out.append("</").append(container).append(">\n");
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Remove separators at the start and the end of table row.
+     */
+    private static String trimTableRow(final String row) {
+        int start = 0;
+        int end = row.length();
+        if (row.startsWith("|")) {
+            start = 1;
+        }
+        if (end > start && row.endsWith("|") && !row.endsWith("\\|")) {
+            end--;
+        }
+        return row.substring(start, end);
+    }
+
+    /**
+     * Render inline elements of line content.
+     * @param content line content
+     * @param table true if column separators start new table cells
+     * @param out output
+     */
+    private void renderInline(final String content, final boolean table,
+                              final StringBuilder out) {
+        Formatter.Conversion conversion = formatter.convert(content);
+        String text = conversion.getText();
+        List<ElementProcessor.PendingShortcut> pending = conversion.getPending();
+        int length = text.length();
+        int i = 0;
+        while (i < length) {
+            char c = text.charAt(i);
+            if (c == '<') {
+                int j = i + 1;
+                boolean closing = j < length && text.charAt(j) == '/';
+                if (closing) {
+                    j++;
+                }
+                if (j < length && text.charAt(j) == ElementProcessor.PLACEHOLDER_START) {
+                    int end = text.indexOf(ElementProcessor.PLACEHOLDER_END, j);
+                    ElementProcessor.PendingShortcut shortcut =
+                            pending.get(Integer.parseInt(text.substring(j + 1, end)));
+                    int tagEnd = text.indexOf('>', end);
+                    renderTag(shortcut, closing, table, out);
+                    i = tagEnd + 1;
+                    continue;
+                }
+            }
+            if (c == '\\' && i + 1 < length
+                    && EscapeMask.KRAMDOWN_ESCAPABLE.indexOf(text.charAt(i + 1)) >= 0) {
+                // Escaped character is shown without backslash
+                i++;
+                c = text.charAt(i);
+            }
+            appendEscaped(c, out);
+            i++;
+        }
+    }
+
+    /**
+     * Render opening, closing or self-closing tag of element.
+     */
+    private void renderTag(final ElementProcessor.PendingShortcut shortcut,
+                           final boolean closing, final boolean table,
+                           final StringBuilder out) {
+        Element element = formatter.getElement(shortcut);
+        String[] tags = WRAPPING_TAGS.get(element);
+        if (tags != null) {
+            if (closing) {
+                out.append(tags[1]);
+            } else {
+                out.append(tags[0]);
+            }
+            return;
+        }
+        switch (element) {
+            case LINK:
+                if (closing) {
+                    out.append("</a>");
+                } else {
+                    out.append("<a href=\"").append(escape(shortcut.getExtraText()))
+                            .append("\">");
+                }
+                break;
+            case IMAGE:
+                if (closing) {
+                    out.append("</span>");
+                } else {
+                    // Last label is "](url)"
+                    String label = shortcut.getLastLabel();
+                    String url = label.substring(2, label.length() - 1);
+                    out.append("<span class=\"image\"><img src=\"").append(escape(url))
+                            .append("\" alt=\"\"/>");
+                }
+                break;
+            case FOOTNOTE:
+                // Label is "[^id]"
+                String label = shortcut.getFirstLabel();
+                String id = escape(label.substring(2, label.length() - 1));
+                out.append("<sup class=\"footnote-ref\"><a href=\"#fn-").append(id)
+                        .append("\">").append(id).append("</a></sup>");
+                break;
+            case SEPARATOR:
+                if (table) {
+                    out.append("</td><td>");
+                } else {
+                    out.append('|');
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Escape text for HTML content and attribute values.
+     * @param text text
+     * @return escaped text
+     */
+    static String escape(final String text) {
+        StringBuilder out = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            appendEscaped(text.charAt(i), out);
+        }
+        return out.toString();
+    }
+
+    private static void appendEscaped(final char c, final StringBuilder out) {
+        switch (c) {
+            case '&':
+                out.append("&amp;");
+                break;
+            case '<':
+                out.append("&lt;");
+                break;
+            case '>':
+                out.append("&gt;");
+                break;
+            case '"':
+                out.append("&quot;");
+                break;
+            default:
+                out.append(c);
+        }
+    }
+}
@@ -0,0 +1,118 @@
+/**************************************************************************
+ PublishR file filter for OmegaT
+
+ Copyright (C) 2018 Lev Abashkin
+
+ This file is NOT a part of OmegaT.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ **************************************************************************/
+
+package com.pilulerouge.publishr.omegat;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Writes every segment as a JSON object on its own line.
+ */
+final class JsonLinesSegmentWriter implements SegmentWriter {
+
+    private final Writer out;
+    private String path;
+
+    /**
+     * Constructor.
+     * @param out output, closed with this writer
+     */
+    JsonLinesSegmentWriter(final Writer out) {
+        this.out = out;
+    }
+
+    @Override
+    public void startFile(final String filePath) throws IOException {
+        path = filePath;
+    }
+
+    @Override
+    public void writeSegment(final int id, final String source, final String comment,
+                             final String shortcut) throws IOException {
+        out.write("{\"file\":");
+        writeString(path);
+        out.write(",\"id\":");
+        out.write(Integer.toString(id));
+        out.write(",\"source\":");
+        writeString(source);
+        if (comment != null && shortcut == null) {
+            out.write(",\"comment\":");
+            writeString(comment);
+        }
+        if (shortcut != null) {
+            out.write(",\"extraOf\":");
+            writeString(shortcut);
+        }
+        out.write("}\n");
+    }
+
+    @Override
+    public void endFile() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+
+    private void writeString(final String value) throws IOException {
+        writeString(out, value);
+    }
+
+    /**
+     * Write JSON string literal.
+     * @param out output
+     * @param value string value
+     * @throws IOException on write error
+     */
+    static void writeString(final Writer out, final String value) throws IOException {
+        out.write('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    out.write("\\\"");
+                    break;
+                case '\\':
+                    out.write("\\\\");
+                    break;
+                case '\n':
+                    out.write("\\n");
+                    break;
+                case '\r':
+                    out.write("\\r");
+                    break;
+                case '\t':
+                    out.write("\\t");
+                    break;
+                default:
+                    if (c < ' ') {
+                        out.write(String.format("\\u%04x", (int) c));
+                    } else {
+                        out.write(c);
+                    }
+            }
+        }
+        out.write('"');
+    }
+}
@@ -0,0 +1,58 @@
+/**************************************************************************
+ PublishR file filter for OmegaT
+
+ Copyright (C) 2018 Lev Abashkin
+
+ This file is NOT a part of OmegaT.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ **************************************************************************/
+
+
+package com.pilulerouge.publishr.omegat;
+
+/**
+ * Receives document structure found by the filter while it processes a file,
+ * so statistics and indexes are built without another scan.
+ */
+interface ParseObserver {
+
+    /**
+     * Start of a document.
+     * @param document document model
+     */
+    void startDocument(PublishrDocument document);
+
+    /**
+     * Segment of a text line.
+     * @param line line index
+     * @param text segment text with shortcuts
+     */
+    void addSegment(int line, String text);
+
+    /**
+     * Formatting element found in text line.
+     * @param line line index
+     * @param element element type
+     * @param match element match with its original formatting
+     */
+    void addElement(int line, Element element, ElementProcessor.PendingShortcut match);
+
+    /**
+     * Extra string segment of a text line.
+     * @param line line index
+     * @param text extra string
+     */
+    void addExtra(int line, String text);
+}
@@ -103,14 +103,18 @@ public class PopupMenuConstructor implements IPopupMenuConstructor {
         pluginSubMenu.addSeparator();
 
         /* Original formatting items */
+        Formatter formatter = Util.getFormatter();
         for (Map.Entry<String, Element> entry : Util.FORMAT_ELEMENT_MAP.entrySet()) {
+            if (!formatter.hasElement(entry.getValue())) {
+                continue;
+            }
             JMenuItem item = new JMenuItem();
             item.setText(Util.RB.getString(entry.getKey()));
             StringBuilder builder = new StringBuilder();
             if (selection.startsWith(" ")) {
                 builder.append(" ");
             }
-            String formattedSelection = Util.FORMATTER.applyElement(selection.trim(), entry.getValue());
+            String formattedSelection = formatter.applyElement(selection.trim(), entry.getValue());
             builder.append(formattedSelection);
             if (selection.endsWith(" ")) {
                 builder.append(" ");
@@ -0,0 +1,1101 @@
+/**************************************************************************
+ PublishR file filter for OmegaT
+
+ Copyright (C) 2018 Lev Abashkin
+
+ This file is NOT a part of OmegaT.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ **************************************************************************/
+
+package com.pilulerouge.publishr.omegat;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.omegat.core.data.ProtectedPart;
+import org.omegat.filters2.FilterContext;
+import org.omegat.filters2.IAlignCallback;
+import org.omegat.filters2.IFilter;
+import org.omegat.filters2.IParseCallback;
+import org.omegat.filters2.ITranslateCallback;
+import org.omegat.util.Language;
+
+
+/**
+ * Command line tool running PublishR filter without OmegaT user interface.
+ * OmegaT jar must be on class path.
+ */
+public final class PublishrCli {
+
+    private static final String USAGE = String.join("\n",
+            "Usage: java -cp OmegaT.jar:publishr.jar " + PublishrCli.class.getName()
+                    + " <command> [options] <input>",
+            "Commands:",
+            "  extract    write segments of .page files to XLIFF 1.2 or JSON Lines",
+            "  compile    write translated .page files using translations from TMX",
+            "  verify     check that identity translation gives back every file byte for byte",
+            "  stats      write word, segment and element counts of .page files",
+            "  qa         check translated .page files for broken markup",
+            "  preview    render translated .page files to HTML",
+            "  index      update index of formatting in .page files and run queries",
+            "  align      write TMX of .page files aligned with their translations",
+            "Options:",
+            "  -o <path>          output file or directory (required for directory input)",
+            "  -f <format>        xliff or jsonl for extract (default xliff),",
+            "                     csv or json for stats (default csv)",
+            "  -j <n>             number of worker threads, default number of processors",
+            "  -s <lang>          source language, default en",
+            "  -t <lang>          target language, default en",
+            "  -O <key>=<value>   filter option, e.g. -O plainShortcuts=true",
+            "  --tmx <file>       TMX with translations for compile",
+            "  --target <path>    translated file or directory for align",
+            "  -q <key>           index: print lines with key, e.g. element:TITLE,",
+            "                     domain:example.com, format:HEADING; key* lists keys",
+            "  -w <seconds>       preview: keep rendering changed files at this interval",
+            "  -p <n>             run in n worker processes, each with -j threads",
+            "                     (extract, compile, verify and qa)",
+            "  -J <option>        JVM option of worker processes, e.g. -J -Xmx2g",
+            "  --timeout <sec>    seconds a worker process may spend on a shard, default 600");
+
+    private static final String PAGE_EXTENSION = ".page";
+    private static final double MEGABYTE = 1024 * 1024;
+    private static final int DEFAULT_TIMEOUT_SECONDS = 600;
+
+    // Prints results of file tasks, standard output if not set
+    private static volatile Consumer<List<String>> resultPrinter;
+
+    /**
+     * Parsed command line.
+     */
+    static final class Options {
+        private String command;
+        private Path input;
+        private Path output;
+        private String format;
+        private int workers = Runtime.getRuntime().availableProcessors();
+        private String sourceLanguage = "en";
+        private String targetLanguage = "en";
+        private final Map<String, String> filterOptions = new HashMap<>();
+        private Path tmx;
+        private Path target;
+        private int processes;
+        private int timeoutSeconds = DEFAULT_TIMEOUT_SECONDS;
+        private int watchSeconds;
+        private final List<String> queries = new ArrayList<>();
+        private final List<String> jvmOptions = new ArrayList<>();
+        private boolean worker;
+        private String[] arguments;
+
+        /**
+         * Parse command line arguments.
+         * @param args arguments
+         * @return options
+         * @throws IllegalArgumentException on invalid arguments
+         */
+        static Options parse(final String[] args) {
+            Options options = new Options();
+            List<String> positional = new ArrayList<>();
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                if (!arg.startsWith("-") || arg.length() == 1) {
+                    positional.add(arg);
+                    continue;
+                }
+                if (i + 1 == args.length) {
+                    throw new IllegalArgumentException("Missing value of " + arg);
+                }
+                String value = args[++i];
+                switch (arg) {
+                    case "-o":
+                        options.output = Paths.get(value);
+                        break;
+                    case "-f":
+                        options.format = value;
+                        break;
+                    case "-j":
+                        options.workers = Integer.parseInt(value);
+                        break;
+                    case "-s":
+                        options.sourceLanguage = value;
+                        break;
+                    case "-t":
+                        options.targetLanguage = value;
+                        break;
+                    case "--tmx":
+                        options.tmx = Paths.get(value);
+                        break;
+                    case "--target":
+                        options.target = Paths.get(value);
+                        break;
+                    case "-p":
+                        options.processes = Integer.parseInt(value);
+                        break;
+                    case "-q":
+                        options.queries.add(value);
+                        break;
+                    case "-w":
+                        options.watchSeconds = Integer.parseInt(value);
+                        break;
+                    case "-J":
+                        options.jvmOptions.add(value);
+                        break;
+                    case "--timeout":
+                        options.timeoutSeconds = Integer.parseInt(value);
+                        break;
+                    case "-O":
+                        int eq = value.indexOf('=');
+                        if (eq < 1) {
+                            throw new IllegalArgumentException("Invalid filter option " + value);
+                        }
+                        options.filterOptions.put(value.substring(0, eq), value.substring(eq + 1));
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option " + arg);
+                }
+            }
+            // Worker processes are started with "worker" before command
+            if (positional.size() == 3 && BatchCoordinator.WORKER_COMMAND.equals(
+                    positional.get(0))) {
+                options.worker = true;
+                positional.remove(0);
+            }
+            if (positional.size() != 2) {
+                throw new IllegalArgumentException("Command and input are required");
+            }
+            if (options.workers < 1) {
+                throw new IllegalArgumentException("Number of workers must be positive");
+            }
+            if (options.timeoutSeconds < 1) {
+                throw new IllegalArgumentException("Timeout must be positive");
+            }
+            options.command = positional.get(0);
+            options.input = Paths.get(positional.get(1));
+            options.arguments = args.clone();
+            return options;
+        }
+
+        /**
+         * Get arguments for worker process: all arguments except
+         * process count, timeout and JVM options.
+         * @return worker arguments
+         */
+        List<String> workerArguments() {
+            List<String> result = new ArrayList<>();
+            for (int i = 0; i < arguments.length; i++) {
+                if ("-p".equals(arguments[i]) || "-J".equals(arguments[i])
+                        || "--timeout".equals(arguments[i])) {
+                    i++;
+                } else {
+                    result.add(arguments[i]);
+                }
+            }
+            return result;
+        }
+
+        /**
+         * Create filter context for a file.
+         * @return filter context
+         */
+        FilterContext createContext() {
+            FilterContext fc = new FilterContext(new Language(sourceLanguage),
+                    new Language(targetLanguage), false);
+            fc.setInEncoding(StandardCharsets.UTF_8.name());
+            fc.setOutEncoding(StandardCharsets.UTF_8.name());
+            return fc;
+        }
+    }
+
+    /**
+     * Work done by a command on a single file.
+     */
+    interface FileTask {
+        /**
+         * Process file.
+         * @param file source file
+         * @param relativePath file path relative to input root
+         * @return file counters
+         * @throws Exception on any error
+         */
+        BatchReport.Counters process(Path file, String relativePath) throws Exception;
+    }
+
+    /**
+     * Parse callback passing segments to segment writer.
+     */
+    private static final class ExtractCallback implements IParseCallback {
+
+        private final SegmentWriter writer;
+        private int count;
+
+        ExtractCallback(final SegmentWriter writer) {
+            this.writer = writer;
+        }
+
+        @Override
+        public void addEntry(final String id, final String source, final String translation,
+                             final boolean isFuzzy, final String comment, final String path,
+                             final IFilter filter, final List<ProtectedPart> protectedParts) {
+            try {
+                writer.writeSegment(++count, source, comment,
+                        CommentPool.getExtraShortcut(comment));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        public void addEntry(final String id, final String source, final String translation,
+                             final boolean isFuzzy, final String comment, final IFilter filter) {
+            addEntry(id, source, translation, isFuzzy, comment, null, filter, null);
+        }
+
+        public void addEntryWithProperties(final String id, final String source,
+                                           final String translation, final boolean isFuzzy,
+                                           final String[] props, final String path,
+                                           final IFilter filter,
+                                           final List<ProtectedPart> protectedParts) {
+            addEntry(id, source, translation, isFuzzy, null, path, filter, protectedParts);
+        }
+
+        @Override
+        public void linkPrevNextSegments() {
+        }
+    }
+
+    /**
+     * Parse callback only counting segments.
+     */
+    private static final class CountingParseCallback implements IParseCallback {
+
+        private long count;
+
+        @Override
+        public void addEntry(final String id, final String source, final String translation,
+                             final boolean isFuzzy, final String comment, final String path,
+                             final IFilter filter, final List<ProtectedPart> protectedParts) {
+            count++;
+        }
+
+        public void addEntry(final String id, final String source, final String translation,
+                             final boolean isFuzzy, final String comment, final IFilter filter) {
+            count++;
+        }
+
+        public void addEntryWithProperties(final String id, final String source,
+                                           final String translation, final boolean isFuzzy,
+                                           final String[] props, final String path,
+                                           final IFilter filter,
+                                           final List<ProtectedPart> protectedParts) {
+            count++;
+        }
+
+        @Override
+        public void linkPrevNextSegments() {
+        }
+    }
+
+    /**
+     * Align callback collecting translation units of a single file.
+     */
+    private static final class AlignCollector implements IAlignCallback {
+
+        private final List<String[]> units = new ArrayList<>();
+
+        @Override
+        public void addTranslation(final String id, final String source,
+                                   final String translation, final boolean isFuzzy,
+                                   final String path, final IFilter filter) {
+            units.add(new String[] {source, translation});
+        }
+    }
+
+    /**
+     * Translate callback taking translations from index.
+     */
+    private static final class IndexTranslateCallback implements ITranslateCallback {
+
+        private final TranslationIndex index;
+        private int pass;
+        private long segments;
+        private long untranslated;
+
+        IndexTranslateCallback(final TranslationIndex index) {
+            this.index = index;
+        }
+
+        @Override
+        public void setPass(final int newPass) {
+            pass = newPass;
+        }
+
+        @Override
+        public String getTranslation(final String id, final String source, final String path) {
+            String translation = index.get(source);
+            // Count segments once, filter reads them again in the second pass
+            if (pass <= 1) {
+                segments++;
+                if (translation == null) {
+                    untranslated++;
+                }
+            }
+            return translation;
+        }
+
+        public String getTranslation(final String id, final String source) {
+            return getTranslation(id, source, null);
+        }
+
+        @Override
+        public void linkPrevNextSegments() {
+        }
+    }
+
+    /**
+     * Translate callback returning source text.
+     */
+    private static final class IdentityTranslateCallback implements ITranslateCallback {
+
+        private int pass;
+        private long segments;
+
+        @Override
+        public void setPass(final int newPass) {
+            pass = newPass;
+        }
+
+        @Override
+        public String getTranslation(final String id, final String source, final String path) {
+            if (pass <= 1) {
+                segments++;
+            }
+            return source;
+        }
+
+        public String getTranslation(final String id, final String source) {
+            return getTranslation(id, source, null);
+        }
+
+        @Override
+        public void linkPrevNextSegments() {
+        }
+    }
+
+    /**
+     * Output stream comparing written bytes with expected ones
+     * without keeping them.
+     */
+    static final class ComparingOutputStream extends OutputStream {
+
+        private final ByteBuffer expected;
+        private long position;
+        private long firstDifference = -1;
+
+        ComparingOutputStream(final ByteBuffer expected) {
+            this.expected = expected;
+        }
+
+        @Override
+        public void write(final int b) {
+            if (firstDifference < 0 && (position >= expected.limit()
+                    || expected.get((int) position) != (byte) b)) {
+                firstDifference = position;
+            }
+            position++;
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) {
+            for (int i = 0; i < len && firstDifference < 0; i++) {
+                if (position + i >= expected.limit()
+                        || expected.get((int) position + i) != b[off + i]) {
+                    firstDifference = position + i;
+                }
+            }
+            position += len;
+        }
+
+        /**
+         * Get offset of first differing byte.
+         * @return offset or -1 if output is identical
+         */
+        long getFirstDifference() {
+            if (firstDifference < 0 && position != expected.limit()) {
+                return Math.min(position, expected.limit());
+            }
+            return firstDifference;
+        }
+    }
+
+    /**
+     * Command line entry point.
+     * @param args command line arguments
+     */
+    public static void main(final String[] args) {
+        System.exit(run(args));
+    }
+
+    /**
+     * Run command.
+     * @param args command line arguments
+     * @return exit code
+     */
+    static int run(final String[] args) {
+        Options options;
+        try {
+            options = Options.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            return 2;
+        }
+        try {
+            if (options.worker) {
+                return BatchCoordinator.runWorker(options.input, options.workers,
+                        createTask(options));
+            }
+
+            // Single file extracted to standard output or output file
+            if ("extract".equals(options.command) && !Files.isDirectory(options.input)) {
+                return extractFile(options);
+            }
+
+            List<Path> files;
+            if (Files.isDirectory(options.input)) {
+                files = findFiles(options.input);
+            } else {
+                files = Collections.singletonList(options.input);
+            }
+            if ("stats".equals(options.command)) {
+                return writeStatistics(options, files);
+            }
+            if ("preview".equals(options.command)) {
+                return preview(options);
+            }
+            if ("index".equals(options.command)) {
+                return updateIndex(options, files);
+            }
+            if ("align".equals(options.command)) {
+                return align(options, files);
+            }
+            BatchReport report = new BatchReport();
+            if (options.processes > 0 && Files.isDirectory(options.input)) {
+                // Check arguments before starting workers
+                checkOptions(options);
+                new BatchCoordinator(options.input, options.workerArguments(),
+                        options.jvmOptions, options.processes, options.timeoutSeconds)
+                        .run(files, report);
+            } else {
+                runTasks(files, options.input, options.workers, createTask(options), report);
+            }
+            return report.print(System.err);
+        } catch (IOException | IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            return 1;
+        }
+    }
+
+    /**
+     * Check that command and its options are valid.
+     * @param options options
+     */
+    private static void checkOptions(final Options options) {
+        switch (options.command) {
+            case "extract":
+                getExtension(options);
+                if (options.output == null) {
+                    throw new IllegalArgumentException("Output directory is required");
+                }
+                break;
+            case "compile":
+                if (options.tmx == null || options.output == null) {
+                    throw new IllegalArgumentException("TMX and output are required");
+                }
+                break;
+            case "verify":
+            case "qa":
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown command " + options.command);
+        }
+    }
+
+    /**
+     * Create work of command for a single file.
+     * @param options options
+     * @return task
+     * @throws IOException if translations cannot be loaded
+     */
+    static FileTask createTask(final Options options) throws IOException {
+        checkOptions(options);
+        switch (options.command) {
+            case "extract":
+                return createExtractTask(options);
+            case "compile":
+                return createCompileTask(options);
+            case "qa":
+                return createCheckTask(options);
+            default:
+                return createVerifyTask(options);
+        }
+    }
+
+    private static String getExtension(final Options options) {
+        if (options.format == null || "xliff".equals(options.format)) {
+            return ".xlf";
+        } else if ("jsonl".equals(options.format)) {
+            return ".jsonl";
+        }
+        throw new IllegalArgumentException("Unknown format " + options.format);
+    }
+
+    /**
+     * Extract segments of single file to output file or standard output.
+     */
+    private static int extractFile(final Options options) throws IOException {
+        getExtension(options);
+        OutputStream stream;
+        if (options.output == null) {
+            stream = System.out;
+        } else {
+            stream = Files.newOutputStream(options.output);
+        }
+        BatchReport report = new BatchReport();
+        try (SegmentWriter writer = createSegmentWriter(options, stream)) {
+            runTasks(Collections.singletonList(options.input), options.input, 1,
+                (file, relativePath) -> extractFile(options, file, relativePath, writer),
+                report);
+        }
+        return report.print(System.err);
+    }
+
+    /**
+     * Extract segments to XLIFF or JSON Lines, every file of input directory
+     * goes to its own file in output directory.
+     */
+    private static FileTask createExtractTask(final Options options) {
+        String extension = getExtension(options);
+        return (file, relativePath) -> {
+            Path target = options.output.resolve(relativePath + extension);
+            Files.createDirectories(target.toAbsolutePath().getParent());
+            try (SegmentWriter writer = createSegmentWriter(options,
+                    Files.newOutputStream(target))) {
+                return extractFile(options, file, relativePath, writer);
+            }
+        };
+    }
+
+    /**
+     * Translate files with translations from TMX. Index is loaded once and
+     * shared by threads, every thread holds a single file at a time.
+     * Segments are looked up as a whole, so TMX must come from a project
+     * with sentence segmentation disabled. Source file is read only once.
+     */
+    private static FileTask createCompileTask(final Options options) throws IOException {
+        long start = System.nanoTime();
+        TranslationIndex index = TranslationIndex.loadTmx(options.tmx, options.sourceLanguage,
+                options.targetLanguage);
+        System.err.println(String.format("Loaded %d translations (%.1f MB) in %.2f s",
+                index.size(), index.getDataSize() / MEGABYTE,
+                (System.nanoTime() - start) / 1e9));
+
+        boolean directory = Files.isDirectory(options.input);
+        return (file, relativePath) -> {
+            Path target = options.output;
+            if (directory) {
+                target = options.output.resolve(relativePath);
+            }
+            Path parent = target.toAbsolutePath().getParent();
+            if (parent != null) {
+                Files.createDirectories(parent);
+            }
+            IndexTranslateCallback callback = new IndexTranslateCallback(index);
+            try (OutputStream out = Files.newOutputStream(target)) {
+                new PublishrFilter().translateToStream(file.toFile(), out,
+                        options.filterOptions, options.createContext(), callback);
+            }
+            return new BatchReport.Counters(callback.segments, callback.untranslated);
+        };
+    }
+
+    /**
+     * Translate every file with identity translations and compare
+     * result with source file.
+     */
+    private static FileTask createVerifyTask(final Options options) {
+        return (file, relativePath) -> {
+            IdentityTranslateCallback callback = new IdentityTranslateCallback();
+            ComparingOutputStream out;
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                out = new ComparingOutputStream(
+                        channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+                // Copying unchanged lines would compare source with itself
+                PublishrFilter filter = new PublishrFilter();
+                filter.setForceRestore(true);
+                filter.translateToStream(file.toFile(), out, options.filterOptions,
+                        options.createContext(), callback);
+            }
+            if (out.getFirstDifference() >= 0) {
+                throw new IOException("differs from source at byte " + out.getFirstDifference());
+            }
+            return new BatchReport.Counters(callback.segments, 0);
+        };
+    }
+
+    /**
+     * Check translated files for broken markup. Problems are printed to
+     * standard output, files with problems are reported as failed.
+     */
+    private static FileTask createCheckTask(final Options options) {
+        boolean plainShortcuts = Boolean.valueOf(options.filterOptions.get(Util.PLAIN_SHORTCUTS));
+        return (file, relativePath) -> {
+            PublishrDocument document = PublishrDocument.map(file.toFile());
+            if (document == null) {
+                try (BufferedReader reader = Files.newBufferedReader(file)) {
+                    document = PublishrDocument.read(reader);
+                }
+            }
+            List<TargetChecker.Problem> problems = TargetChecker.check(document, plainShortcuts);
+            if (!problems.isEmpty()) {
+                List<String> lines = new ArrayList<>();
+                for (TargetChecker.Problem problem : problems) {
+                    lines.add(problem.format(relativePath));
+                }
+                printResults(lines);
+                throw new IOException(problems.size() + " problems");
+            }
+            int textLines = 0;
+            for (int line = 0; line < document.getLineCount(); line++) {
+                if (document.getKind(line) == PublishrDocument.LINE_TEXT) {
+                    textLines++;
+                }
+            }
+            return new BatchReport.Counters(textLines, 0);
+        };
+    }
+
+    private static SegmentWriter createSegmentWriter(final Options options,
+                                                     final OutputStream stream)
+            throws IOException {
+        OutputStream buffered = new BufferedOutputStream(stream);
+        if ("jsonl".equals(options.format)) {
+            return new JsonLinesSegmentWriter(new BufferedWriter(
+                    new OutputStreamWriter(buffered, StandardCharsets.UTF_8)));
+        }
+        return new XliffSegmentWriter(buffered, options.sourceLanguage, options.targetLanguage);
+    }
+
+    /**
+     * Parse file and stream its segments to writer.
+     */
+    private static BatchReport.Counters extractFile(final Options options, final Path file,
+                                                    final String relativePath,
+                                                    final SegmentWriter writer)
+            throws Exception {
+        ExtractCallback callback = new ExtractCallback(writer);
+        writer.startFile(relativePath);
+        try {
+            new PublishrFilter().parseFile(file.toFile(), options.filterOptions,
+                    options.createContext(), callback);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        writer.endFile();
+        return new BatchReport.Counters(callback.count, 0);
+    }
+
+    /**
+     * Collect statistics of files in parallel during parsing and write them
+     * with a total row to output file or standard output.
+     */
+    private static int writeStatistics(final Options options, final List<Path> files)
+            throws IOException {
+        boolean json = "json".equals(options.format);
+        if (!json && options.format != null && !"csv".equals(options.format)) {
+            throw new IllegalArgumentException("Unknown format " + options.format);
+        }
+        Map<Path, DocumentStatistics> results = new ConcurrentHashMap<>();
+        BatchReport report = new BatchReport();
+        PublishrFilter.resetProcessingTotals();
+        runTasks(files, options.input, options.workers, (file, relativePath) -> {
+            DocumentStatistics statistics = new DocumentStatistics(relativePath);
+            PublishrFilter filter = new PublishrFilter();
+            filter.setObserver(statistics);
+            filter.parseFile(file.toFile(), options.filterOptions, options.createContext(),
+                    new CountingParseCallback());
+            results.put(file, statistics);
+            return new BatchReport.Counters(statistics.getSegments(), 0);
+        }, report);
+
+        // Files are listed in input order, failed ones are left out
+        List<DocumentStatistics> items = new ArrayList<>();
+        DocumentStatistics total = new DocumentStatistics("total");
+        for (Path file : files) {
+            DocumentStatistics statistics = results.get(file);
+            if (statistics != null) {
+                items.add(statistics);
+                total.merge(statistics);
+            }
+        }
+        OutputStream stream;
+        if (options.output == null) {
+            stream = System.out;
+        } else {
+            stream = Files.newOutputStream(options.output);
+        }
+        Writer writer = new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8));
+        if (json) {
+            DocumentStatistics.writeJson(items, total, writer);
+        } else {
+            DocumentStatistics.writeCsv(items, total, writer);
+        }
+        if (options.output == null) {
+            writer.flush();
+        } else {
+            writer.close();
+        }
+        for (String line : PublishrFilter.getProcessingTotals()) {
+            System.err.println("Total " + line);
+        }
+        return report.print(System.err);
+    }
+
+    /**
+     * Align files with their translations in parallel and write translation
+     * units to TMX in input order. Repeated units are written once.
+     */
+    private static int align(final Options options, final List<Path> files)
+            throws IOException {
+        if (options.target == null || options.output == null) {
+            throw new IllegalArgumentException("Translated files and output are required");
+        }
+        boolean directory = Files.isDirectory(options.input);
+        Map<Path, List<String[]>> results = new ConcurrentHashMap<>();
+        BatchReport report = new BatchReport();
+        runTasks(files, options.input, options.workers, (file, relativePath) -> {
+            Path translated = options.target;
+            if (directory) {
+                translated = options.target.resolve(relativePath);
+            }
+            if (!Files.isRegularFile(translated)) {
+                throw new IOException("no translated file " + translated);
+            }
+            AlignCollector collector = new AlignCollector();
+            new PublishrFilter().alignFile(file.toFile(), translated.toFile(),
+                    options.filterOptions, options.createContext(), collector);
+            results.put(file, collector.units);
+            return new BatchReport.Counters(collector.units.size(), 0);
+        }, report);
+
+        Set<List<String>> written = new HashSet<>();
+        try (TmxWriter writer = new TmxWriter(new BufferedOutputStream(
+                Files.newOutputStream(options.output)), options.sourceLanguage,
+                options.targetLanguage)) {
+            for (Path file : files) {
+                List<String[]> units = results.get(file);
+                if (units == null) {
+                    continue;
+                }
+                for (String[] unit : units) {
+                    if (written.add(Arrays.asList(unit))) {
+                        writer.write(unit[0], unit[1]);
+                    }
+                }
+            }
+        }
+        return report.print(System.err);
+    }
+
+    /**
+     * Update index file with files changed since it was written, then
+     * run queries against it.
+     */
+    private static int updateIndex(final Options options, final List<Path> files)
+            throws IOException {
+        if (options.output == null) {
+            throw new IllegalArgumentException("Index file is required");
+        }
+        ElementIndex index;
+        if (Files.exists(options.output)) {
+            index = ElementIndex.read(options.output);
+        } else {
+            index = new ElementIndex();
+        }
+
+        Map<String, ElementIndex.FileEntry> known = index.getFiles();
+        Set<String> present = new HashSet<>();
+        List<Path> changed = new ArrayList<>();
+        for (Path file : files) {
+            String relativePath = relativePath(options.input, file);
+            present.add(relativePath);
+            ElementIndex.FileEntry entry = known.get(relativePath);
+            if (entry == null
+                    || entry.getModified() != Files.getLastModifiedTime(file).toMillis()) {
+                changed.add(file);
+            }
+        }
+        boolean modified = !changed.isEmpty();
+        for (String relativePath : known.keySet()) {
+            if (!present.contains(relativePath)) {
+                index.update(relativePath, null);
+                modified = true;
+            }
+        }
+
+        BatchReport report = new BatchReport();
+        runTasks(changed, options.input, options.workers, (file, relativePath) -> {
+            long time = Files.getLastModifiedTime(file).toMillis();
+            ElementIndex.Builder builder = new ElementIndex.Builder();
+            CountingParseCallback callback = new CountingParseCallback();
+            PublishrFilter filter = new PublishrFilter();
+            filter.setObserver(builder);
+            filter.parseFile(file.toFile(), options.filterOptions, options.createContext(),
+                    callback);
+            index.update(relativePath, builder.build(time));
+            return new BatchReport.Counters(callback.count, 0);
+        }, report);
+        int result = report.print(System.err);
+        if (modified) {
+            index.write(options.output);
+        }
+
+        for (String query : options.queries) {
+            long start = System.nanoTime();
+            if (query.endsWith("*")) {
+                Map<String, Long> keys = index.findKeys(query.substring(0, query.length() - 1));
+                for (Map.Entry<String, Long> e : keys.entrySet()) {
+                    System.out.println(e.getKey() + "\t" + e.getValue());
+                }
+            } else {
+                for (Map.Entry<String, int[]> e : index.find(query).entrySet()) {
+                    for (int line : e.getValue()) {
+                        System.out.println(e.getKey() + ":" + (line + 1));
+                    }
+                }
+            }
+            System.err.println(String.format("Query %s took %.2f ms", query,
+                    (System.nanoTime() - start) / 1e6));
+        }
+        return result;
+    }
+
+    /**
+     * Render files to HTML next to each other in output directory. With
+     * watch interval set, files are checked for changes until the process
+     * is stopped. Every file keeps its renderer, so only changed paragraphs
+     * of changed files are rendered again.
+     */
+    private static int preview(final Options options) throws IOException {
+        if (options.output == null) {
+            throw new IllegalArgumentException("Output directory is required");
+        }
+        Set<Element> elements = Util.getEnabledElements(options.filterOptions);
+        Map<Path, HtmlRenderer> renderers = new ConcurrentHashMap<>();
+        Map<Path, Long> modified = new ConcurrentHashMap<>();
+        AtomicLong rendered = new AtomicLong();
+        AtomicLong paragraphs = new AtomicLong();
+        FileTask task = (file, relativePath) -> {
+            HtmlRenderer renderer = renderers.computeIfAbsent(file,
+                    f -> new HtmlRenderer(elements));
+            PublishrDocument document = PublishrDocument.map(file.toFile());
+            if (document == null) {
+                try (BufferedReader reader = Files.newBufferedReader(file)) {
+                    document = PublishrDocument.read(reader);
+                }
+            }
+            String html = renderer.render(document, relativePath);
+            rendered.addAndGet(renderer.getRenderedCount());
+            paragraphs.addAndGet(renderer.getParagraphCount());
+            Path target = options.output.resolve(relativePath + ".html");
+            Files.createDirectories(target.toAbsolutePath().getParent());
+            Files.write(target, html.getBytes(StandardCharsets.UTF_8));
+            return new BatchReport.Counters(renderer.getParagraphCount(), 0);
+        };
+
+        int result = 0;
+        while (true) {
+            List<Path> changed = new ArrayList<>();
+            List<Path> files = Collections.singletonList(options.input);
+            if (Files.isDirectory(options.input)) {
+                files = findFiles(options.input);
+            }
+            for (Path file : files) {
+                Long time = Files.getLastModifiedTime(file).toMillis();
+                if (!time.equals(modified.put(file, time))) {
+                    changed.add(file);
+                }
+            }
+            if (!changed.isEmpty()) {
+                rendered.set(0);
+                paragraphs.set(0);
+                BatchReport report = new BatchReport();
+                runTasks(changed, options.input, options.workers, task, report);
+                result = report.print(System.err);
+                System.err.println(String.format("Rendered %d of %d paragraphs",
+                        rendered.get(), paragraphs.get()));
+            }
+            if (options.watchSeconds <= 0) {
+                return result;
+            }
+            try {
+                Thread.sleep(options.watchSeconds * 1000L);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return result;
+            }
+        }
+    }
+
+    /**
+     * Find PublishR files in directory tree.
+     * @param root directory
+     * @return files in stable order
+     * @throws IOException on directory read error
+     */
+    static List<Path> findFiles(final Path root) throws IOException {
+        try (Stream<Path> paths = Files.walk(root)) {
+            return paths.filter(Files::isRegularFile)
+                    .filter(p -> p.getFileName().toString().endsWith(PAGE_EXTENSION))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * Print result lines of a file task to standard output,
+     * lines of one call are not mixed with others.
+     * @param lines lines to print
+     */
+    static void printResults(final List<String> lines) {
+        Consumer<List<String>> printer = resultPrinter;
+        if (printer != null) {
+            printer.accept(lines);
+            return;
+        }
+        synchronized (System.out) {
+            for (String line : lines) {
+                System.out.println(line);
+            }
+        }
+    }
+
+    /**
+     * Send results of file tasks somewhere else than standard output.
+     * @param printer printer of result lines, null for standard output
+     */
+    static void setResultPrinter(final Consumer<List<String>> printer) {
+        resultPrinter = printer;
+    }
+
+    /**
+     * Get path relative to input root with '/' separators.
+     * @param root input root, file or directory
+     * @param file file under root
+     * @return relative path, file name if root is the file itself
+     */
+    static String relativePath(final Path root, final Path file) {
+        if (root.equals(file)) {
+            return file.getFileName().toString();
+        }
+        return root.relativize(file).toString().replace(File.separatorChar, '/');
+    }
+
+    /**
+     * Run task for a single file and add result to report.
+     * @param file file to process
+     * @param relativePath file path relative to input root
+     * @param task work for a single file
+     * @param report report
+     */
+    static void runTask(final Path file, final String relativePath, final FileTask task,
+                        final BatchReport report) {
+        try {
+            BatchReport.Counters counters = task.process(file, relativePath);
+            report.addFile(file.toFile().length(), counters);
+        } catch (Exception e) {
+            String message = e.getMessage();
+            if (message == null) {
+                message = e.toString();
+            }
+            report.addFailure(relativePath, file.toFile().length(), message);
+        }
+    }
+
+    /**
+     * Run task for all files on a thread pool.
+     * @param files files to process
+     * @param root input root
+     * @param workers number of threads
+     * @param task work for a single file
+     * @param report report to add results to
+     */
+    static void runTasks(final List<Path> files, final Path root, final int workers,
+                         final FileTask task, final BatchReport report) {
+        ExecutorService executor = Executors.newFixedThreadPool(workers);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (Path file : files) {
+                futures.add(executor.submit(
+                        () -> runTask(file, relativePath(root, file), task, report)));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            report.addFailure(root.toString(), 0, "interrupted");
+        } catch (ExecutionException e) {
+            report.addFailure(root.toString(), 0, String.valueOf(e.getCause()));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Do not allow instances of this class.
+     */
+    private PublishrCli() {
+
+    }
+}
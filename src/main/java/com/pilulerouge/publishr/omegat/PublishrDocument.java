@@ -0,0 +1,1122 @@
+/**************************************************************************
+ PublishR file filter for OmegaT
+
+ Copyright (C) 2018 Lev Abashkin
+
+ This file is NOT a part of OmegaT.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ **************************************************************************/
+
+package com.pilulerouge.publishr.omegat;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.omegat.util.Log;
+
+/**
+ * Block structure of a PublishR file.
+ * Whole file is kept in a single character buffer, lines are described by
+ * primitive arrays of offsets into it. The model is built once per file and
+ * no line text is copied until it is converted to a segment.
+ * <p>
+ * This is a line model only: it knows line kinds, block prefixes and
+ * formatting comments, but not inline elements. Those are found by
+ * {@link Formatter} in segment text, and the highlighter and popup menu
+ * work on entry text handed over by OmegaT, not on file offsets.
+ */
+final class PublishrDocument {
+
+    /**
+     * Line contains only whitespace. It ends formatting context of a paragraph.
+     */
+    static final byte LINE_EMPTY = 0;
+
+    /**
+     * Line is copied to output as is.
+     */
+    static final byte LINE_VERBATIM = 1;
+
+    /**
+     * Line has text to translate after block prefix.
+     */
+    static final byte LINE_TEXT = 2;
+
+    /**
+     * Holds formatting metadata.
+     */
+    private static class FormattingInfo {
+
+        private Pattern pattern;
+        private String rbName;
+        private boolean hasParam;
+        private boolean countChars;
+
+        /**
+         * Constructor.
+         * @param re regexp string
+         * @param rbName format name string for resource bundle
+         * @param hasParam is there a parameter?
+         * @param countChars count characters in param group instead of taking literal value
+         */
+        FormattingInfo(final String re,
+                       final String rbName,
+                       final boolean hasParam,
+                       final boolean countChars) {
+            this.pattern = Pattern.compile(re);
+            this.rbName = rbName;
+            this.hasParam = hasParam;
+            this.countChars = countChars;
+        }
+
+        /**
+         * Get format info from string.
+         * @param s input string
+         * @return description of format or null
+         */
+        String getInfo(final String s) {
+            Matcher matcher = pattern.matcher(s);
+            if (matcher.find()) {
+                String result = Util.RB.getString(rbName);
+                if (hasParam) {
+                    String param = matcher.group(1);
+                    if (countChars) {
+                        param = String.valueOf(param.length());
+                    }
+                    result += ": " + param;
+                }
+                return result;
+            } else {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Formatting context of current paragraph with cached translator comment.
+     */
+    private static class FormattingComments {
+
+        private final Map<FormattingType, String> comments = new EnumMap<>(FormattingType.class);
+        private String comment;
+
+        /**
+         * Set comment for formatting type.
+         * @param fType formatting type
+         * @param fComment formatting description
+         */
+        void put(final FormattingType fType, final String fComment) {
+            if (!fComment.equals(comments.put(fType, fComment))) {
+                comment = null;
+            }
+        }
+
+        /**
+         * Forget all formatting.
+         */
+        void clear() {
+            if (!comments.isEmpty()) {
+                comments.clear();
+                comment = null;
+            }
+        }
+
+        /**
+         * Get bit mask of formatting types in current context.
+         * @return mask with bit set for ordinal of every formatting type
+         */
+        int getMask() {
+            int mask = 0;
+            for (FormattingType fType : comments.keySet()) {
+                mask |= 1 << fType.ordinal();
+            }
+            return mask;
+        }
+
+        /**
+         * Get translator comment for current formatting context. Equal comments
+         * are shared between all segments.
+         * @return comment or null if there is no formatting
+         */
+        String getComment() {
+            if (comment == null && !comments.isEmpty()) {
+                comment = CommentPool.intern(String.join(" / ", comments.values()) + "\n");
+            }
+            return comment;
+        }
+    }
+
+    private static final Map<Pattern, Set<FormattingType>> SKIP_PATTERN_MAP;
+
+    static {
+        SKIP_PATTERN_MAP = new LinkedHashMap<>();
+
+        // Table separator line
+        SKIP_PATTERN_MAP.put(
+                Pattern.compile("^[|\\-+:= ]+$"),
+                Collections.emptySet()
+        );
+
+        // EOB marker
+        SKIP_PATTERN_MAP.put(
+                Pattern.compile("^\\^\\s*$"),
+                Collections.emptySet()
+        );
+
+        // Comment/command line
+        SKIP_PATTERN_MAP.put(
+                Pattern.compile("^\\s*\\{:.+}\\s*$"),
+                Stream.of(FormattingType.TRANSCRIPT,
+                          FormattingType.LYRICS,
+                          FormattingType.EMAIL)
+                        .collect(Collectors.toCollection(HashSet::new))
+        );
+    }
+
+    private static final Map<Pattern, Set<FormattingType>> BLOCK_PATTERN_MAP;
+    static {
+        BLOCK_PATTERN_MAP = new LinkedHashMap<>();
+
+        // Indentation
+        BLOCK_PATTERN_MAP.put(
+                Pattern.compile("^(\\s+)(.+)"),
+                Collections.emptySet()
+        );
+
+        // Heading
+        BLOCK_PATTERN_MAP.put(
+                Pattern.compile("^(#+\\**\\s)(.+)"),
+                Stream.of(FormattingType.HEADING)
+                        .collect(Collectors.toCollection(HashSet::new))
+        );
+
+        // List
+        BLOCK_PATTERN_MAP.put(
+                Pattern.compile("^((?:\\*|\\d+.)\\s)(.+)"),
+                Stream.of(FormattingType.LIST_ITEM)
+                        .collect(Collectors.toCollection(HashSet::new))
+        );
+
+        // Block-quote
+        BLOCK_PATTERN_MAP.put(
+                Pattern.compile("^((?:>+\\s*)+)(.*)"),
+                Stream.of(FormattingType.BLOCK_QUOTE)
+                        .collect(Collectors.toCollection(HashSet::new))
+        );
+
+        // Footnote
+        BLOCK_PATTERN_MAP.put(
+                Pattern.compile("^(\\[\\^.+?]:\\s+)(.+)"),
+                Stream.of(FormattingType.FOOTNOTE)
+                        .collect(Collectors.toCollection(HashSet::new))
+        );
+
+        // Line number
+        BLOCK_PATTERN_MAP.put(
+                Pattern.compile("^(\\{L\\d+?}\\s+)(.+)"),
+                Stream.of(FormattingType.LINE_NUMBER)
+                        .collect(Collectors.toCollection(HashSet::new))
+        );
+    }
+
+    private static final Map<FormattingType, FormattingInfo> FORMATTING_TYPE_MAP;
+    static {
+        FORMATTING_TYPE_MAP = new EnumMap<>(FormattingType.class);
+        FORMATTING_TYPE_MAP.put(
+                FormattingType.BLOCK_QUOTE,
+                new FormattingInfo("(>+)", "FMT_BLOCK_QUOTE", true, true)
+        );
+        FORMATTING_TYPE_MAP.put(
+                FormattingType.FOOTNOTE,
+                new FormattingInfo("\\[\\^(.+)?]:", "FMT_FOOTNOTE", true, false)
+        );
+        FORMATTING_TYPE_MAP.put(
+                FormattingType.HEADING,
+                new FormattingInfo("(#+)", "FMT_HEADING", true, true)
+        );
+        FORMATTING_TYPE_MAP.put(
+                FormattingType.LIST_ITEM,
+                new FormattingInfo(".", "FMT_LIST_ITEM", false, false)
+        );
+        FORMATTING_TYPE_MAP.put(
+                FormattingType.LINE_NUMBER,
+                new FormattingInfo("\\{L(\\d+)?}", "FMT_LINE_NUMBER", true, false)
+        );
+        FORMATTING_TYPE_MAP.put(
+                FormattingType.TRANSCRIPT,
+                new FormattingInfo("\\.transcript", "FMT_TRANSCRIPT", false, false)
+        );
+        FORMATTING_TYPE_MAP.put(
+                FormattingType.LYRICS,
+                new FormattingInfo("\\.lyrics", "FMT_LYRICS", false, false)
+        );
+        FORMATTING_TYPE_MAP.put(
+                FormattingType.EMAIL,
+                new FormattingInfo("\\.email", "FMT_EMAIL", false, false)
+        );
+    }
+
+    /**
+     * HTML elements whose content is not prose and may contain blank lines.
+     * Their blocks end at the closing tag. Other block-level elements like
+     * p, div or li usually hold text to translate, so they are not verbatim.
+     */
+    private static final Set<String> RAW_HTML_TAGS = Stream.of(
+            "pre", "script", "style", "textarea")
+            .collect(Collectors.toCollection(HashSet::new));
+
+    private static final int MIN_FENCE_LENGTH = 3;
+    private static final int MAX_FENCE_INDENT = 3;
+    private static final int MAX_TAG_NAME_LENGTH = 10;
+
+    private static final int INITIAL_BUFFER_SIZE = 8192;
+    private static final int INITIAL_LINE_CAPACITY = 256;
+    // Largest file which fits into a char array after decoding
+    private static final long MAX_MAPPED_SIZE = Integer.MAX_VALUE - 8;
+
+    private final char[] chars;
+    private final int length;
+
+    private int lineCount;
+    // Line offsets: start, end of content, end of line break
+    private int[] lineStart;
+    private int[] lineEnd;
+    private int[] breakEnd;
+    // Start of text after block prefixes
+    private int[] contentStart;
+    private byte[] kind;
+    // Index in comments table or -1
+    private int[] commentId;
+    // Bit mask of formatting types active on line
+    private int[] formatting;
+
+    private final List<String> comments = new ArrayList<>();
+
+    /*
+     Closer lookups of raw blocks, built on first use while lines are
+     classified and dropped afterwards, so documents with many unclosed
+     openers are not scanned to the end for every one of them.
+     */
+    // Fence char -> longest closing fence on a line at or after index
+    private Map<Character, int[]> longestClosingFence;
+    // Closing string -> {first line searched, first line after it containing string or -1}
+    private Map<String, int[]> closerLines;
+
+    /**
+     * Build document from character buffer.
+     * @param chars buffer, not copied
+     * @param length number of used characters in buffer
+     */
+    PublishrDocument(final char[] chars, final int length) {
+        this.chars = chars;
+        this.length = length;
+        lineStart = new int[INITIAL_LINE_CAPACITY];
+        lineEnd = new int[INITIAL_LINE_CAPACITY];
+        breakEnd = new int[INITIAL_LINE_CAPACITY];
+        splitLines();
+        classifyLines();
+    }
+
+    /**
+     * Build document from UTF-8 bytes. Line breaks are found on byte level,
+     * UTF-8 multibyte sequences never contain CR or LF bytes. Only line
+     * contents are decoded, ASCII lines are copied without decoder.
+     * @param bytes UTF-8 encoded text
+     */
+    private PublishrDocument(final ByteBuffer bytes) {
+        // UTF-8 never decodes to more chars than bytes
+        chars = new char[bytes.limit()];
+        lineStart = new int[INITIAL_LINE_CAPACITY];
+        lineEnd = new int[INITIAL_LINE_CAPACITY];
+        breakEnd = new int[INITIAL_LINE_CAPACITY];
+        length = decodeLines(bytes);
+        classifyLines();
+    }
+
+    /**
+     * Map UTF-8 file into memory and build document from it.
+     * @param file source file
+     * @return document or null if file has BOM or is too large to be mapped
+     * @throws IOException on read error
+     */
+    static PublishrDocument map(final File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > MAX_MAPPED_SIZE) {
+                return null;
+            }
+            MappedByteBuffer bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            // Let the reader deal with byte order mark
+            if (size >= 3 && bytes.get(0) == (byte) 0xEF && bytes.get(1) == (byte) 0xBB
+                    && bytes.get(2) == (byte) 0xBF) {
+                return null;
+            }
+            return new PublishrDocument(bytes);
+        }
+    }
+
+    /**
+     * Read whole document.
+     * @param reader source reader
+     * @return document
+     * @throws IOException on read error
+     */
+    static PublishrDocument read(final Reader reader) throws IOException {
+        char[] buffer = new char[INITIAL_BUFFER_SIZE];
+        int length = 0;
+        int n;
+        while ((n = reader.read(buffer, length, buffer.length - length)) != -1) {
+            length += n;
+            if (length == buffer.length) {
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            }
+        }
+        return new PublishrDocument(buffer, length);
+    }
+
+    /**
+     * Get number of lines.
+     * @return line count
+     */
+    int getLineCount() {
+        return lineCount;
+    }
+
+    /**
+     * Split document into chunks of whole paragraphs. Chunks end right
+     * after an empty line, where formatting comments are reset anyway.
+     * @param minLines minimal number of lines in a chunk except the last one
+     * @return first line of every chunk followed by line count
+     */
+    int[] getParagraphChunks(final int minLines) {
+        int[] bounds = new int[lineCount / Math.max(minLines, 1) + 2];
+        int count = 1;
+        int chunkStart = 0;
+        for (int line = 0; line < lineCount; line++) {
+            if (kind[line] == LINE_EMPTY && line + 1 - chunkStart >= minLines
+                    && line + 1 < lineCount) {
+                chunkStart = line + 1;
+                bounds[count++] = chunkStart;
+            }
+        }
+        bounds[count++] = lineCount;
+        return Arrays.copyOf(bounds, count);
+    }
+
+    /**
+     * Get line kind.
+     * @param line line index
+     * @return one of LINE_* constants
+     */
+    byte getKind(final int line) {
+        return kind[line];
+    }
+
+    /**
+     * Get text of line after block prefixes.
+     * @param line index of text line
+     * @return line content
+     */
+    String getContent(final int line) {
+        return new String(chars, contentStart[line], lineEnd[line] - contentStart[line]);
+    }
+
+    /**
+     * Get text of consecutive lines with their line breaks.
+     * @param from first line
+     * @param to line after the last one
+     * @return text
+     */
+    String getText(final int from, final int to) {
+        return new String(chars, lineStart[from], breakEnd[to - 1] - lineStart[from]);
+    }
+
+    /**
+     * Get block prefixes of line.
+     * @param line index of text line
+     * @return prefix, empty if there is none
+     */
+    String getPrefix(final int line) {
+        return new String(chars, lineStart[line], contentStart[line] - lineStart[line]);
+    }
+
+    /**
+     * Get column where line content starts.
+     * @param line index of text line
+     * @return prefix length in characters
+     */
+    int getContentColumn(final int line) {
+        return contentStart[line] - lineStart[line];
+    }
+
+    /**
+     * Get translator comment for formatting context of line.
+     * @param line index of text line
+     * @return comment or null
+     */
+    String getComment(final int line) {
+        if (commentId[line] < 0) {
+            return null;
+        }
+        return comments.get(commentId[line]);
+    }
+
+    /**
+     * Check if formatting type is active on line.
+     * @param line index of text line
+     * @param fType formatting type
+     * @return check result
+     */
+    boolean hasFormatting(final int line, final FormattingType fType) {
+        return (formatting[line] & (1 << fType.ordinal())) != 0;
+    }
+
+    /**
+     * Write whole line with line break.
+     * @param line line index
+     * @param out output
+     * @throws IOException on write error
+     */
+    void writeLine(final int line, final Writer out) throws IOException {
+        out.write(chars, lineStart[line], breakEnd[line] - lineStart[line]);
+    }
+
+    /**
+     * Write consecutive lines with their line breaks as a single slice.
+     * @param from first line
+     * @param to line after the last one
+     * @param out output
+     * @throws IOException on write error
+     */
+    void writeLines(final int from, final int to, final Writer out) throws IOException {
+        out.write(chars, lineStart[from], breakEnd[to - 1] - lineStart[from]);
+    }
+
+    /**
+     * Write block prefixes of line.
+     * @param line line index
+     * @param out output
+     * @throws IOException on write error
+     */
+    void writePrefix(final int line, final Writer out) throws IOException {
+        out.write(chars, lineStart[line], contentStart[line] - lineStart[line]);
+    }
+
+    /**
+     * Write text of line after block prefixes.
+     * @param line index of text line
+     * @param out output
+     * @throws IOException on write error
+     */
+    void writeContent(final int line, final Writer out) throws IOException {
+        out.write(chars, contentStart[line], lineEnd[line] - contentStart[line]);
+    }
+
+    /**
+     * Write line break of line.
+     * @param line line index
+     * @param out output
+     * @throws IOException on write error
+     */
+    void writeLineBreak(final int line, final Writer out) throws IOException {
+        out.write(chars, lineEnd[line], breakEnd[line] - lineEnd[line]);
+    }
+
+    /**
+     * Find line boundaries. Line breaks are \n, \r\n or \r.
+     */
+    private void splitLines() {
+        int start = 0;
+        int i = 0;
+        while (i < length) {
+            char c = chars[i];
+            if (c == '\n') {
+                addLine(start, i, i + 1);
+                start = ++i;
+            } else if (c == '\r') {
+                int end = i + 1;
+                if (end < length && chars[end] == '\n') {
+                    end++;
+                }
+                addLine(start, i, end);
+                start = i = end;
+            } else {
+                i++;
+            }
+        }
+        if (start < length) {
+            addLine(start, length, length);
+        }
+    }
+
+    /**
+     * Split UTF-8 bytes into lines and decode them into character buffer.
+     * Line breaks are kept as they are.
+     * @return number of decoded characters
+     */
+    private int decodeLines(final ByteBuffer bytes) {
+        CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        int size = bytes.limit();
+        int charCount = 0;
+        int start = 0;
+        boolean ascii = true;
+        for (int i = 0; i < size; i++) {
+            byte b = bytes.get(i);
+            if (b == '\n' || b == '\r') {
+                int contentStart = charCount;
+                charCount = decodeLine(bytes, start, i, ascii, charCount, decoder);
+                int contentEnd = charCount;
+                chars[charCount++] = (char) b;
+                if (b == '\r' && i + 1 < size && bytes.get(i + 1) == '\n') {
+                    chars[charCount++] = '\n';
+                    i++;
+                }
+                addLine(contentStart, contentEnd, charCount);
+                start = i + 1;
+                ascii = true;
+            } else if (b < 0) {
+                ascii = false;
+            }
+        }
+        if (start < size) {
+            int contentStart = charCount;
+            charCount = decodeLine(bytes, start, size, ascii, charCount, decoder);
+            addLine(contentStart, charCount, charCount);
+        }
+        return charCount;
+    }
+
+    /**
+     * Decode line content into character buffer.
+     * @return position in character buffer after decoded line
+     */
+    private int decodeLine(final ByteBuffer bytes, final int from, final int to,
+                           final boolean ascii, final int charPosition,
+                           final CharsetDecoder decoder) {
+        if (ascii) {
+            int position = charPosition;
+            for (int i = from; i < to; i++) {
+                chars[position++] = (char) bytes.get(i);
+            }
+            return position;
+        }
+        ByteBuffer in = bytes.duplicate();
+        in.limit(to);
+        in.position(from);
+        CharBuffer out = CharBuffer.wrap(chars, charPosition, chars.length - charPosition);
+        decoder.reset();
+        decoder.decode(in, out, true);
+        decoder.flush(out);
+        return out.position();
+    }
+
+    private void addLine(final int start, final int end, final int lineBreakEnd) {
+        if (lineCount == lineStart.length) {
+            int capacity = lineCount * 2;
+            lineStart = Arrays.copyOf(lineStart, capacity);
+            lineEnd = Arrays.copyOf(lineEnd, capacity);
+            breakEnd = Arrays.copyOf(breakEnd, capacity);
+        }
+        lineStart[lineCount] = start;
+        lineEnd[lineCount] = end;
+        breakEnd[lineCount] = lineBreakEnd;
+        lineCount++;
+    }
+
+    /**
+     * Find block prefixes and formatting context of every line.
+     */
+    private void classifyLines() {
+        contentStart = new int[lineCount];
+        kind = new byte[lineCount];
+        commentId = new int[lineCount];
+        formatting = new int[lineCount];
+
+        // Matchers are reused for all lines
+        CharSlice slice = new CharSlice(chars);
+        List<Matcher> skipMatchers = new ArrayList<>();
+        List<Set<FormattingType>> skipTypes = new ArrayList<>();
+        for (Map.Entry<Pattern, Set<FormattingType>> e : SKIP_PATTERN_MAP.entrySet()) {
+            skipMatchers.add(e.getKey().matcher(slice));
+            skipTypes.add(e.getValue());
+        }
+        List<Matcher> blockMatchers = new ArrayList<>();
+        List<Set<FormattingType>> blockTypes = new ArrayList<>();
+        for (Map.Entry<Pattern, Set<FormattingType>> e : BLOCK_PATTERN_MAP.entrySet()) {
+            blockMatchers.add(e.getKey().matcher(slice));
+            blockTypes.add(e.getValue());
+        }
+
+        FormattingComments formattingComments = new FormattingComments();
+        Map<String, Integer> commentIds = new HashMap<>();
+
+        // Last line of current front matter, fenced code or HTML block
+        int rawEnd = findFrontMatterEnd();
+        longestClosingFence = new HashMap<>();
+        closerLines = new HashMap<>();
+
+        for (int line = 0; line < lineCount; line++) {
+            int start = lineStart[line];
+            int end = lineEnd[line];
+            commentId[line] = -1;
+
+            /* Lines of raw regions are copied without pattern matching */
+            if (line <= rawEnd) {
+                kind[line] = LINE_VERBATIM;
+                continue;
+            }
+
+            /* Empty lines end formatting context */
+            if (isBlank(start, end)) {
+                kind[line] = LINE_EMPTY;
+                formattingComments.clear();
+                continue;
+            }
+
+            /* Fenced code and HTML blocks end paragraph */
+            rawEnd = findRawBlockEnd(line);
+            if (rawEnd >= line) {
+                kind[line] = LINE_VERBATIM;
+                formattingComments.clear();
+                continue;
+            }
+
+            /* Lines matched by skip patterns, collect format metadata */
+            slice.setBounds(start, end);
+            boolean skipLine = false;
+            for (int i = 0; i < skipMatchers.size(); i++) {
+                Matcher matcher = skipMatchers.get(i).reset(slice);
+                if (matcher.matches()) {
+                    collectFormatting(skipTypes.get(i), slice.toString(), formattingComments);
+                    skipLine = true;
+                    break;
+                }
+            }
+            if (skipLine) {
+                kind[line] = LINE_VERBATIM;
+                continue;
+            }
+
+            /* Find block-level tokens, collect format metadata */
+            int content = start;
+            int i = 0;
+            while (i < blockMatchers.size()) {
+                slice.setBounds(content, end);
+                Matcher matcher = blockMatchers.get(i).reset(slice);
+                i++;
+                if (matcher.matches()) {
+                    collectFormatting(blockTypes.get(i - 1), matcher.group(1), formattingComments);
+                    content += matcher.end(1);
+                    i = 0;
+                }
+            }
+            contentStart[line] = content;
+
+            /* Lines empty after trim are copied */
+            if (isBlank(content, end)) {
+                kind[line] = LINE_VERBATIM;
+                continue;
+            }
+
+            /* Lines with characters reserved for masking cannot be converted */
+            if (hasReservedChars(content, end)) {
+                Log.log("PublishR line " + (line + 1)
+                        + " contains reserved noncharacters and is not translated");
+                kind[line] = LINE_VERBATIM;
+                continue;
+            }
+
+            kind[line] = LINE_TEXT;
+            formatting[line] = formattingComments.getMask();
+            String comment = formattingComments.getComment();
+            if (comment != null) {
+                Integer id = commentIds.get(comment);
+                if (id == null) {
+                    id = comments.size();
+                    comments.add(comment);
+                    commentIds.put(comment, id);
+                }
+                commentId[line] = id;
+            }
+        }
+        longestClosingFence = null;
+        closerLines = null;
+    }
+
+    /**
+     * Check if line contains characters reserved by {@link EscapeMask}
+     * and {@link ElementProcessor}.
+     * @param start first char
+     * @param end char after the last one
+     * @return true if any char is reserved
+     */
+    private boolean hasReservedChars(final int start, final int end) {
+        for (int i = start; i < end; i++) {
+            if (EscapeMask.isReserved(chars[i])) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Find YAML front matter: a "---" line at the very start of document up
+     * to a "---" or "..." line. Lines in between must be blank, "key:" lines
+     * or indented values and list items of a key, otherwise the first line
+     * is a horizontal rule of a document without front matter.
+     * @return last line of front matter or -1 if there is none
+     */
+    private int findFrontMatterEnd() {
+        if (lineCount == 0 || !isMarkerLine(0, "---")) {
+            return -1;
+        }
+        boolean hasKey = false;
+        for (int line = 1; line < lineCount; line++) {
+            if (isMarkerLine(line, "---") || isMarkerLine(line, "...")) {
+                return line;
+            }
+            int start = lineStart[line];
+            int end = lineEnd[line];
+            if (isBlank(start, end)) {
+                continue;
+            }
+            if (isYamlKey(start, end)) {
+                hasKey = true;
+                continue;
+            }
+            // Values of previous key
+            boolean nested = chars[start] == ' ' || chars[start] == '\t'
+                    || chars[start] == '-' && start + 1 < end && chars[start + 1] == ' ';
+            if (!hasKey || !nested) {
+                return -1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Check if line starts with a plain YAML mapping key followed by colon
+     * and whitespace or line end.
+     */
+    private boolean isYamlKey(final int start, final int end) {
+        char c = chars[start];
+        if (!Character.isLetterOrDigit(c) && c != '_') {
+            return false;
+        }
+        for (int i = start + 1; i < end; i++) {
+            c = chars[i];
+            if (c == ':') {
+                return i + 1 == end || chars[i + 1] == ' ' || chars[i + 1] == '\t';
+            }
+            if (!Character.isLetterOrDigit(c) && c != '_' && c != '-' && c != '.') {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Find fenced code block or HTML block starting at line. Blocks without
+     * an end are not recognized, their lines are processed as usual.
+     * @param line first line of block
+     * @return last line of block or -1 if no block starts at line
+     */
+    private int findRawBlockEnd(final int line) {
+        int end = lineEnd[line];
+        int start = skipIndent(lineStart[line], end);
+        if (start < 0) {
+            return -1;
+        }
+        char c = chars[start];
+        if (c == '`' || c == '~') {
+            int fenceLength = countRun(start, end, c);
+            if (fenceLength < MIN_FENCE_LENGTH) {
+                return -1;
+            }
+            // Info string of backtick fence cannot contain backticks, it is inline code
+            if (c == '`' && indexOf(start + fenceLength, end, "`") >= 0) {
+                return -1;
+            }
+            int[] longest = longestClosingFence.computeIfAbsent(c, this::findClosingFences);
+            if (longest[line + 1] < fenceLength) {
+                return -1;
+            }
+            // Closer exists, lines up to it are not scanned again
+            for (int next = line + 1; next < lineCount; next++) {
+                if (getClosingFenceLength(next, c) >= fenceLength) {
+                    return next;
+                }
+            }
+            return -1;
+        }
+        if (c == '<') {
+            return findHtmlBlockEnd(line, start);
+        }
+        return -1;
+    }
+
+    /**
+     * Get length of closing fence on line.
+     * @param line line index
+     * @param c fence char
+     * @return number of fence chars or 0 if line is not a closing fence
+     */
+    private int getClosingFenceLength(final int line, final char c) {
+        int fenceStart = skipIndent(lineStart[line], lineEnd[line]);
+        if (fenceStart < 0 || chars[fenceStart] != c) {
+            return 0;
+        }
+        int closingLength = countRun(fenceStart, lineEnd[line], c);
+        if (!isBlank(fenceStart + closingLength, lineEnd[line])) {
+            return 0;
+        }
+        return closingLength;
+    }
+
+    /**
+     * Find longest closing fence at or after every line.
+     * @param c fence char
+     * @return fence lengths indexed by line, one more entry than lines
+     */
+    private int[] findClosingFences(final char c) {
+        int[] longest = new int[lineCount + 1];
+        for (int line = lineCount - 1; line >= 0; line--) {
+            longest[line] = Math.max(longest[line + 1], getClosingFenceLength(line, c));
+        }
+        return longest;
+    }
+
+    /**
+     * Find end of raw HTML block starting with a tag or comment.
+     * @param line first line of block
+     * @param start position of "<" on line
+     * @return last line of block or -1 if line does not start raw HTML block
+     */
+    private int findHtmlBlockEnd(final int line, final int start) {
+        int end = lineEnd[line];
+        if (indexOf(start, Math.min(start + 4, end), "<!--") == start) {
+            return findLineWith(line, start + 4, "-->");
+        }
+        boolean closingTag = start + 1 < end && chars[start + 1] == '/';
+        int nameStart = start + 1;
+        if (closingTag) {
+            nameStart++;
+        }
+        int nameEnd = nameStart;
+        while (nameEnd < end && nameEnd - nameStart <= MAX_TAG_NAME_LENGTH
+                && isTagNameChar(chars[nameEnd])) {
+            nameEnd++;
+        }
+        if (nameEnd == nameStart || nameEnd - nameStart > MAX_TAG_NAME_LENGTH) {
+            return -1;
+        }
+        // Name must end tag name, not be a prefix of something else
+        if (nameEnd < end && chars[nameEnd] > ' ' && chars[nameEnd] != '>'
+                && chars[nameEnd] != '/') {
+            return -1;
+        }
+        String name = new String(chars, nameStart, nameEnd - nameStart)
+                .toLowerCase(Locale.ROOT);
+        if (RAW_HTML_TAGS.contains(name) && !closingTag) {
+            return findLineWith(line, nameEnd, "</" + name + ">");
+        }
+        return -1;
+    }
+
+    /**
+     * Find first line containing a string, ignoring case.
+     * @param line line to start from
+     * @param from position on that line to start from
+     * @param s string to find
+     * @return line index or -1 if not found
+     */
+    private int findLineWith(final int line, final int from, final String s) {
+        if (indexOf(from, lineEnd[line], s) >= 0) {
+            return line;
+        }
+        // Lines are classified in order, previous search result holds
+        // until its line is passed
+        int[] previous = closerLines.get(s);
+        if (previous != null && previous[0] <= line + 1
+                && (previous[1] < 0 || previous[1] > line)) {
+            return previous[1];
+        }
+        int found = -1;
+        for (int next = line + 1; next < lineCount; next++) {
+            if (indexOf(lineStart[next], lineEnd[next], s) >= 0) {
+                found = next;
+                break;
+            }
+        }
+        closerLines.put(s, new int[] {line + 1, found});
+        return found;
+    }
+
+    /**
+     * Check if line consists of a marker and optional trailing whitespace.
+     */
+    private boolean isMarkerLine(final int line, final String marker) {
+        int start = lineStart[line];
+        return lineEnd[line] - start >= marker.length()
+                && indexOf(start, start + marker.length(), marker) == start
+                && isBlank(start + marker.length(), lineEnd[line]);
+    }
+
+    /**
+     * Skip indentation allowed before fences and HTML blocks.
+     * @return position of first non-space character or -1 if indented too deep
+     * or line is blank
+     */
+    private int skipIndent(final int start, final int end) {
+        int i = start;
+        while (i < end && chars[i] == ' ' && i - start < MAX_FENCE_INDENT) {
+            i++;
+        }
+        if (i == end || chars[i] <= ' ') {
+            return -1;
+        }
+        return i;
+    }
+
+    /**
+     * Count repetitions of character.
+     */
+    private int countRun(final int start, final int end, final char c) {
+        int i = start;
+        while (i < end && chars[i] == c) {
+            i++;
+        }
+        return i - start;
+    }
+
+    /**
+     * Find string in region, ignoring ASCII case.
+     * @return position of string or -1 if not found
+     */
+    private int indexOf(final int start, final int end, final String s) {
+        int last = end - s.length();
+        for (int i = start; i <= last; i++) {
+            int j = 0;
+            while (j < s.length()
+                    && Character.toLowerCase(chars[i + j]) == s.charAt(j)) {
+                j++;
+            }
+            if (j == s.length()) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Check if character may appear in HTML tag name.
+     */
+    private static boolean isTagNameChar(final char c) {
+        return c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9';
+    }
+
+    /**
+     * Check for format signature and store its description.
+     */
+    private static void collectFormatting(final Set<FormattingType> types, final String s,
+                                          final FormattingComments formattingComments) {
+        for (FormattingType fType : types) {
+            FormattingInfo fInfo = FORMATTING_TYPE_MAP.get(fType);
+            String fComment = fInfo.getInfo(s);
+            if (fComment != null) {
+                formattingComments.put(fType, fComment);
+                break;
+            }
+        }
+    }
+
+    /**
+     * Check if region has only whitespace, same as String.trim().isEmpty().
+     */
+    private boolean isBlank(final int start, final int end) {
+        for (int i = start; i < end; i++) {
+            if (chars[i] > ' ') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Reusable view of buffer region for matchers.
+     */
+    private static final class CharSlice implements CharSequence {
+
+        private final char[] chars;
+        private int offset;
+        private int count;
+
+        CharSlice(final char[] chars) {
+            this.chars = chars;
+        }
+
+        void setBounds(final int start, final int end) {
+            offset = start;
+            count = end - start;
+        }
+
+        @Override
+        public int length() {
+            return count;
+        }
+
+        @Override
+        public char charAt(final int index) {
+            return chars[offset + index];
+        }
+
+        @Override
+        public CharSequence subSequence(final int start, final int end) {
+            return new String(chars, offset + start, end - start);
+        }
+
+        @Override
+        public String toString() {
+            return new String(chars, offset, count);
+        }
+    }
+}
@@ -25,31 +25,46 @@ package com.pilulerouge.publishr.omegat;
 import java.awt.Window;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
-import java.util.Set;
-import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Function;
+import java.util.function.IntFunction;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
-import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
 import org.omegat.core.Core;
 
 import org.omegat.core.CoreEvents;
+import org.omegat.core.data.ProtectedPart;
+import org.omegat.core.data.SourceTextEntry;
 import org.omegat.core.events.IApplicationEventListener;
 import org.omegat.filters2.AbstractFilter;
 import org.omegat.filters2.FilterContext;
+import org.omegat.filters2.ITranslateCallback;
 import org.omegat.filters2.Instance;
-import org.omegat.util.LinebreakPreservingReader;
+import org.omegat.filters2.TranslationException;
+import org.omegat.gui.editor.mark.IMarker;
+import org.omegat.gui.editor.mark.Mark;
 import org.omegat.util.Log;
+import org.omegat.util.NullBufferedWriter;
+import org.omegat.util.StaticUtils;
 
 
 /**
@@ -60,255 +75,174 @@ import org.omegat.util.Log;
 public class PublishrFilter extends AbstractFilter {
 
     /**
-     * Types of PublishR formatting.
+     * Tables and automata of plain parsing mode (pre 1.0 format).
+     * Initialized on first plain mode conversion, not at plugin startup.
      */
-    private enum FormattingType {
-        BLOCK_QUOTE,
-        HEADING,
-        LIST_ITEM,
-        FOOTNOTE,
-        LINE_NUMBER,
-        TRANSCRIPT,
-        LYRICS,
-        EMAIL
-    }
+    private static final class PlainMode {
 
-    /**
-     * Holds formatting metadata.
-     */
-    private static class FormattingInfo {
+        /*
+         In-text control symbols patterns (1 or more groups). Order may be important.
+         */
+        private static final Pattern[] TAG_PATTERNS = {
+            // Emphasis pairs
+            Pattern.compile("(?<!\\*)(\\*{3})(?!\\*)(?:.*?)(?<!\\*)(\\*{3})(?!\\*)"),
+            Pattern.compile("(?<!\\*)(\\*{2})(?!\\*)(?:.*?)(?<!\\*)(\\*{2})(?!\\*)"),
+            Pattern.compile("(?<!\\*)(\\*{1})(?!\\*)(?:.*?)(?<!\\*)(\\*{1})(?!\\*)"),
+            Pattern.compile("(?<!\\*)(\\*{1,3})(?!\\*)"),   // Single emphasis of any type
+            Pattern.compile("(\\[\\^).+?(])"),          // Footnote
+            Pattern.compile("(~).+?(~)"),               // Subscript
+            Pattern.compile("(\\^).+?(\\^)"),           // Superscript
+            Pattern.compile("(name\\().+?(\\))"),       // Name wrapper
+            Pattern.compile("(title\\().+?(\\))"),      // Title wrapper
+            Pattern.compile("(\\|)"),                   // Table column
+            Pattern.compile("(!?\\[).*?(]\\().+?(\\))") // Image/link
+        };
 
-        private Pattern pattern;
-        private String rbName;
-        private boolean hasParam;
-        private boolean countChars;
+        /*
+         Token count in each row should be equal to tag count.
+         */
+        private static final String[][][] TAG_TABLE = {
+            {{"*"}, {"<e1/>"}},  // single light emphasis
+            {{"**"}, {"<e2/>"}}, // single strong emphasis
+            {{"***"}, {"<e3/>"}}, // single combined emphasis
+            {{"*", "*"}, {"<e1>", "</e1>"}}, // light emphasis pair
+            {{"**", "**"}, {"<e2>", "</e2>"}}, // strong emphasis pair
+            {{"***", "***"}, {"<e3>", "</e3>"}}, // combined emphasis pair
+            {{"|"}, {"<s1/>"}}, // table column separator
+            {{"^", "^"}, {"<sup1>", "</sup1>"}}, // superscript
+            {{"~", "~"}, {"<sub1>", "</sub1>"}}, // subscript
+            {{"[^", "]"}, {"<fn1>", "</fn1>"}},  // footnote
+            {{"name(", ")"}, {"<n1>", "</n1>"}}, // name wrapper
+            {{"title(", ")"}, {"<t1>", "</t1>"}}, // name wrapper
+            {{"![", "](", ")"}, {"<id1>", "</id1><il1>", "</il1>"}}, // image
+            {{"[", "](", ")"}, {"<ld1>", "</ld1><la1>", "</la1>"}} // link
+        };
 
-        /**
-         * Constructor.
-         * @param re regexp string
-         * @param rbName format name string for resource bundle
-         * @param hasParam is there a parameter?
-         * @param countChars count characters in param group instead of taking literal value
+        /*
+         Literals that must be present in text for each of TAG_PATTERNS to match.
+         */
+        private static final String[] TAG_PATTERN_TRIGGERS = {
+            "*", "*", "*", "*", "[^", "~", "^", "name(", "title(", "|", "["
+        };
+
+        /*
+         Automaton finding trigger literals of all TAG_PATTERNS in one pass and
+         bit masks of triggers required by each pattern.
          */
-        FormattingInfo(final String re,
-                       final String rbName,
-                       final boolean hasParam,
-                       final boolean countChars) {
-            this.pattern = Pattern.compile(re);
-            this.rbName = rbName;
-            this.hasParam = hasParam;
-            this.countChars = countChars;
+        private static final AhoCorasick TRIGGER_AUTOMATON;
+        private static final long[] TAG_PATTERN_MASKS;
+        static {
+            String[] triggers = Stream.of(TAG_PATTERN_TRIGGERS).distinct().toArray(String[]::new);
+            List<String> triggerList = Arrays.asList(triggers);
+            TRIGGER_AUTOMATON = new AhoCorasick(triggers);
+            TAG_PATTERN_MASKS = new long[TAG_PATTERN_TRIGGERS.length];
+            for (int i = 0; i < TAG_PATTERN_TRIGGERS.length; i++) {
+                TAG_PATTERN_MASKS[i] = 1L << triggerList.indexOf(TAG_PATTERN_TRIGGERS[i]);
+            }
         }
 
-        /**
-         * Get format info from string.
-         * @param s input string
-         * @return description of format or null
+        /*
+         Automaton replacing all shortcuts with original formatting in one pass.
          */
-        String getInfo(final String s) {
-            Matcher matcher = pattern.matcher(s);
-            if (matcher.find()) {
-                String result = Util.RB.getString(rbName);
-                if (hasParam) {
-                    String param = matcher.group(1);
-                    if (countChars) {
-                        param = String.valueOf(param.length());
-                    }
-                    result += ": " + param;
+        private static final AhoCorasick SHORTCUT_AUTOMATON;
+        private static final String[] SHORTCUT_TOKENS;
+        static {
+            Map<String, String> tag2token = new LinkedHashMap<>();
+            for (String[][] row : TAG_TABLE) {
+                for (int j = 0; j < row[0].length; j++) {
+                    tag2token.put(row[1][j], row[0][j]);
                 }
-                return result;
-            } else {
-                return null;
+            }
+            SHORTCUT_AUTOMATON = new AhoCorasick(tag2token.keySet().toArray(new String[0]));
+            SHORTCUT_TOKENS = tag2token.values().toArray(new String[0]);
+        }
+
+        /*
+         Tag arrays by tab separated chain of matched tokens.
+         */
+        private static final Map<String, String[]> TOKENS_TO_TAGS = new HashMap<>();
+        static {
+            for (String[][] row : TAG_TABLE) {
+                TOKENS_TO_TAGS.put(String.join("\t", row[0]), row[1]);
             }
         }
+
+        /**
+         * Do not allow instances of this class.
+         */
+        private PlainMode() {
+
+        }
     }
 
-    private final Map<String, String> tag2token;
-    private final Map<String, String[]> tokens2tags;
-
-    private static final String ESCAPED_ASTERISK_TAG = "<$@EA@$>";
-
-    private static final Map<Pattern, Set<FormattingType>> SKIP_PATTERN_MAP;
-
-    static {
-        SKIP_PATTERN_MAP = new HashMap<>();
-
-        // Table separator line
-        SKIP_PATTERN_MAP.put(
-                Pattern.compile("^[|\\-+:= ]+$"),
-                Collections.emptySet()
-        );
-
-        // EOB marker
-        SKIP_PATTERN_MAP.put(
-                Pattern.compile("^\\^\\s*$"),
-                Collections.emptySet()
-        );
-
-        // Comment/command line
-        SKIP_PATTERN_MAP.put(
-                Pattern.compile("^\\s*\\{:.+}\\s*$"),
-                Stream.of(FormattingType.TRANSCRIPT,
-                          FormattingType.LYRICS,
-                          FormattingType.EMAIL)
-                        .collect(Collectors.toCollection(HashSet::new))
-        );
-    }
-
-    private static final Map<Pattern, Set<FormattingType>> BLOCK_PATTERN_MAP;
-    static {
-        BLOCK_PATTERN_MAP = new HashMap<>();
-
-        // Indentation
-        BLOCK_PATTERN_MAP.put(
-                Pattern.compile("^(\\s+)(.+)"),
-                Collections.emptySet()
-        );
-
-        // Heading
-        BLOCK_PATTERN_MAP.put(
-                Pattern.compile("^(#+\\**\\s)(.+)"),
-                Stream.of(FormattingType.HEADING)
-                        .collect(Collectors.toCollection(HashSet::new))
-        );
-
-        // List
-        BLOCK_PATTERN_MAP.put(
-                Pattern.compile("^((?:\\*|\\d+.)\\s)(.+)"),
-                Stream.of(FormattingType.LIST_ITEM)
-                        .collect(Collectors.toCollection(HashSet::new))
-        );
-
-        // Block-quote
-        BLOCK_PATTERN_MAP.put(
-                Pattern.compile("^((?:>+\\s*)+)(.*)"),
-                Stream.of(FormattingType.BLOCK_QUOTE)
-                        .collect(Collectors.toCollection(HashSet::new))
-        );
-
-        // Footnote
-        BLOCK_PATTERN_MAP.put(
-                Pattern.compile("^(\\[\\^.+?]:\\s+)(.+)"),
-                Stream.of(FormattingType.FOOTNOTE)
-                        .collect(Collectors.toCollection(HashSet::new))
-        );
-
-        // Line number
-        BLOCK_PATTERN_MAP.put(
-                Pattern.compile("^(\\{L\\d+?}\\s+)(.+)"),
-                Stream.of(FormattingType.LINE_NUMBER)
-                        .collect(Collectors.toCollection(HashSet::new))
-        );
-    }
-
-    private static final Map<FormattingType, FormattingInfo> FORMATTING_TYPE_MAP;
-    static {
-        FORMATTING_TYPE_MAP = new HashMap<>();
-        FORMATTING_TYPE_MAP.put(
-                FormattingType.BLOCK_QUOTE,
-                new FormattingInfo("(>+)", "FMT_BLOCK_QUOTE", true, true)
-        );
-        FORMATTING_TYPE_MAP.put(
-                FormattingType.FOOTNOTE,
-                new FormattingInfo("\\[\\^(.+)?]:", "FMT_FOOTNOTE", true, false)
-        );
-        FORMATTING_TYPE_MAP.put(
-                FormattingType.HEADING,
-                new FormattingInfo("(#+)", "FMT_HEADING", true, true)
-        );
-        FORMATTING_TYPE_MAP.put(
-                FormattingType.LIST_ITEM,
-                new FormattingInfo(".", "FMT_LIST_ITEM", false, false)
-        );
-        FORMATTING_TYPE_MAP.put(
-                FormattingType.LINE_NUMBER,
-                new FormattingInfo("\\{L(\\d+)?}", "FMT_LINE_NUMBER", true, false)
-        );
-        FORMATTING_TYPE_MAP.put(
-                FormattingType.TRANSCRIPT,
-                new FormattingInfo("\\.transcript", "FMT_TRANSCRIPT", false, false)
-        );
-        FORMATTING_TYPE_MAP.put(
-                FormattingType.LYRICS,
-                new FormattingInfo("\\.lyrics", "FMT_LYRICS", false, false)
-        );
-        FORMATTING_TYPE_MAP.put(
-                FormattingType.EMAIL,
-                new FormattingInfo("\\.email", "FMT_EMAIL", false, false)
-        );
-    }
-
-    /*
-     In-text control symbols patterns (1 or more groups). Order may be important.
-     This structure is used in plain parsing mode.
-     */
-    private static final Pattern[] TAG_PATTERNS = {
-        // Emphasis pairs
-        Pattern.compile("(?<!\\*)(\\*{3})(?!\\*)(?:.*?)(?<!\\*)(\\*{3})(?!\\*)"),
-        Pattern.compile("(?<!\\*)(\\*{2})(?!\\*)(?:.*?)(?<!\\*)(\\*{2})(?!\\*)"),
-        Pattern.compile("(?<!\\*)(\\*{1})(?!\\*)(?:.*?)(?<!\\*)(\\*{1})(?!\\*)"),
-        Pattern.compile("(?<!\\*)(\\*{1,3})(?!\\*)"),   // Single emphasis of any type
-        Pattern.compile("(\\[\\^).+?(])"),          // Footnote
-        Pattern.compile("(~).+?(~)"),               // Subscript
-        Pattern.compile("(\\^).+?(\\^)"),           // Superscript
-        Pattern.compile("(name\\().+?(\\))"),       // Name wrapper
-        Pattern.compile("(title\\().+?(\\))"),      // Title wrapper
-        Pattern.compile("(\\|)"),                   // Table column
-        Pattern.compile("(!?\\[).*?(]\\().+?(\\))") // Image/link
-    };
-
-    /*
-     Token count in each row should be equal to tag count.
-     This structure is used in plain parsing mode.
+    private static final String EXTRA_FOOTNOTE_MARKER = "[^omegat-%d]";
+    private static final String EF_OPEN_TAG = "<" + Util.EF_TAG_NAME + ">";
+
+    // Minimal number of lines converted by one task in parallel mode
+    private static final int PARALLEL_CHUNK_LINES = 64;
+
+    // Runs of processing stages skipped since start or last reset, by all files
+    private static final int SKIPPED_COMMENTS = 0;
+    private static final int SKIPPED_RESTORES = 1;
+    private static final int SKIPPED_WRITES = 2;
+    private static final int IDENTITY_LINES = 3;
+    private static final int SKIPPED_EXTRAS = 4;
+    private static final AtomicLongArray STAGE_SKIPS = new AtomicLongArray(5);
+
+    // Receives structure of processed files, may be null
+    private ParseObserver observer;
+
+    // Restore formatting of unchanged lines instead of copying their source
+    private boolean forceRestore;
+
+    /**
+     * Highlighter shared by all filter instances, created by the first
+     * processed file or options change.
      */
-    private static final String[][][] TAG_TABLE = {
-        {{"*"}, {"<e1/>"}},  // single light emphasis
-        {{"**"}, {"<e2/>"}}, // single strong emphasis
-        {{"***"}, {"<e3/>"}}, // single combined emphasis
-        {{"*", "*"}, {"<e1>", "</e1>"}}, // light emphasis pair
-        {{"**", "**"}, {"<e2>", "</e2>"}}, // strong emphasis pair
-        {{"***", "***"}, {"<e3>", "</e3>"}}, // combined emphasis pair
-        {{"|"}, {"<s1/>"}}, // table column separator
-        {{"^", "^"}, {"<sup1>", "</sup1>"}}, // superscript
-        {{"~", "~"}, {"<sub1>", "</sub1>"}}, // subscript
-        {{"[^", "]"}, {"<fn1>", "</fn1>"}},  // footnote
-        {{"name(", ")"}, {"<n1>", "</n1>"}}, // name wrapper
-        {{"title(", ")"}, {"<t1>", "</t1>"}}, // name wrapper
-        {{"![", "](", ")"}, {"<id1>", "</id1><il1>", "</il1>"}}, // image
-        {{"[", "](", ")"}, {"<ld1>", "</ld1><la1>", "</la1>"}} // link
-    };
+    private static volatile Highlighter highlighter;
 
-    private static final String EXTRA_FOOTNOTE_MARKER = "[^omegat-%d]";
+    /**
+     * Set when filter is loaded as OmegaT plugin. Command line tool has no
+     * editor, so it never sets up highlighter styles or shared formatter.
+     */
+    private static volatile boolean editorIntegration;
 
-    private static final Highlighter HIGHLIGHTER = new Highlighter();
-    static {
-        Core.registerMarker(HIGHLIGHTER);
+    /**
+     * Marker registered at plugin startup. Delegates to highlighter once it
+     * exists, entries have no marks before any PublishR file is processed.
+     */
+    private static final class DeferredMarker implements IMarker {
+
+        @Override
+        public List<Mark> getMarksForEntry(final SourceTextEntry ste, final String sourceText,
+                                           final String translationText,
+                                           final boolean isActive) {
+            Highlighter current = highlighter;
+            if (current == null) {
+                return null;
+            }
+            return current.getMarksForEntry(ste, sourceText, translationText, isActive);
+        }
     }
 
-
     /**
-     * Constructor.
+     * Get shared highlighter, create it on first call.
+     * @return highlighter
      */
-    public PublishrFilter() {
-
-        // Init objects for plain parsing mode
-        tag2token = new HashMap<>();
-        tokens2tags = new HashMap<>();
-        // Populate tag/token maps
-        for (int i = 0; i < TAG_TABLE.length; i++) {
-            String tokens = "";
-            for (int j = 0; j < TAG_TABLE[i][0].length; j++) {
-                if (j == 0) {
-                    tokens = TAG_TABLE[i][0][j];
-                } else {
-                    tokens = tokens + "\t" + TAG_TABLE[i][0][j];
+    static Highlighter getHighlighter() {
+        Highlighter result = highlighter;
+        if (result == null) {
+            synchronized (PublishrFilter.class) {
+                if (highlighter == null) {
+                    highlighter = new Highlighter();
                 }
-                tag2token.put(TAG_TABLE[i][1][j], TAG_TABLE[i][0][j]);
+                result = highlighter;
             }
-            tokens2tags.put(tokens, TAG_TABLE[i][1]);
         }
+        return result;
     }
 
+
     private static IApplicationEventListener generateIApplicationEventListener() {
         return new IApplicationEventListener() {
 
@@ -320,18 +254,64 @@ public class PublishrFilter extends AbstractFilter {
 
             @Override
             public void onApplicationShutdown() {
+                Logger logger = Logger.getLogger(PublishrFilter.class.getName());
+                if (logger.isLoggable(Level.FINE)) {
+                    for (String line : getProcessingTotals()) {
+                        logger.fine("PublishR " + line);
+                    }
+                }
             }
         };
     }
 
+    /**
+     * Describe work skipped by prefilters and processing stages since start
+     * or last reset. Logged on shutdown with debug logging, printed by stats
+     * command.
+     * @return one line per group of counters
+     */
+    static List<String> getProcessingTotals() {
+        List<String> lines = new ArrayList<>();
+        lines.add("element processors skipped by trigger prefilter: "
+                + Formatter.getTotalSkipCounts());
+        lines.add(String.format("stages skipped: comments=%d, restore and write=%d, "
+                + "verbatim writes=%d", STAGE_SKIPS.get(SKIPPED_COMMENTS),
+                STAGE_SKIPS.get(SKIPPED_RESTORES), STAGE_SKIPS.get(SKIPPED_WRITES)));
+        lines.add("unchanged lines copied from source: " + STAGE_SKIPS.get(IDENTITY_LINES));
+        lines.add("duplicate or untranslatable extras not sent: "
+                + STAGE_SKIPS.get(SKIPPED_EXTRAS));
+        return lines;
+    }
+
+    /**
+     * Start counting skipped work from zero.
+     */
+    static void resetProcessingTotals() {
+        Formatter.resetTotalSkipCounts();
+        for (int i = 0; i < STAGE_SKIPS.length(); i++) {
+            STAGE_SKIPS.set(i, 0);
+        }
+    }
+
     /**
      * Plugin loader.
      */
     public static void loadPlugins() {
+        editorIntegration = true;
         Core.registerFilterClass(PublishrFilter.class);
+        Core.registerMarker(new DeferredMarker());
         CoreEvents.registerApplicationEventListener(generateIApplicationEventListener());
     }
 
+    /**
+     * Enable or disable set up of editor highlighter and formatter by
+     * processed files. Used by tests, plugin loader enables it.
+     * @param enabled true if files set up editor helpers
+     */
+    static void setEditorIntegration(final boolean enabled) {
+        editorIntegration = enabled;
+    }
+
     /**
      * Plugin unloader.
      */
@@ -376,12 +356,8 @@ public class PublishrFilter extends AbstractFilter {
      * @param input text with shortcuts
      * @return text with original formatting
      */
-    private String replaceWithFormatting(final String input) {
-        String result = input;
-        for (Entry<String, String> tagEntry : tag2token.entrySet()) {
-            result = result.replace(tagEntry.getKey(), tagEntry.getValue());
-        }
-        return result;
+    static String replaceWithFormatting(final String input) {
+        return PlainMode.SHORTCUT_AUTOMATON.replace(input, PlainMode.SHORTCUT_TOKENS);
     }
 
     /**
@@ -392,6 +368,9 @@ public class PublishrFilter extends AbstractFilter {
      * @return processed text
      */
     private String makeExtraFootnotes(final String text, final List<String> extraFootnotes) {
+        if (!text.contains(EF_OPEN_TAG)) {
+            return text;
+        }
         Matcher matcher = Util.EF_PATTERN.matcher(text);
         String result = text;
         while (matcher.find()) {
@@ -403,6 +382,50 @@ public class PublishrFilter extends AbstractFilter {
         return result;
     }
 
+    /**
+     * Replace all formatting in line with shortcuts.
+     * Used in plain parsing mode.
+     * @param line text with original formatting
+     * @return text with shortcuts
+     */
+    private String convertPlain(final String line) {
+        // Only escaped asterisks are respected in plain mode
+        String masked = EscapeMask.mask(line, EscapeMask.ASTERISK_ESCAPABLE);
+        // Run only patterns whose trigger literals are present in the line
+        long triggers = PlainMode.TRIGGER_AUTOMATON.scan(masked);
+        for (int p = 0; p < PlainMode.TAG_PATTERNS.length; p++) {
+            if ((triggers & PlainMode.TAG_PATTERN_MASKS[p]) != 0) {
+                masked = replaceWithShortcuts(masked, PlainMode.TAG_PATTERNS[p]);
+            }
+        }
+        return EscapeMask.unmask(masked);
+    }
+
+    /**
+     * Convert all text lines of document on the common fork-join pool.
+     * Document is split at paragraph boundaries, every chunk is converted
+     * by a separate task. Converter must not depend on other lines.
+     * @param document document
+     * @param arrayFactory result array constructor
+     * @param converter line converter
+     * @param <T> conversion result type
+     * @return conversion results by line index, null for non-text lines
+     */
+    private static <T> T[] convertInParallel(final PublishrDocument document,
+                                             final IntFunction<T[]> arrayFactory,
+                                             final Function<String, T> converter) {
+        T[] result = arrayFactory.apply(document.getLineCount());
+        int[] chunks = document.getParagraphChunks(PARALLEL_CHUNK_LINES);
+        IntStream.range(0, chunks.length - 1).parallel().forEach(c -> {
+            for (int line = chunks[c]; line < chunks[c + 1]; line++) {
+                if (document.getKind(line) == PublishrDocument.LINE_TEXT) {
+                    result[line] = converter.apply(document.getContent(line));
+                }
+            }
+        });
+        return result;
+    }
+
     /**
      * Replace formatting with shortcuts.
      * Used in plain parsing mode.
@@ -443,7 +466,27 @@ public class PublishrFilter extends AbstractFilter {
             tokenChain.append("\t");
             tokenChain.append(matcher.group(i));
         }
-        return tokens2tags.get(tokenChain.toString());
+        return PlainMode.TOKENS_TO_TAGS.get(tokenChain.toString());
+    }
+
+    /**
+     * Pass structure of processed files to observer. It is called from the
+     * same pass that reads the file, so observer should be set for parsing
+     * only, translation reads every file twice.
+     * @param observer observer, null to stop observing
+     */
+    void setObserver(final ParseObserver observer) {
+        this.observer = observer;
+    }
+
+    /**
+     * Always restore formatting of translated lines. Unchanged lines are
+     * otherwise copied from source, which would hide broken restoring from
+     * identity round trips.
+     * @param forceRestore true to restore every line
+     */
+    void setForceRestore(final boolean forceRestore) {
+        this.forceRestore = forceRestore;
     }
 
     @Override
@@ -454,7 +497,7 @@ public class PublishrFilter extends AbstractFilter {
             dialog.setVisible(true);
             Map<String, String> newOptions = dialog.getOptions();
             if (newOptions != null) {
-                HIGHLIGHTER.setupStyles(newOptions, true);
+                applyOptions(newOptions);
             }
             return newOptions;
         } catch (Exception e) {
@@ -463,139 +506,368 @@ public class PublishrFilter extends AbstractFilter {
         }
     }
 
+    /**
+     * Apply options changed in settings dialog to shared highlighter and
+     * formatter. May run while files are processed and marks are painted.
+     * @param options new filter options
+     */
+    static void applyOptions(final Map<String, String> options) {
+        getHighlighter().setupStyles(options, true);
+        Util.setupFormatter(options);
+    }
+
     @Override
     public boolean hasOptions() {
         return true;
     }
 
+    /**
+     * {@inheritDoc} UTF-8 files are memory-mapped and split into lines on
+     * byte level. Other encodings and files with BOM go through the reader.
+     */
+    @Override
+    protected void processFile(final File inFile, final File outFile, final FilterContext fc)
+            throws IOException, TranslationException {
+
+        PublishrDocument document = loadDocument(inFile, fc);
+
+        BufferedWriter writer;
+        if (outFile != null) {
+            writer = createWriter(outFile, getOutputEncoding(fc));
+        } else {
+            writer = new NullBufferedWriter();
+        }
+        try {
+            processDocument(document, writer);
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Load source document, memory-mapped if possible. Remembers encoding
+     * the document was read with, as the base class does for the reader.
+     * @param inFile source file
+     * @param fc filter context
+     * @return document
+     * @throws IOException on read error
+     */
+    private PublishrDocument loadDocument(final File inFile, final FilterContext fc)
+            throws IOException {
+        String encoding = getInputEncoding(fc, inFile);
+        if (encoding != null && Charset.isSupported(encoding)
+                && StandardCharsets.UTF_8.equals(Charset.forName(encoding))) {
+            PublishrDocument document = PublishrDocument.map(inFile);
+            if (document != null) {
+                inEncodingLastParsedFile = StandardCharsets.UTF_8.name();
+                return document;
+            }
+        }
+        if (encoding != null) {
+            inEncodingLastParsedFile = encoding;
+        } else {
+            inEncodingLastParsedFile = Charset.defaultCharset().name();
+        }
+        try (BufferedReader reader = createReader(inFile, encoding)) {
+            return PublishrDocument.read(reader);
+        }
+    }
+
+    /**
+     * Run both translation passes like {@link #translateFile} does, but read
+     * source file only once and write result to a stream.
+     * Used by command line tool.
+     * @param inFile source file
+     * @param out output stream, flushed but not closed
+     * @param config filter options
+     * @param fc filter context
+     * @param callback translation callback
+     * @throws IOException on read or write error
+     */
+    void translateToStream(final File inFile, final OutputStream out,
+                           final Map<String, String> config, final FilterContext fc,
+                           final ITranslateCallback callback) throws IOException {
+        entryParseCallback = null;
+        entryTranslateCallback = callback;
+        entryAlignCallback = null;
+        processOptions = config;
+        try {
+            PublishrDocument document = loadDocument(inFile, fc);
+            callback.setPass(1);
+            processDocument(document, new NullBufferedWriter());
+            callback.linkPrevNextSegments();
+            callback.setPass(2);
+            BufferedWriter writer = new BufferedWriter(
+                    new OutputStreamWriter(out, getOutputEncoding(fc)));
+            processDocument(document, writer);
+            writer.flush();
+        } finally {
+            entryTranslateCallback = null;
+            processOptions = null;
+        }
+    }
+
     /**
      * {@inheritDoc} See syntax at http://kramdown.gettalong.org/syntax.html
      */
     @Override
     public void processFile(final BufferedReader reader, final BufferedWriter outfile,
             final FilterContext fc) throws IOException {
+        processDocument(PublishrDocument.read(reader), outfile);
+    }
+
+    /**
+     * {@inheritDoc} Text lines are paired by block structure and shortcut
+     * pattern, see {@link StructuralAligner}. Shortcuts of translations are
+     * renamed to the ones of source text, extra strings of paired lines are
+     * paired in order.
+     */
+    @Override
+    protected void alignFile(final BufferedReader sourceFile, final BufferedReader translatedFile,
+                             final FilterContext fc) throws Exception {
+        alignDocuments(PublishrDocument.read(sourceFile), PublishrDocument.read(translatedFile));
+    }
+
+    /**
+     * Pass aligned segments of two documents to align callback.
+     * @param source source document
+     * @param translated translated document
+     * @return number of aligned text lines
+     */
+    int alignDocuments(final PublishrDocument source, final PublishrDocument translated) {
+        boolean usePlainShortcuts = Boolean.valueOf(processOptions.get(Util.PLAIN_SHORTCUTS));
+        Pattern untranslatableExtras = Util.getUntranslatableExtras(processOptions);
+        List<StructuralAligner.Unit> sourceUnits = collectAlignUnits(source, usePlainShortcuts);
+        List<StructuralAligner.Unit> targetUnits = collectAlignUnits(translated,
+                usePlainShortcuts);
+        List<int[]> pairs = StructuralAligner.align(sourceUnits, targetUnits);
+        for (int[] pair : pairs) {
+            StructuralAligner.Unit s = sourceUnits.get(pair[0]);
+            StructuralAligner.Unit t = targetUnits.get(pair[1]);
+            entryAlignCallback.addTranslation(null, s.getText(),
+                    StructuralAligner.renameShortcuts(t.getText(), s.getText()), false, null, this);
+
+            // Extras are paired only if both lines have the same number of them
+            if (s.getExtras().size() != t.getExtras().size()) {
+                continue;
+            }
+            Iterator<String> targetExtras = t.getExtras().values().iterator();
+            for (String extra : s.getExtras().values()) {
+                String translatedExtra = targetExtras.next();
+                if (!extra.equals(translatedExtra) && (untranslatableExtras == null
+                        || !untranslatableExtras.matcher(extra).find())) {
+                    entryAlignCallback.addTranslation(null, extra, translatedExtra, false, null,
+                            this);
+                }
+            }
+        }
+        Log.log(String.format("PublishR aligned %d of %d source and %d translated lines",
+                pairs.size(), sourceUnits.size(), targetUnits.size()));
+        return pairs.size();
+    }
 
-        // Setup HIGHLIGHTER styles. Unfortunately it can be only here.
-        HIGHLIGHTER.setupStyles(processOptions, false);
+    /**
+     * Convert text lines of document to segments the same way parsing does.
+     * @param document document
+     * @param usePlainShortcuts use plain shortcuts (pre 1.0 format)
+     * @return units of text lines in document order
+     */
+    private List<StructuralAligner.Unit> collectAlignUnits(final PublishrDocument document,
+                                                           final boolean usePlainShortcuts) {
+        // Shortcut numbering is per file
+        Formatter formatter = Formatter.forDocument(Util.getEnabledElements(processOptions));
+        List<StructuralAligner.Unit> units = new ArrayList<>();
+        for (int line = 0; line < document.getLineCount(); line++) {
+            if (document.getKind(line) != PublishrDocument.LINE_TEXT) {
+                continue;
+            }
+            Map<String, String> extras = new LinkedHashMap<>();
+            String text;
+            if (usePlainShortcuts) {
+                text = convertPlain(document.getContent(line));
+            } else {
+                text = formatter.bind(formatter.convert(document.getContent(line)), extras);
+            }
+            units.add(new StructuralAligner.Unit(document.getPrefix(line), text, extras));
+        }
+        return units;
+    }
+
+    /**
+     * Same as {@link #processEntry(String, String)}, but in parse pass shortcut
+     * tags of entry are passed as protected parts, so OmegaT does not have to
+     * find them again.
+     * @param entry entry text
+     * @param comment translator comment
+     * @param tags shortcut tags of entry with original formatting, may be null
+     * @return translation
+     */
+    private String processEntry(final String entry, final String comment,
+                                final Map<String, String> tags) {
+        if (entryParseCallback == null || tags == null || tags.isEmpty()) {
+            return processEntry(entry, comment);
+        }
+        List<ProtectedPart> protectedParts = new ArrayList<>(tags.size());
+        for (Map.Entry<String, String> e : tags.entrySet()) {
+            ProtectedPart part = new ProtectedPart();
+            part.setTextInSourceSegment(e.getKey());
+            part.setDetailsFromSourceFile(e.getValue());
+            part.setReplacementWordsCountCalculation(StaticUtils.TAG_REPLACEMENT);
+            part.setReplacementUniquenessCalculation(StaticUtils.TAG_REPLACEMENT);
+            part.setReplacementMatchCalculation(StaticUtils.TAG_REPLACEMENT);
+            protectedParts.add(part);
+        }
+        entryParseCallback.addEntry(null, entry, null, false, comment, null, this,
+                protectedParts);
+        return entry;
+    }
 
-        LinebreakPreservingReader lbpr = new LinebreakPreservingReader(reader);
+    /**
+     * Translate document and write result.
+     * @param document source document
+     * @param outfile output writer
+     * @throws IOException on write error
+     */
+    private void processDocument(final PublishrDocument document, final BufferedWriter outfile)
+            throws IOException {
+
+        if (editorIntegration) {
+            // Setup highlighter styles. Unfortunately it can be only here.
+            getHighlighter().setupStyles(processOptions, false);
+            // Shared formatter serves highlighter and popup menu of the project
+            Util.setupFormatter(processOptions);
+        }
 
         List<String> extraFootnotes = new ArrayList<>();
 
         // Do we use plain shortcuts? (pre 1.0 format)
         boolean usePlainShortcuts = Boolean.valueOf(processOptions.get(Util.PLAIN_SHORTCUTS));
 
-        // Reset shortcut converters
-        Util.FORMATTER.resetConverters();
-
-        String line;
-        Matcher matcher;
+        // Patterns are compiled once per element profile, shortcut numbering
+        // is per file, files may be processed concurrently
+        Formatter formatter = Formatter.forDocument(Util.getEnabledElements(processOptions));
 
         Map<String, String> sourceExtras = new HashMap<>();
         Map<String, String> translatedExtras = new HashMap<>();
 
-        // Collected formatting comments
-        Map<FormattingType, String> formattingComments = new TreeMap<>();
-        // Create a list of block patterns so it can be reiterated
-        List<Pattern> blockPatterns = new ArrayList<>(BLOCK_PATTERN_MAP.keySet());
+        // Extras sent for translation only once per file and extras kept as is
+        boolean deduplicateExtras = Boolean.valueOf(processOptions.get(Util.DEDUPLICATE_EXTRAS));
+        Map<String, String> extrasSeen = new HashMap<>();
+        Pattern untranslatableExtras = Util.getUntranslatableExtras(processOptions);
+        int skippedExtras = 0;
 
-        while ((line = lbpr.readLine()) != null) {
+        /*
+         In parallel mode formatting of all lines is found beforehand. Shortcut
+         names are still bound below in document order, so numbering, segments
+         and prev/next links are the same as in serial mode.
+         */
+        String[] plainLines = null;
+        Formatter.Conversion[] conversions = null;
+        if (Boolean.valueOf(processOptions.get(Util.PARALLEL_CONVERSION))) {
+            if (usePlainShortcuts) {
+                plainLines = convertInParallel(document, String[]::new, this::convertPlain);
+            } else {
+                conversions = convertInParallel(document, Formatter.Conversion[]::new,
+                        formatter::convert);
+            }
+        }
 
-            // Clear extra strings maps
-            sourceExtras.clear();
-            translatedExtras.clear();
+        ParseObserver obs = observer;
+        if (obs != null) {
+            obs.startDocument(document);
+        }
 
-            String br = lbpr.getLinebreak();
+        /*
+         Run only stages whose results current pass uses. Comments are read
+         only by the parse callback. Output is discarded only in the parse
+         pass and in the first pass of translateToStream, which write to a
+         null writer. OmegaT's translateFile writes a real file in both of
+         its passes and alignment does not come here, so they run every stage.
+         */
+        boolean needComments = entryParseCallback != null;
+        boolean needOutput = !(outfile instanceof NullBufferedWriter);
+        // Number of skipped runs of each stage
+        int skippedComments = 0;
+        int skippedRestores = 0;
+        int skippedWrites = 0;
+        int identityLines = 0;
+
+        // Reused for comments of lines with extra strings
+        StringBuilder cb = new StringBuilder();
+        // Shortcut tags of line passed to OmegaT as protected parts when parsing
+        Map<String, String> shortcutTags = null;
+        if (needComments) {
+            shortcutTags = new LinkedHashMap<>();
+        }
 
-            /* Skip empty lines */
-            if (line.trim().isEmpty()) {
-                outfile.write(line + br);
-                formattingComments.clear(); // Clear formatting comments
-                continue;
-            }
+        int lineCount = document.getLineCount();
+        for (int lineIndex = 0; lineIndex < lineCount; lineIndex++) {
 
-            /* Skip lines matched by skip patterns, collect format metadata */
-            boolean skipLine = false;
-            for (Map.Entry<Pattern, Set<FormattingType>> e : SKIP_PATTERN_MAP.entrySet()) {
-                matcher = e.getKey().matcher(line);
-                if (matcher.matches()) {
-                    outfile.write(line + br);
-                    // Check for format signature
-                    for (FormattingType fType: e.getValue()) {
-                        FormattingInfo fInfo = FORMATTING_TYPE_MAP.get(fType);
-                        String fComment = fInfo.getInfo(line);
-                        if (fComment != null) {
-                            formattingComments.put(fType, fComment);
-                            break;
-                        }
-                    }
-                    skipLine = true;
-                    break;
+            /* Copy a run of empty lines, skipped lines and lines without text at once */
+            if (document.getKind(lineIndex) != PublishrDocument.LINE_TEXT) {
+                int runEnd = lineIndex + 1;
+                while (runEnd < lineCount
+                        && document.getKind(runEnd) != PublishrDocument.LINE_TEXT) {
+                    runEnd++;
                 }
-            }
-            if (skipLine) {
-                continue;
-            }
-
-            /* Trim block-level tokens, collect format metadata */
-            int i = 0;
-            while (i < blockPatterns.size()) {
-                Pattern pattern = blockPatterns.get(i);
-                matcher = pattern.matcher(line);
-                i++;
-                if (matcher.matches()) {
-                    outfile.write(matcher.group(1));
-                    line = matcher.group(2);
-                    // Check for format signature
-                    for (FormattingType fType: BLOCK_PATTERN_MAP.get(pattern)) {
-                        FormattingInfo fInfo = FORMATTING_TYPE_MAP.get(fType);
-                        String fComment = fInfo.getInfo(matcher.group(1));
-                        if (fComment != null) {
-                            formattingComments.put(fType, fComment);
-                            break;
-                        }
-                    }
-                    i = 0;
+                if (needOutput) {
+                    document.writeLines(lineIndex, runEnd, outfile);
+                } else {
+                    skippedWrites++;
                 }
+                lineIndex = runEnd - 1;
+                continue;
             }
 
-            /* Skip empty lines after trim */
-            if (line.trim().isEmpty()) {
-                outfile.write(line + br);
-                continue;
+            // Clear extra strings maps
+            sourceExtras.clear();
+            translatedExtras.clear();
+            if (shortcutTags != null) {
+                shortcutTags.clear();
             }
 
-            /* Temporary replace escaped asterisks to reduce regexp madness */
-            if (line.contains("\\*")) {
-                line = line.replace("\\*", ESCAPED_ASTERISK_TAG);
+            /* Write block-level tokens */
+            if (needOutput) {
+                document.writePrefix(lineIndex, outfile);
             }
+            String line = document.getContent(lineIndex);
 
             /* Replace formatting with OmegaT shortcuts */
-            if (usePlainShortcuts) {
-                for (Pattern p : TAG_PATTERNS) {
-                    line = replaceWithShortcuts(line, p);
-                }
+            if (plainLines != null) {
+                line = plainLines[lineIndex];
+            } else if (usePlainShortcuts) {
+                line = convertPlain(line);
             } else {
-                line = Util.FORMATTER.toShortcuts(line, sourceExtras);
+                Formatter.Conversion conversion;
+                if (conversions != null) {
+                    conversion = conversions[lineIndex];
+                } else {
+                    conversion = formatter.convert(line);
+                }
+                if (obs != null) {
+                    for (ElementProcessor.PendingShortcut match : conversion.getPending()) {
+                        obs.addElement(lineIndex, formatter.getElement(match), match);
+                    }
+                }
+                line = formatter.bind(conversion, sourceExtras, shortcutTags);
             }
-
-            /* Put escaped asterisks back */
-            if (line.contains(ESCAPED_ASTERISK_TAG)) {
-                line = line.replace(ESCAPED_ASTERISK_TAG, "\\*");
+            if (obs != null) {
+                obs.addSegment(lineIndex, line);
             }
 
             /* Create a comment for translation */
-            StringBuilder cb = new StringBuilder();
             String comment = null;
-
-            if (!formattingComments.isEmpty()) {
-                String fComment = formattingComments.values().stream()
-                        .collect(Collectors.joining(" / "));
-                cb.append(fComment);
-                cb.append("\n");
+            if (!needComments) {
+                skippedComments++;
+            } else {
+                comment = document.getComment(lineIndex);
             }
 
-            if (!sourceExtras.isEmpty()) {
+            if (needComments && !sourceExtras.isEmpty()) {
+                cb.setLength(0);
+                if (comment != null) {
+                    cb.append(comment);
+                }
                 for (Map.Entry<String, String> e : sourceExtras.entrySet()) {
                     cb.append("<");
                     cb.append(e.getKey());
@@ -603,36 +875,71 @@ public class PublishrFilter extends AbstractFilter {
                     cb.append(e.getValue());
                     cb.append("\n");
                 }
-            }
-
-            if (cb.length() > 0) {
-                comment = cb.toString();
+                comment = CommentPool.intern(cb.toString());
             }
 
             /* Translate the text */
-            line = processEntry(line, comment);
+            String sourceLine = line;
+            line = processEntry(line, comment, shortcutTags);
+            // Source line is restored as is if nothing was translated
+            boolean unchanged = line.equals(sourceLine);
 
             /* Translate extra strings */
             if (!usePlainShortcuts) {
                 for (Map.Entry<String, String> e : sourceExtras.entrySet()) {
-                    String translatedExtra = processEntry(e.getValue(),
-                            String.format("<%s>", e.getKey()));
+                    String translatedExtra = null;
+                    if (untranslatableExtras != null
+                            && untranslatableExtras.matcher(e.getValue()).find()) {
+                        translatedExtra = e.getValue();
+                    } else if (deduplicateExtras) {
+                        translatedExtra = extrasSeen.get(e.getValue());
+                    }
+                    if (translatedExtra != null) {
+                        skippedExtras++;
+                    } else {
+                        if (obs != null) {
+                            obs.addExtra(lineIndex, e.getValue());
+                        }
+                        String extraComment = null;
+                        if (needComments) {
+                            extraComment = CommentPool.extraComment(e.getKey());
+                        }
+                        translatedExtra = processEntry(e.getValue(), extraComment);
+                        if (deduplicateExtras) {
+                            extrasSeen.put(e.getValue(), translatedExtra);
+                        }
+                    }
                     translatedExtras.put(e.getValue(), translatedExtra);
+                    unchanged &= translatedExtra.equals(e.getValue());
                 }
             }
 
+            if (!needOutput) {
+                skippedRestores++;
+                continue;
+            }
+
+            /* Write source text of unchanged line unless it has extra footnotes */
+            if (unchanged && !forceRestore && !line.contains(EF_OPEN_TAG)) {
+                document.writeContent(lineIndex, outfile);
+                document.writeLineBreak(lineIndex, outfile);
+                identityLines++;
+                continue;
+            }
+
             /* Replace OmegaT shortcuts with original formatting */
             if (usePlainShortcuts) {
                 line = replaceWithFormatting(line);
             } else {
-                line = Util.FORMATTER.toOriginal(line, translatedExtras);
+                line = formatter.toOriginal(line, translatedExtras);
             }
 
             /* Check for extra footnotes */
             line = makeExtraFootnotes(line, extraFootnotes);
 
             /* Write translated text to file */
-            outfile.write(line + br);
+            outfile.write(line);
+            document.writeLineBreak(lineIndex, outfile);
         }
 
         // Finally write extra footnotes created during translation
@@ -640,5 +947,11 @@ public class PublishrFilter extends AbstractFilter {
             outfile.write("\n\n");
             outfile.write(fn);
         }
+
+        STAGE_SKIPS.addAndGet(SKIPPED_COMMENTS, skippedComments);
+        STAGE_SKIPS.addAndGet(SKIPPED_RESTORES, skippedRestores);
+        STAGE_SKIPS.addAndGet(SKIPPED_WRITES, skippedWrites);
+        STAGE_SKIPS.addAndGet(IDENTITY_LINES, identityLines);
+        STAGE_SKIPS.addAndGet(SKIPPED_EXTRAS, skippedExtras);
     }
 }
@@ -0,0 +1,55 @@
+/**************************************************************************
+ PublishR file filter for OmegaT
+
+ Copyright (C) 2018 Lev Abashkin
+
+ This file is NOT a part of OmegaT.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ **************************************************************************/
+
+package com.pilulerouge.publishr.omegat;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Sink for segments extracted by command line tool.
+ */
+interface SegmentWriter extends Closeable {
+
+    /**
+     * Start segments of a source file.
+     * @param path source file path relative to input root
+     * @throws IOException on write error
+     */
+    void startFile(String path) throws IOException;
+
+    /**
+     * Write segment.
+     * @param id segment number in file, starting from 1
+     * @param source segment text with shortcuts
+     * @param comment translator comment or null
+     * @param shortcut shortcut name if segment is an extra string, otherwise null
+     * @throws IOException on write error
+     */
+    void writeSegment(int id, String source, String comment, String shortcut)
+            throws IOException;
+
+    /**
+     * End segments of current source file.
+     * @throws IOException on write error
+     */
+    void endFile() throws IOException;
+}
@@ -29,8 +29,13 @@ import java.awt.*;
 import java.awt.event.KeyEvent;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
+import java.util.EnumMap;
+import java.util.EnumSet;
 import java.util.Map;
+import java.util.Set;
 import java.util.TreeMap;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 import java.util.stream.Stream;
 
 
@@ -45,6 +50,12 @@ final class SettingsDialog extends JDialog {
     private JButton buttonOK;
     private JButton buttonCancel;
     private JCheckBox plainFootnotesCheckBox;
+    private JCheckBox parallelConversionCheckBox;
+    private JCheckBox deduplicateExtrasCheckBox;
+    private JLabel untranslatableExtrasLabel;
+    private JTextField untranslatableExtrasField;
+    private JPanel elementsPanel;
+    private Map<Element, JCheckBox> elementCheckBoxes;
     private JLabel tagColorLabel;
     private JLabel textColorLabel;
     private JButton changeTagColorButton;
@@ -69,6 +80,13 @@ final class SettingsDialog extends JDialog {
         // Set localized UI text values
         setTitle(Util.RB.getString("SETTINGS_TITLE"));
         plainFootnotesCheckBox.setText(Util.RB.getString("SETTINGS_PLAIN_SHORTCUTS"));
+        parallelConversionCheckBox.setText(Util.RB.getString("SETTINGS_PARALLEL_CONVERSION"));
+        deduplicateExtrasCheckBox.setText(Util.RB.getString("SETTINGS_DEDUPLICATE_EXTRAS"));
+        untranslatableExtrasLabel.setText(Util.RB.getString("SETTINGS_UNTRANSLATABLE_EXTRAS"));
+        elementsPanel.setBorder(BorderFactory.createTitledBorder(
+                Util.RB.getString("SETTINGS_ENABLED_ELEMENTS")));
+        elementCheckBoxes.forEach((element, checkBox) ->
+                checkBox.setText(Util.RB.getString("ELEMENT_" + element.name())));
         textColorLabel.setText(Util.RB.getString("SETTINGS_EXTRA_TEXT_COLOR_EXAMPLE"));
         tagColorLabel.setText(Util.RB.getString("SETTINGS_EXTRA_TAG_COLOR_EXAMPLE"));
         changeTextColorButton.setText(Util.RB.getString("SETTINGS_CHANGE_COLOR_BUTTON"));
@@ -81,6 +99,17 @@ final class SettingsDialog extends JDialog {
         String usePlainFootnotes = options.getOrDefault(Util.PLAIN_SHORTCUTS, "false");
         plainFootnotesCheckBox.setSelected(Boolean.valueOf(usePlainFootnotes));
 
+        String useParallelConversion = options.getOrDefault(Util.PARALLEL_CONVERSION, "false");
+        parallelConversionCheckBox.setSelected(Boolean.valueOf(useParallelConversion));
+
+        String deduplicateExtras = options.getOrDefault(Util.DEDUPLICATE_EXTRAS, "false");
+        deduplicateExtrasCheckBox.setSelected(Boolean.valueOf(deduplicateExtras));
+        untranslatableExtrasField.setText(options.getOrDefault(Util.UNTRANSLATABLE_EXTRAS, ""));
+
+        Set<Element> enabledElements = Util.getEnabledElements(options);
+        elementCheckBoxes.forEach((element, checkBox) ->
+                checkBox.setSelected(enabledElements.contains(element)));
+
         Color extraTagColor = Color.decode(options.getOrDefault(Util.EXTRA_TAG_COLOR,
                 Util.DEFAULT_EXTRA_TAG_COLOR));
         tagColorLabel.setForeground(extraTagColor);
@@ -137,7 +166,27 @@ final class SettingsDialog extends JDialog {
     }
 
     private void onOK() {
+        String untranslatableExtras = untranslatableExtrasField.getText().trim();
+        try {
+            Pattern.compile(untranslatableExtras);
+        } catch (PatternSyntaxException e) {
+            JOptionPane.showMessageDialog(this, e.getDescription(),
+                    Util.RB.getString("SETTINGS_INVALID_PATTERN"), JOptionPane.ERROR_MESSAGE);
+            return;
+        }
         options.put(Util.PLAIN_SHORTCUTS, Boolean.toString(plainFootnotesCheckBox.isSelected()));
+        options.put(Util.PARALLEL_CONVERSION,
+                Boolean.toString(parallelConversionCheckBox.isSelected()));
+        options.put(Util.DEDUPLICATE_EXTRAS,
+                Boolean.toString(deduplicateExtrasCheckBox.isSelected()));
+        options.put(Util.UNTRANSLATABLE_EXTRAS, untranslatableExtras);
+        Set<Element> enabledElements = EnumSet.noneOf(Element.class);
+        elementCheckBoxes.forEach((element, checkBox) -> {
+            if (checkBox.isSelected()) {
+                enabledElements.add(element);
+            }
+        });
+        options.put(Util.ENABLED_ELEMENTS, Util.encodeElements(enabledElements));
         options.put(Util.EXTRA_TAG_COLOR, colorToHex(tagColorLabel.getForeground()));
         options.put(Util.EXTRA_TEXT_COLOR, colorToHex(textColorLabel.getForeground()));
         dispose();
@@ -174,6 +223,17 @@ final class SettingsDialog extends JDialog {
 
         panel = new JPanel();
         plainFootnotesCheckBox = new JCheckBox();
+        parallelConversionCheckBox = new JCheckBox();
+        deduplicateExtrasCheckBox = new JCheckBox();
+        untranslatableExtrasLabel = new JLabel();
+        untranslatableExtrasField = new JTextField();
+        elementsPanel = new JPanel(new GridLayout(0, 2));
+        elementCheckBoxes = new EnumMap<>(Element.class);
+        for (Element element : Element.values()) {
+            JCheckBox checkBox = new JCheckBox();
+            elementCheckBoxes.put(element, checkBox);
+            elementsPanel.add(checkBox);
+        }
         buttonCancel = new JButton();
         buttonOK = new JButton();
         changeTagColorButton = new JButton();
@@ -191,6 +251,14 @@ final class SettingsDialog extends JDialog {
         layout.setHorizontalGroup(
                 layout.createParallelGroup()
                         .addComponent(plainFootnotesCheckBox)
+                        .addComponent(parallelConversionCheckBox)
+                        .addComponent(deduplicateExtrasCheckBox)
+                        .addGroup(
+                                layout.createSequentialGroup()
+                                        .addComponent(untranslatableExtrasLabel)
+                                        .addComponent(untranslatableExtrasField)
+                        )
+                        .addComponent(elementsPanel)
                         .addGroup(
                                 layout.createSequentialGroup()
                                         .addComponent(tagColorLabel, GroupLayout.PREFERRED_SIZE,
@@ -216,6 +284,17 @@ final class SettingsDialog extends JDialog {
         layout.setVerticalGroup(
                 layout.createSequentialGroup()
                         .addComponent(plainFootnotesCheckBox)
+                        .addComponent(parallelConversionCheckBox)
+                        .addComponent(deduplicateExtrasCheckBox)
+                        .addGroup(
+                                layout.createParallelGroup(GroupLayout.Alignment.BASELINE)
+                                        .addComponent(untranslatableExtrasLabel)
+                                        .addComponent(untranslatableExtrasField,
+                                                GroupLayout.PREFERRED_SIZE,
+                                                GroupLayout.DEFAULT_SIZE,
+                                                GroupLayout.PREFERRED_SIZE)
+                        )
+                        .addComponent(elementsPanel)
                         .addGroup(
                                 layout.createParallelGroup(GroupLayout.Alignment.BASELINE)
                                         .addComponent(tagColorLabel)
@@ -0,0 +1,196 @@
+/**************************************************************************
+ PublishR file filter for OmegaT
+
+ Copyright (C) 2018 Lev Abashkin
+
+ This file is NOT a part of OmegaT.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ **************************************************************************/
+
+
+package com.pilulerouge.publishr.omegat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Pairs text lines of a source document with lines of its translation by
+ * structure only: block prefixes (headings, list items, quotes, footnote
+ * labels, line numbers) and the pattern of shortcuts in line text. Text
+ * itself is never compared, so alignment does not depend on languages.
+ */
+final class StructuralAligner {
+
+    /**
+     * Shortcut tags produced by the filter, e.g. {@code <e1>}, {@code </a2>}, {@code <f3/>}.
+     */
+    private static final Pattern SHORTCUT_PATTERN = Pattern.compile("</?([a-z]+)\\d+/?>");
+
+    /**
+     * Number of lines skipped in either document to find matching structure
+     * again after a mismatch.
+     */
+    private static final int RESYNC_WINDOW = 8;
+
+    /**
+     * Text line of a document prepared for alignment.
+     */
+    static final class Unit {
+
+        private final String signature;
+        private final String text;
+        private final Map<String, String> extras;
+
+        /**
+         * Constructor.
+         * @param prefix block prefixes of line
+         * @param text line text with shortcuts
+         * @param extras extra strings of line in shortcut order
+         */
+        Unit(final String prefix, final String text, final Map<String, String> extras) {
+            this.signature = signature(prefix, text);
+            this.text = text;
+            this.extras = extras;
+        }
+
+        String getText() {
+            return text;
+        }
+
+        Map<String, String> getExtras() {
+            return extras;
+        }
+    }
+
+    /**
+     * Build structural signature of line: block prefixes without whitespace
+     * and shortcut tags without numbers.
+     * @param prefix block prefixes
+     * @param text line text with shortcuts
+     * @return signature
+     */
+    static String signature(final String prefix, final String text) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < prefix.length(); i++) {
+            char c = prefix.charAt(i);
+            if (!Character.isWhitespace(c)) {
+                sb.append(c);
+            }
+        }
+        sb.append('\t');
+        Matcher matcher = SHORTCUT_PATTERN.matcher(text);
+        while (matcher.find()) {
+            String tag = matcher.group();
+            sb.append(tag, 0, matcher.end(1) - matcher.start());
+            if (tag.endsWith("/>")) {
+                sb.append('/');
+            }
+            sb.append('>');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Align lines with equal signatures. Lines are paired in order; after a
+     * mismatch the nearest pair of lines with equal signatures within the
+     * resync window is searched, lines skipped on the way stay unpaired.
+     * @param source units of source document
+     * @param target units of translated document
+     * @return pairs of source and target unit indexes
+     */
+    static List<int[]> align(final List<Unit> source, final List<Unit> target) {
+        List<int[]> pairs = new ArrayList<>();
+        int i = 0;
+        int j = 0;
+        while (i < source.size() && j < target.size()) {
+            if (!source.get(i).signature.equals(target.get(j).signature)) {
+                int[] next = resync(source, target, i, j);
+                if (next == null) {
+                    i++;
+                    j++;
+                    continue;
+                }
+                i = next[0];
+                j = next[1];
+            }
+            pairs.add(new int[] {i, j});
+            i++;
+            j++;
+        }
+        return pairs;
+    }
+
+    /**
+     * Find nearest pair of units with equal signatures, preferring the
+     * smallest total number of skipped units.
+     * @return source and target index or null if there is none in window
+     */
+    private static int[] resync(final List<Unit> source, final List<Unit> target,
+                                final int i, final int j) {
+        for (int distance = 1; distance <= 2 * RESYNC_WINDOW; distance++) {
+            for (int di = Math.max(0, distance - RESYNC_WINDOW);
+                 di <= Math.min(distance, RESYNC_WINDOW); di++) {
+                int si = i + di;
+                int tj = j + distance - di;
+                if (si < source.size() && tj < target.size()
+                        && source.get(si).signature.equals(target.get(tj).signature)) {
+                    return new int[] {si, tj};
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Rename shortcuts of translated text to shortcuts of source text at
+     * the same positions. Shortcut numbering is per file, so the same
+     * element may have different names in source and translation. Texts
+     * must have equal signatures.
+     * @param translation translated text
+     * @param source source text
+     * @return translation with source shortcut names
+     */
+    static String renameShortcuts(final String translation, final String source) {
+        List<String> names = new ArrayList<>();
+        Matcher matcher = SHORTCUT_PATTERN.matcher(source);
+        while (matcher.find()) {
+            names.add(matcher.group());
+        }
+        if (names.isEmpty()) {
+            return translation;
+        }
+        StringBuilder sb = new StringBuilder();
+        matcher = SHORTCUT_PATTERN.matcher(translation);
+        int last = 0;
+        int index = 0;
+        while (matcher.find() && index < names.size()) {
+            sb.append(translation, last, matcher.start());
+            sb.append(names.get(index++));
+            last = matcher.end();
+        }
+        sb.append(translation, last, translation.length());
+        return sb.toString();
+    }
+
+    /**
+     * Do not allow instances of this class.
+     */
+    private StructuralAligner() {
+
+    }
+}
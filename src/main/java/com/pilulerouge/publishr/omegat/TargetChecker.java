@@ -0,0 +1,278 @@
+/**************************************************************************
+ PublishR file filter for OmegaT
+
+ Copyright (C) 2018 Lev Abashkin
+
+ This file is NOT a part of OmegaT.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ **************************************************************************/
+
+
+package com.pilulerouge.publishr.omegat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Finds broken markup in translated PublishR files: unbalanced emphasis,
+ * shortcut tags left in text and footnote references without definitions.
+ * Lines are split into block prefixes and content and escapes are masked
+ * the same way the filter does it. Every line is scanned once, so check
+ * time is linear in file size.
+ */
+final class TargetChecker {
+
+    /*
+     Names of shortcut tags written by the filter without trailing digits.
+     Both current and plain (pre v1.0) shortcuts are listed.
+     */
+    private static final Set<String> SHORTCUT_PREFIXES = new HashSet<>(Arrays.asList(
+            "e", "f", "s", "n", "t", "i", "a",
+            "sup", "sub", "fn", "id", "il", "ld", "la"));
+
+    /**
+     * Problem found in a file.
+     */
+    static final class Problem {
+        private final int line;
+        private final int column;
+        private final String message;
+
+        /**
+         * Constructor.
+         * @param line line index
+         * @param column column index
+         * @param message problem description
+         */
+        Problem(final int line, final int column, final String message) {
+            this.line = line;
+            this.column = column;
+            this.message = message;
+        }
+
+        int getLine() {
+            return line;
+        }
+
+        int getColumn() {
+            return column;
+        }
+
+        String getMessage() {
+            return message;
+        }
+
+        /**
+         * Format problem like compilers do, with 1-based positions.
+         * @param path file path
+         * @return problem description
+         */
+        String format(final String path) {
+            return path + ":" + (line + 1) + ":" + (column + 1) + ": " + message;
+        }
+    }
+
+    /**
+     * Check document.
+     * @param document translated document
+     * @param plainShortcuts true if only asterisks are escapable (pre v1.0 format)
+     * @return problems in document order
+     */
+    static List<Problem> check(final PublishrDocument document, final boolean plainShortcuts) {
+        String escapable = EscapeMask.KRAMDOWN_ESCAPABLE;
+        if (plainShortcuts) {
+            escapable = EscapeMask.ASTERISK_ESCAPABLE;
+        }
+        List<Problem> problems = new ArrayList<>();
+        // Footnote label -> position of first reference
+        Map<String, Problem> references = new LinkedHashMap<>();
+        Set<String> definitions = new HashSet<>();
+
+        for (int line = 0; line < document.getLineCount(); line++) {
+            if (document.getKind(line) != PublishrDocument.LINE_TEXT) {
+                continue;
+            }
+            findDefinitions(document.getPrefix(line), definitions);
+            String content = EscapeMask.mask(document.getContent(line), escapable);
+            int column = document.getContentColumn(line);
+            checkEmphasis(content, line, column, problems);
+            checkShortcuts(content, line, column, problems);
+            findReferences(content, line, column, references);
+        }
+
+        for (Map.Entry<String, Problem> e : references.entrySet()) {
+            if (!definitions.contains(e.getKey())) {
+                Problem reference = e.getValue();
+                problems.add(new Problem(reference.getLine(), reference.getColumn(),
+                        "Footnote [^" + e.getKey() + "] has no definition"));
+            }
+        }
+        problems.sort((a, b) -> {
+            if (a.line != b.line) {
+                return Integer.compare(a.line, b.line);
+            }
+            return Integer.compare(a.column, b.column);
+        });
+        return problems;
+    }
+
+    /**
+     * Check that every emphasis opened in line is closed in it, as formatting
+     * elements never span lines. Runs of asterisks open emphasis if followed
+     * by non-space and close it if preceded by non-space. Two asterisks are
+     * strong emphasis, odd number also contains light emphasis.
+     */
+    private static void checkEmphasis(final String content, final int line, final int column,
+                                      final List<Problem> problems) {
+        // Start of open strong and light emphasis or -1
+        int strong = -1;
+        int light = -1;
+        int length = content.length();
+        int i = content.indexOf('*');
+        while (i >= 0) {
+            int runEnd = i;
+            while (runEnd < length && content.charAt(runEnd) == '*') {
+                runEnd++;
+            }
+            int run = runEnd - i;
+            boolean canOpen = runEnd < length && !Character.isWhitespace(content.charAt(runEnd));
+            boolean canClose = i > 0 && !Character.isWhitespace(content.charAt(i - 1));
+            if (run >= 2) {
+                strong = matchDelimiter(strong, i, canOpen, canClose, "**",
+                        line, column, problems);
+            }
+            if (run % 2 == 1) {
+                light = matchDelimiter(light, i, canOpen, canClose, "*",
+                        line, column, problems);
+            }
+            i = content.indexOf('*', runEnd);
+        }
+        if (strong >= 0) {
+            problems.add(new Problem(line, column + strong, "Unclosed **"));
+        }
+        if (light >= 0) {
+            problems.add(new Problem(line, column + light, "Unclosed *"));
+        }
+    }
+
+    /**
+     * Apply delimiter to emphasis state.
+     * @return new start of open emphasis or -1
+     */
+    private static int matchDelimiter(final int open, final int position, final boolean canOpen,
+                                      final boolean canClose, final String delimiter,
+                                      final int line, final int column,
+                                      final List<Problem> problems) {
+        if (open >= 0) {
+            if (canClose) {
+                return -1;
+            }
+            // Delimiter inside open emphasis is a part of its text
+            return open;
+        }
+        if (canOpen) {
+            return position;
+        }
+        if (canClose) {
+            problems.add(new Problem(line, column + position, "Unmatched closing " + delimiter));
+        }
+        return -1;
+    }
+
+    /**
+     * Find shortcut tags left in text, e.g. {@code </e1>} or {@code <f2/>}.
+     */
+    private static void checkShortcuts(final String content, final int line, final int column,
+                                       final List<Problem> problems) {
+        int length = content.length();
+        int i = content.indexOf('<');
+        while (i >= 0) {
+            int j = i + 1;
+            if (j < length && content.charAt(j) == '/') {
+                j++;
+            }
+            int nameStart = j;
+            while (j < length && content.charAt(j) >= 'a' && content.charAt(j) <= 'z') {
+                j++;
+            }
+            int digitStart = j;
+            while (j < length && content.charAt(j) >= '0' && content.charAt(j) <= '9') {
+                j++;
+            }
+            int nameEnd = j;
+            if (j < length && content.charAt(j) == '/') {
+                j++;
+            }
+            if (j < length && content.charAt(j) == '>') {
+                String prefix = content.substring(nameStart, digitStart);
+                boolean shortcut = Util.EF_TAG_NAME.equals(prefix) && nameEnd == digitStart;
+                if (nameEnd > digitStart && SHORTCUT_PREFIXES.contains(prefix)) {
+                    shortcut = true;
+                }
+                if (shortcut) {
+                    problems.add(new Problem(line, column + i, "Shortcut tag "
+                            + content.substring(i, j + 1) + " left in text"));
+                }
+            }
+            i = content.indexOf('<', i + 1);
+        }
+    }
+
+    /**
+     * Find footnote references {@code [^label]} in line content.
+     */
+    private static void findReferences(final String content, final int line, final int column,
+                                       final Map<String, Problem> references) {
+        int i = content.indexOf("[^");
+        while (i >= 0) {
+            int end = content.indexOf(']', i + 2);
+            if (end < 0) {
+                return;
+            }
+            if (end > i + 2) {
+                references.putIfAbsent(EscapeMask.unmask(content.substring(i + 2, end)),
+                        new Problem(line, column + i, null));
+            }
+            i = content.indexOf("[^", end + 1);
+        }
+    }
+
+    /**
+     * Find footnote definitions {@code [^label]:} in block prefix.
+     */
+    private static void findDefinitions(final String prefix, final Set<String> definitions) {
+        int i = prefix.indexOf("[^");
+        while (i >= 0) {
+            int end = prefix.indexOf("]:", i + 2);
+            if (end < 0) {
+                return;
+            }
+            definitions.add(prefix.substring(i + 2, end));
+            i = prefix.indexOf("[^", end + 2);
+        }
+    }
+
+    /**
+     * Do not allow instances of this class.
+     */
+    private TargetChecker() {
+
+    }
+}
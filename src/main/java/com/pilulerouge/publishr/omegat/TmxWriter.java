@@ -0,0 +1,124 @@
+/**************************************************************************
+ PublishR file filter for OmegaT
+
+ Copyright (C) 2018 Lev Abashkin
+
+ This file is NOT a part of OmegaT.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ **************************************************************************/
+
+
+package com.pilulerouge.publishr.omegat;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import javax.xml.XMLConstants;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+/**
+ * Streams translation units to TMX 1.4 document. Shortcuts are written as
+ * plain text, the same way {@link TranslationIndex} reads them.
+ */
+final class TmxWriter implements Closeable {
+
+    private final OutputStream stream;
+    private final XMLStreamWriter out;
+    private final String sourceLanguage;
+    private final String targetLanguage;
+
+    /**
+     * Constructor.
+     * @param stream output, closed with this writer
+     * @param sourceLanguage source language code
+     * @param targetLanguage target language code
+     * @throws IOException if XML writer cannot be created
+     */
+    TmxWriter(final OutputStream stream, final String sourceLanguage,
+              final String targetLanguage) throws IOException {
+        this.stream = stream;
+        this.sourceLanguage = sourceLanguage;
+        this.targetLanguage = targetLanguage;
+        try {
+            out = XMLOutputFactory.newInstance().createXMLStreamWriter(stream,
+                    StandardCharsets.UTF_8.name());
+            out.writeStartDocument(StandardCharsets.UTF_8.name(), "1.0");
+            out.writeCharacters("\n");
+            out.writeStartElement("tmx");
+            out.writeAttribute("version", "1.4");
+            out.writeCharacters("\n");
+            out.writeEmptyElement("header");
+            out.writeAttribute("creationtool", "PublishR filter");
+            out.writeAttribute("creationtoolversion", "1");
+            out.writeAttribute("segtype", "paragraph");
+            out.writeAttribute("o-tmf", "PublishR");
+            out.writeAttribute("adminlang", "en");
+            out.writeAttribute("srclang", sourceLanguage);
+            out.writeAttribute("datatype", "plaintext");
+            out.writeCharacters("\n");
+            out.writeStartElement("body");
+            out.writeCharacters("\n");
+        } catch (XMLStreamException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Write translation unit.
+     * @param source source text
+     * @param target translation
+     * @throws IOException on write error
+     */
+    void write(final String source, final String target) throws IOException {
+        try {
+            out.writeStartElement("tu");
+            writeVariant(sourceLanguage, source);
+            writeVariant(targetLanguage, target);
+            out.writeEndElement();
+            out.writeCharacters("\n");
+        } catch (XMLStreamException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private void writeVariant(final String language, final String text)
+            throws XMLStreamException {
+        out.writeStartElement("tuv");
+        out.writeAttribute("xml", XMLConstants.XML_NS_URI, "lang", language);
+        out.writeStartElement("seg");
+        out.writeCharacters(text);
+        out.writeEndElement();
+        out.writeEndElement();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            out.writeEndElement(); // body
+            out.writeCharacters("\n");
+            out.writeEndElement(); // tmx
+            out.writeCharacters("\n");
+            out.writeEndDocument();
+            out.close();
+        } catch (XMLStreamException e) {
+            throw new IOException(e);
+        } finally {
+            stream.close();
+        }
+    }
+}
@@ -0,0 +1,323 @@
+/**************************************************************************
+ PublishR file filter for OmegaT
+
+ Copyright (C) 2018 Lev Abashkin
+
+ This file is NOT a part of OmegaT.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ **************************************************************************/
+
+package com.pilulerouge.publishr.omegat;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import javax.xml.XMLConstants;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Compact source to target translation map.
+ * Strings are stored UTF-8 encoded in direct (off-heap) byte buffer chunks,
+ * the hash table holds only chunk offsets and hash codes. Lookups can run
+ * concurrently once the index is built.
+ */
+final class TranslationIndex {
+
+    private static final int CHUNK_SIZE = 1 << 24;
+    private static final int INITIAL_CAPACITY = 1 << 10;
+
+    private final List<ByteBuffer> chunks = new ArrayList<>();
+    private ByteBuffer current;
+
+    // Entry location as (chunk << 32 | position) + 1, 0 for empty slot
+    private long[] slots;
+    private int[] hashes;
+    private int size;
+    private long dataSize;
+
+    /**
+     * Constructor.
+     */
+    TranslationIndex() {
+        slots = new long[INITIAL_CAPACITY];
+        hashes = new int[INITIAL_CAPACITY];
+    }
+
+    /**
+     * Add translation.
+     * @param source source text
+     * @param target translation
+     * @param replace whether to replace existing translation of the same source
+     */
+    void put(final String source, final String target, final boolean replace) {
+        byte[] key = source.getBytes(StandardCharsets.UTF_8);
+        int hash = hash(key);
+        int slot = findSlot(key, hash);
+        if (slots[slot] != 0 && !replace) {
+            return;
+        }
+        if (slots[slot] == 0) {
+            size++;
+        }
+        slots[slot] = append(key, target.getBytes(StandardCharsets.UTF_8)) + 1;
+        hashes[slot] = hash;
+        // Keep load factor below 1/2
+        if (size * 2 > slots.length) {
+            rehash();
+        }
+    }
+
+    /**
+     * Find translation.
+     * @param source source text
+     * @return translation or null
+     */
+    String get(final String source) {
+        byte[] key = source.getBytes(StandardCharsets.UTF_8);
+        int slot = findSlot(key, hash(key));
+        long location = slots[slot];
+        if (location == 0) {
+            return null;
+        }
+        ByteBuffer chunk = chunks.get((int) ((location - 1) >>> 32));
+        int position = (int) (location - 1) + 4 + key.length;
+        byte[] value = new byte[chunk.getInt(position)];
+        for (int i = 0; i < value.length; i++) {
+            value[i] = chunk.get(position + 4 + i);
+        }
+        return new String(value, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Get number of translations.
+     * @return number of distinct source texts
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Get size of off-heap string data.
+     * @return bytes used by stored strings
+     */
+    long getDataSize() {
+        return dataSize;
+    }
+
+    /**
+     * Load translations from TMX file. Translation units with "file" or "id"
+     * properties are alternative translations, they are used only when there
+     * is no default translation of the same source. Text of inline elements
+     * is kept, so both OmegaT and level 2 TMX give segments with shortcuts.
+     * Only variants in target language are taken. Regions are compared when
+     * both language tags have one, exact match is preferred.
+     * @param tmx TMX file
+     * @param sourceLanguage source language used if TMX header has none
+     * @param targetLanguage target language
+     * @return index
+     * @throws IOException on read or XML error
+     */
+    static TranslationIndex loadTmx(final Path tmx, final String sourceLanguage,
+                                    final String targetLanguage) throws IOException {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+
+        TranslationIndex index = new TranslationIndex();
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(tmx))) {
+            XMLStreamReader reader = factory.createXMLStreamReader(in);
+            String srcLang = sourceLanguage;
+            String lang = null;
+            String source = null;
+            String target = null;
+            String regionTarget = null;
+            boolean alternative = false;
+            while (reader.hasNext()) {
+                int event = reader.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    switch (reader.getLocalName()) {
+                        case "header":
+                            String headerLang = reader.getAttributeValue(null, "srclang");
+                            if (headerLang != null && !"*all*".equals(headerLang)) {
+                                srcLang = headerLang;
+                            }
+                            break;
+                        case "tu":
+                            lang = null;
+                            source = null;
+                            target = null;
+                            regionTarget = null;
+                            alternative = false;
+                            break;
+                        case "prop":
+                            String type = reader.getAttributeValue(null, "type");
+                            if ("file".equals(type) || "id".equals(type)) {
+                                alternative = true;
+                            }
+                            break;
+                        case "tuv":
+                            lang = reader.getAttributeValue(XMLConstants.XML_NS_URI, "lang");
+                            if (lang == null) {
+                                lang = reader.getAttributeValue(null, "lang");
+                            }
+                            break;
+                        case "seg":
+                            String text = readSegment(reader);
+                            if (lang == null) {
+                                break;
+                            }
+                            if (source == null && isSameLanguage(srcLang, lang)) {
+                                source = text;
+                            } else if (target == null && targetLanguage.equalsIgnoreCase(lang)) {
+                                target = text;
+                            } else if (regionTarget == null
+                                    && isSameLanguage(targetLanguage, lang)) {
+                                regionTarget = text;
+                            }
+                            break;
+                        default:
+                            break;
+                    }
+                } else if (event == XMLStreamConstants.END_ELEMENT
+                        && "tu".equals(reader.getLocalName()) && source != null) {
+                    if (target != null) {
+                        index.put(source, target, !alternative);
+                    } else if (regionTarget != null) {
+                        index.put(source, regionTarget, !alternative);
+                    }
+                }
+            }
+            reader.close();
+        } catch (XMLStreamException e) {
+            throw new IOException("Invalid TMX " + tmx + ": " + e.getMessage(), e);
+        }
+        return index;
+    }
+
+    /**
+     * Check whether two language tags name the same language, regions are
+     * compared only when both tags have one.
+     */
+    private static boolean isSameLanguage(final String first, final String second) {
+        if (first.equalsIgnoreCase(second)) {
+            return true;
+        }
+        String[] firstTags = first.split("[-_]", 2);
+        String[] secondTags = second.split("[-_]", 2);
+        return firstTags[0].equalsIgnoreCase(secondTags[0])
+                && (firstTags.length == 1 || secondTags.length == 1);
+    }
+
+    /**
+     * Read text of segment including text of inline elements.
+     * Reader is left on segment end element.
+     */
+    private static String readSegment(final XMLStreamReader reader) throws XMLStreamException {
+        StringBuilder text = new StringBuilder();
+        int depth = 1;
+        while (depth > 0) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                depth++;
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            } else if (event == XMLStreamConstants.CHARACTERS
+                    || event == XMLStreamConstants.CDATA
+                    || event == XMLStreamConstants.SPACE) {
+                text.append(reader.getText());
+            }
+        }
+        return text.toString();
+    }
+
+    private static int hash(final byte[] key) {
+        int h = Arrays.hashCode(key);
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Find slot holding given key or empty slot where it belongs.
+     */
+    private int findSlot(final byte[] key, final int hash) {
+        int mask = slots.length - 1;
+        int slot = hash & mask;
+        while (slots[slot] != 0 && (hashes[slot] != hash || !keyEquals(slots[slot], key))) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private boolean keyEquals(final long location, final byte[] key) {
+        ByteBuffer chunk = chunks.get((int) ((location - 1) >>> 32));
+        int position = (int) (location - 1);
+        if (chunk.getInt(position) != key.length) {
+            return false;
+        }
+        for (int i = 0; i < key.length; i++) {
+            if (chunk.get(position + 4 + i) != key[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Store entry as key length, key, value length, value.
+     * @return entry location
+     */
+    private long append(final byte[] key, final byte[] value) {
+        int entrySize = 8 + key.length + value.length;
+        if (current == null || current.remaining() < entrySize) {
+            current = ByteBuffer.allocateDirect(Math.max(CHUNK_SIZE, entrySize));
+            chunks.add(current);
+        }
+        long location = ((long) (chunks.size() - 1) << 32) | current.position();
+        current.putInt(key.length);
+        current.put(key);
+        current.putInt(value.length);
+        current.put(value);
+        dataSize += entrySize;
+        return location;
+    }
+
+    private void rehash() {
+        long[] oldSlots = slots;
+        int[] oldHashes = hashes;
+        slots = new long[oldSlots.length * 2];
+        hashes = new int[oldSlots.length * 2];
+        int mask = slots.length - 1;
+        for (int i = 0; i < oldSlots.length; i++) {
+            if (oldSlots[i] != 0) {
+                int slot = oldHashes[i] & mask;
+                while (slots[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                slots[slot] = oldSlots[i];
+                hashes[slot] = oldHashes[i];
+            }
+        }
+    }
+}
@@ -51,6 +51,18 @@ public class UTF8Control extends ResourceBundle.Control {
                                     final String format,
                                     final ClassLoader loader,
                                     final boolean reload) throws IOException {
+        // Bundles compiled to classes at build time do not need parsing
+        if ("java.class".equals(format)) {
+            try {
+                ResourceBundle compiled = super.newBundle(baseName, locale, format, loader,
+                        reload);
+                if (compiled != null) {
+                    return compiled;
+                }
+            } catch (IllegalAccessException | InstantiationException e) {
+                // Fall back to properties file
+            }
+        }
         // The below is a copy of the default implementation.
         String bundleName = toBundleName(baseName, locale);
         String resourceName = toResourceName(bundleName, "properties");
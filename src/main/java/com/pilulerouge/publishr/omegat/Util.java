@@ -23,12 +23,17 @@ package com.pilulerouge.publishr.omegat;
 
 import org.omegat.core.Core;
 import org.omegat.core.data.IProject;
+import org.omegat.util.Log;
 
+import java.util.EnumSet;
 import java.util.LinkedHashMap;
 import java.util.Locale;
 import java.util.Map;
 import java.util.ResourceBundle;
+import java.util.Set;
 import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+import java.util.stream.Collectors;
 
 
 /**
@@ -48,6 +53,21 @@ enum Element {
 }
 
 
+/**
+ * Types of PublishR block formatting.
+ */
+enum FormattingType {
+    BLOCK_QUOTE,
+    HEADING,
+    LIST_ITEM,
+    FOOTNOTE,
+    LINE_NUMBER,
+    TRANSCRIPT,
+    LYRICS,
+    EMAIL
+}
+
+
 /**
  * Types of blocks.
  */
@@ -62,12 +82,14 @@ enum BlockType {
  */
 public final class Util {
 
-    static final Formatter FORMATTER = new Formatter();
-
     /**
      * Configuration option names.
      */
     public static final String PLAIN_SHORTCUTS = "plainShortcuts";
+    public static final String ENABLED_ELEMENTS = "enabledElements";
+    public static final String PARALLEL_CONVERSION = "parallelConversion";
+    public static final String DEDUPLICATE_EXTRAS = "deduplicateExtras";
+    public static final String UNTRANSLATABLE_EXTRAS = "untranslatableExtras";
     static final String EXTRA_TAG_COLOR = "extraTagColor";
     static final String EXTRA_TEXT_COLOR = "extraTextColor";
 
@@ -96,11 +118,102 @@ public final class Util {
 
     static {
         ResourceBundle.Control utf8Control = new UTF8Control();
-        RB = ResourceBundle.getBundle("PublishR_strings", Locale.getDefault(), utf8Control);
+        RB = ResourceBundle.getBundle("com.pilulerouge.publishr.omegat.PublishR_strings",
+                Locale.getDefault(), utf8Control);
     }
 
     static final String FILTER_NAME = RB.getString("FILTER_NAME");
 
+    /**
+     * Formatter compiled from elements enabled in project options.
+     * Created on first use, compiling its patterns is not a startup cost.
+     */
+    private static volatile Formatter formatter;
+
+    /**
+     * Get formatter for current element profile.
+     * @return formatter, compiled for all elements if options were not set up
+     */
+    static Formatter getFormatter() {
+        Formatter result = formatter;
+        if (result == null) {
+            synchronized (Util.class) {
+                if (formatter == null) {
+                    formatter = new Formatter(EnumSet.allOf(Element.class));
+                }
+                result = formatter;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Rebuild formatter if element profile in options differs from current one.
+     * @param options filter options
+     */
+    static synchronized void setupFormatter(final Map<String, String> options) {
+        Set<Element> elements = getEnabledElements(options);
+        if (formatter == null || !elements.equals(formatter.getElements())) {
+            formatter = new Formatter(elements);
+        }
+    }
+
+    /**
+     * Get elements enabled in filter options.
+     * @param options filter options
+     * @return set of enabled elements, all elements if option is not set
+     */
+    static Set<Element> getEnabledElements(final Map<String, String> options) {
+        String value = null;
+        if (options != null) {
+            value = options.get(ENABLED_ELEMENTS);
+        }
+        if (value == null) {
+            return EnumSet.allOf(Element.class);
+        }
+        Set<Element> result = EnumSet.noneOf(Element.class);
+        for (String name : value.split(",")) {
+            try {
+                if (!name.trim().isEmpty()) {
+                    result.add(Element.valueOf(name.trim()));
+                }
+            } catch (IllegalArgumentException e) {
+                Log.log("Unknown PublishR element in options: " + name);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Get pattern of extra strings which are not sent for translation.
+     * @param options filter options
+     * @return compiled pattern or null if option is not set or invalid
+     */
+    static Pattern getUntranslatableExtras(final Map<String, String> options) {
+        String value = null;
+        if (options != null) {
+            value = options.get(UNTRANSLATABLE_EXTRAS);
+        }
+        if (value == null || value.trim().isEmpty()) {
+            return null;
+        }
+        try {
+            return Pattern.compile(value);
+        } catch (PatternSyntaxException e) {
+            Log.log("Invalid PublishR untranslatable extras pattern: " + value);
+            return null;
+        }
+    }
+
+    /**
+     * Encode element profile for filter options.
+     * @param elements enabled elements
+     * @return option value
+     */
+    static String encodeElements(final Set<Element> elements) {
+        return elements.stream().map(Element::name).collect(Collectors.joining(","));
+    }
+
     /**
      * Check if current file using PublishR file filter.
      * @return check result
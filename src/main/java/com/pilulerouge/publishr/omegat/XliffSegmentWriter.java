@@ -0,0 +1,137 @@
+/**************************************************************************
+ PublishR file filter for OmegaT
+
+ Copyright (C) 2018 Lev Abashkin
+
+ This file is NOT a part of OmegaT.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ **************************************************************************/
+
+package com.pilulerouge.publishr.omegat;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+/**
+ * Streams segments to XLIFF 1.2 document. Every source file becomes
+ * a {@code <file>} element, extra strings carry shortcut name in
+ * {@code resname} attribute.
+ */
+final class XliffSegmentWriter implements SegmentWriter {
+
+    private static final String XLIFF_NS = "urn:oasis:names:tc:xliff:document:1.2";
+
+    private final OutputStream stream;
+    private final XMLStreamWriter out;
+    private final String sourceLanguage;
+    private final String targetLanguage;
+
+    /**
+     * Constructor.
+     * @param stream output, closed with this writer
+     * @param sourceLanguage source language code
+     * @param targetLanguage target language code
+     * @throws IOException if XML writer cannot be created
+     */
+    XliffSegmentWriter(final OutputStream stream, final String sourceLanguage,
+                       final String targetLanguage) throws IOException {
+        this.stream = stream;
+        this.sourceLanguage = sourceLanguage;
+        this.targetLanguage = targetLanguage;
+        try {
+            out = XMLOutputFactory.newInstance().createXMLStreamWriter(stream,
+                    StandardCharsets.UTF_8.name());
+            out.writeStartDocument(StandardCharsets.UTF_8.name(), "1.0");
+            out.writeCharacters("\n");
+            out.writeStartElement("xliff");
+            out.writeDefaultNamespace(XLIFF_NS);
+            out.writeAttribute("version", "1.2");
+            out.writeCharacters("\n");
+        } catch (XMLStreamException e) {
+            throw new IOException(e);
+        }
+    }
+
+    @Override
+    public void startFile(final String path) throws IOException {
+        try {
+            out.writeStartElement("file");
+            out.writeAttribute("original", path);
+            out.writeAttribute("source-language", sourceLanguage);
+            out.writeAttribute("target-language", targetLanguage);
+            out.writeAttribute("datatype", "x-publishr");
+            out.writeCharacters("\n");
+            out.writeStartElement("body");
+            out.writeCharacters("\n");
+        } catch (XMLStreamException e) {
+            throw new IOException(e);
+        }
+    }
+
+    @Override
+    public void writeSegment(final int id, final String source, final String comment,
+                             final String shortcut) throws IOException {
+        try {
+            out.writeStartElement("trans-unit");
+            out.writeAttribute("id", Integer.toString(id));
+            if (shortcut != null) {
+                out.writeAttribute("resname", shortcut);
+            }
+            out.writeStartElement("source");
+            out.writeCharacters(source);
+            out.writeEndElement();
+            if (comment != null && shortcut == null) {
+                out.writeStartElement("note");
+                out.writeCharacters(comment);
+                out.writeEndElement();
+            }
+            out.writeEndElement();
+            out.writeCharacters("\n");
+        } catch (XMLStreamException e) {
+            throw new IOException(e);
+        }
+    }
+
+    @Override
+    public void endFile() throws IOException {
+        try {
+            out.writeEndElement(); // body
+            out.writeCharacters("\n");
+            out.writeEndElement(); // file
+            out.writeCharacters("\n");
+            out.flush();
+        } catch (XMLStreamException e) {
+            throw new IOException(e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            out.writeEndElement(); // xliff
+            out.writeCharacters("\n");
+            out.writeEndDocument();
+            out.close();
+        } catch (XMLStreamException e) {
+            throw new IOException(e);
+        } finally {
+            stream.close();
+        }
+    }
+}
@@ -0,0 +1,111 @@
+/**************************************************************************
+ PublishR file filter for OmegaT
+
+ Copyright (C) 2018 Lev Abashkin
+
+ This file is NOT a part of OmegaT.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ **************************************************************************/
+
+
+package com.pilulerouge.publishr.omegat;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class AhoCorasickTest {
+
+    // Shortcut tags of plain mode and formatting they stand for
+    private static final String[][] PLAIN_TAGS = {
+        {"<e1/>", "*"}, {"<e2/>", "**"}, {"<e3/>", "***"},
+        {"<e1>", "*"}, {"</e1>", "*"}, {"<e2>", "**"}, {"</e2>", "**"},
+        {"<e3>", "***"}, {"</e3>", "***"}, {"<s1/>", "|"},
+        {"<sup1>", "^"}, {"</sup1>", "^"}, {"<sub1>", "~"}, {"</sub1>", "~"},
+        {"<fn1>", "[^"}, {"</fn1>", "]"}, {"<n1>", "name("}, {"</n1>", ")"},
+        {"<t1>", "title("}, {"</t1>", ")"},
+        {"<id1>", "!["}, {"</id1><il1>", "]("}, {"</il1>", ")"},
+        {"<ld1>", "["}, {"</ld1><la1>", "]("}, {"</la1>", ")"}
+    };
+
+    // Pieces of random text: tags, their fragments and plain characters
+    private static final String[] PIECES = {
+        "<", ">", "/", "e1", "1>", "</", "<e", "</ld1>", "<la1>", "<il1>", "*", "a", " ", "|"
+    };
+
+    /**
+     * Shortcut restoring of plain mode before it was done by automaton:
+     * every tag replaced in turn.
+     */
+    private static String replaceLoop(final String input) {
+        Map<String, String> tags = new LinkedHashMap<>();
+        for (String[] tag : PLAIN_TAGS) {
+            tags.put(tag[0], tag[1]);
+        }
+        String result = input;
+        for (Map.Entry<String, String> e : tags.entrySet()) {
+            result = result.replace(e.getKey(), e.getValue());
+        }
+        return result;
+    }
+
+    @Test
+    public void testPlainRestoreMatchesReplaceLoop() throws Exception {
+        List<String> inputs = new ArrayList<>(FilterFixtures.parseSegments(
+                FilterFixtures.getFile(),
+                FilterFixtures.options(Util.PLAIN_SHORTCUTS, "true")));
+        Random random = new Random(42);
+        for (int i = 0; i < 10000; i++) {
+            StringBuilder sb = new StringBuilder();
+            int count = random.nextInt(12);
+            for (int j = 0; j < count; j++) {
+                if (random.nextBoolean()) {
+                    sb.append(PLAIN_TAGS[random.nextInt(PLAIN_TAGS.length)][0]);
+                } else {
+                    sb.append(PIECES[random.nextInt(PIECES.length)]);
+                }
+            }
+            inputs.add(sb.toString());
+        }
+        for (String input : inputs) {
+            assertEquals(input, replaceLoop(input), PublishrFilter.replaceWithFormatting(input));
+        }
+    }
+
+    @Test
+    public void testLeftmostLongestReplace() {
+        AhoCorasick automaton = new AhoCorasick("ab", "abc", "bcd", "c");
+        String[] replacements = {"1", "2", "3", "4"};
+        assertEquals("x2dx", automaton.replace("xabcdx", replacements));
+        assertEquals("13", automaton.replace("abbcd", replacements));
+        assertEquals("a44", automaton.replace("acc", replacements));
+        String unchanged = "nothing here";
+        assertSame(unchanged, automaton.replace(unchanged, replacements));
+    }
+
+    @Test
+    public void testScan() {
+        AhoCorasick automaton = new AhoCorasick("*", "[^", "name(", "|");
+        assertEquals(0L, automaton.scan("plain text"));
+        assertEquals(0b1010L, automaton.scan("a [^note] | b"));
+        assertEquals(0b0101L, automaton.scan("surname(*x*)"));
+    }
+}
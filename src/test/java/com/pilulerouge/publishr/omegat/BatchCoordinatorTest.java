@@ -0,0 +1,263 @@
+/**************************************************************************
+ PublishR file filter for OmegaT
+
+ Copyright (C) 2018 Lev Abashkin
+
+ This file is NOT a part of OmegaT.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ **************************************************************************/
+
+
+
+package com.pilulerouge.publishr.omegat;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+public class BatchCoordinatorTest {
+
+    private Path dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("publishr-batch");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    /**
+     * Run worker loop on given standard input and return its protocol output.
+     */
+    private String runWorker(final String input, final PublishrCli.FileTask task)
+            throws IOException {
+        InputStream oldIn = System.in;
+        PrintStream oldOut = System.out;
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        System.setIn(new ByteArrayInputStream(input.getBytes(StandardCharsets.UTF_8)));
+        System.setOut(new PrintStream(out, true, "UTF-8"));
+        try {
+            assertEquals(0, BatchCoordinator.runWorker(dir, 3, task));
+        } finally {
+            System.setIn(oldIn);
+            System.setOut(oldOut);
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Run command and collect what it printed to standard error.
+     */
+    private static String runCapturingErrors(final int expectedCode, final String... args)
+            throws IOException {
+        ByteArrayOutputStream errors = new ByteArrayOutputStream();
+        PrintStream oldErr = System.err;
+        System.setErr(new PrintStream(errors, true, "UTF-8"));
+        try {
+            assertEquals(expectedCode, PublishrCli.run(args));
+        } finally {
+            System.setErr(oldErr);
+        }
+        return new String(errors.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Run command and collect what it printed to standard output.
+     */
+    private static String runCapturingOutput(final int expectedCode, final String... args)
+            throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        PrintStream oldOut = System.out;
+        System.setOut(new PrintStream(output, true, "UTF-8"));
+        try {
+            runCapturingErrors(expectedCode, args);
+        } finally {
+            System.setOut(oldOut);
+        }
+        return new String(output.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Worker processes are started with class path of current JVM,
+     * which must contain plugin classes.
+     */
+    private static boolean canStartWorkers() {
+        String resource = PublishrCli.class.getName().replace('.', '/') + ".class";
+        for (String entry : System.getProperty("java.class.path").split(File.pathSeparator)) {
+            if (Files.exists(Paths.get(entry).resolve(resource))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static List<String> sorted(final List<String> lines) {
+        List<String> result = new ArrayList<>(lines);
+        Collections.sort(result);
+        return result;
+    }
+
+    private List<Path> writeFiles(final int count) throws IOException {
+        List<Path> files = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            Path file = dir.resolve("sub" + i % 3).resolve("file" + i + ".page");
+            Files.createDirectories(file.getParent());
+            Files.write(file, ("Text *" + i + "*\n\nSecond [link](http://x)\n")
+                .getBytes(StandardCharsets.UTF_8));
+            files.add(file);
+        }
+        return files;
+    }
+
+    @Test
+    public void testWorkerProtocol() throws Exception {
+        writeFiles(3);
+        String output = runWorker("sub0/file0.page\nsub1/file1.page\n\nsub2/file2.page\n\n",
+            (file, relativePath) -> {
+                assertEquals(dir.resolve(relativePath), file);
+                if (relativePath.endsWith("file1.page")) {
+                    throw new IOException("broken\tfile\nreally");
+                }
+                return new BatchReport.Counters(relativePath.length(), 1);
+            });
+        long size = dir.resolve("sub0/file0.page").toFile().length();
+
+        // Results of a shard come in any order, always before DONE
+        List<String> lines = Arrays.asList(output.split("\\R"));
+        assertEquals(5, lines.size());
+        assertEquals(Arrays.asList("FAIL\t" + size + "\tbroken file really\tsub1/file1.page",
+            "OK\t" + size + "\t15\t1\tsub0/file0.page"), sorted(lines.subList(0, 2)));
+        assertEquals("DONE", lines.get(2));
+        assertEquals("OK\t" + size + "\t15\t1\tsub2/file2.page", lines.get(3));
+        assertEquals("DONE", lines.get(4));
+    }
+
+    @Test
+    public void testWorkerPassesResultLines() throws Exception {
+        writeFiles(2);
+        String output = runWorker("sub0/file0.page\n\nsub1/file1.page\n\n",
+            (file, relativePath) -> {
+                PublishrCli.printResults(Arrays.asList(relativePath + ":1", "multi\nline"));
+                return new BatchReport.Counters(1, 0);
+            });
+        long size = dir.resolve("sub0/file0.page").toFile().length();
+        assertEquals(String.join("\n", "OUT\tsub0/file0.page:1", "OUT\tmulti line",
+            "OK\t" + size + "\t1\t0\tsub0/file0.page", "DONE",
+            "OUT\tsub1/file1.page:1", "OUT\tmulti line",
+            "OK\t" + size + "\t1\t0\tsub1/file1.page", "DONE", ""),
+            output.replace("\r", ""));
+
+        // Printer is restored when worker loop ends
+        PrintStream oldOut = System.out;
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(out, true, "UTF-8"));
+        try {
+            PublishrCli.printResults(Collections.singletonList("direct"));
+        } finally {
+            System.setOut(oldOut);
+        }
+        assertEquals("direct", new String(out.toByteArray(), StandardCharsets.UTF_8).trim());
+    }
+
+    @Test
+    public void testWorkerWithoutWork() throws Exception {
+        assertEquals("", runWorker("", (file, relativePath) -> {
+            throw new AssertionError("No files were sent");
+        }));
+        assertEquals("DONE\n", runWorker("\n", (file, relativePath) -> {
+            throw new AssertionError("No files were sent");
+        }).replace("\r", ""));
+    }
+
+    @Test
+    public void testWorkerProcesses() throws Exception {
+        assumeTrue(canStartWorkers());
+        List<Path> files = writeFiles(40);
+        Files.write(files.get(7), new byte[] {'C', 'a', 'f', (byte) 0xE9, '\n'});
+
+        String errors = runCapturingErrors(1, "verify", "-p", "2", "-j", "2", dir.toString());
+        assertTrue(errors,
+            errors.contains("FAILED sub1/file7.page: differs from source at byte 3"));
+        assertTrue(errors, errors.contains("Files: 40, failed: 1,"));
+        assertTrue(errors, errors.contains(" 117 segments "));
+        assertFalse(errors, errors.contains("Crashed workers"));
+    }
+
+    @Test
+    public void testCrashedWorkersAreRestarted() throws Exception {
+        assumeTrue(canStartWorkers());
+        writeFiles(20);
+
+        // Worker JVM exits right away, every file is tried twice
+        String errors = runCapturingErrors(1, "verify", "-p", "1", "-J", "-XX:+NoSuchOption",
+            dir.toString());
+        assertTrue(errors, errors.contains("Files: 20, failed: 20,"));
+        assertTrue(errors, errors.contains("FAILED sub0/file0.page: worker crashed"));
+        assertTrue(errors, errors.contains("Crashed workers restarted: "));
+    }
+
+    @Test
+    public void testQaProblemsOfWorkersGoToStandardOutput() throws Exception {
+        assumeTrue(canStartWorkers());
+        List<Path> files = writeFiles(20);
+        Files.write(files.get(4), "Some *light text.\n".getBytes(StandardCharsets.UTF_8));
+
+        String output = runCapturingOutput(1, "qa", "-p", "2", dir.toString());
+        assertEquals("sub1/file4.page:1:6: Unclosed *", output.trim());
+    }
+
+    @Test(timeout = 60000)
+    public void testHungWorkersAreKilled() throws Exception {
+        assumeTrue(canStartWorkers());
+        writeFiles(3);
+
+        // Worker JVM waits for a debugger which never comes
+        String errors = runCapturingErrors(1, "verify", "-p", "1", "--timeout", "1",
+            "-J", "-agentlib:jdwp=transport=dt_socket,server=y,suspend=y,"
+                + "address=127.0.0.1:0,quiet=y",
+            dir.toString());
+        assertTrue(errors, errors.contains("Files: 3, failed: 3,"));
+        assertTrue(errors, errors.contains("FAILED sub0/file0.page: worker timed out"));
+        assertTrue(errors, errors.contains("Crashed workers restarted: 2"));
+    }
+}
@@ -0,0 +1,109 @@
+/**************************************************************************
+ PublishR file filter for OmegaT
+
+ Copyright (C) 2018 Lev Abashkin
+
+ This file is NOT a part of OmegaT.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ **************************************************************************/
+
+
+
+package com.pilulerouge.publishr.omegat;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class CommentPoolTest {
+
+    private static String rb(final String key) {
+        return Util.RB.getString(key);
+    }
+
+    @Test
+    public void testCommentsMatchOldBuilder() throws Exception {
+        FilterFixtures.CollectingCallback callback =
+            FilterFixtures.parse(FilterFixtures.getFile(), FilterFixtures.options());
+        List<String> segments = callback.getSegments();
+        Map<String, String> comments = new HashMap<>();
+        for (int i = 0; i < segments.size(); i++) {
+            comments.put(segments.get(i), callback.getComments().get(i));
+        }
+
+        // Same text the comments were concatenated from before pooling
+        assertNull(comments.get("Simple paragraph."));
+        assertEquals(rb("FMT_BLOCK_QUOTE") + ": 1\n", comments.get("Single quote."));
+        assertEquals(rb("FMT_BLOCK_QUOTE") + ": 2\n", comments.get("Double quote."));
+        assertEquals(rb("FMT_HEADING") + ": 2\n", comments.get("Heading 2"));
+        assertEquals(rb("FMT_HEADING") + ": 1 / " + rb("FMT_LIST_ITEM") + "\n",
+            comments.get("Indented ordered list item 1"));
+        assertEquals(rb("FMT_FOOTNOTE") + ": wise-book\n", comments.get("Footnote text"));
+        assertEquals(rb("FMT_LINE_NUMBER") + ": 123\n", comments.get("Numbered line."));
+        assertEquals(rb("FMT_LYRICS") + "\n", comments.get("Second image <i2>description</i2>"));
+        assertEquals("<a1>: http://first.url\n",
+            comments.get("And here is a link <a1>Link description</a1>."));
+        assertEquals("<a1>", comments.get("http://first.url"));
+        assertEquals("<a2>", comments.get("http://second.url"));
+    }
+
+    @Test
+    public void testEqualCommentsAreShared() throws Exception {
+        FilterFixtures.CollectingCallback first =
+            FilterFixtures.parse(FilterFixtures.getFile(), FilterFixtures.options());
+        FilterFixtures.CollectingCallback second =
+            FilterFixtures.parse(FilterFixtures.getFile(), FilterFixtures.options());
+        List<String> segments = first.getSegments();
+        int index1 = segments.indexOf("Single quote.");
+        int index2 = segments.indexOf("Another single quote.");
+        assertSame(first.getComments().get(index1), first.getComments().get(index2));
+
+        int list1 = segments.indexOf("Unordered list item 1");
+        int list2 = segments.indexOf("Unordered list item 2");
+        assertSame(first.getComments().get(list1), first.getComments().get(list2));
+
+        // Sharing holds between files too
+        for (int i = 0; i < segments.size(); i++) {
+            assertSame(first.getComments().get(i), second.getComments().get(i));
+        }
+    }
+
+    @Test
+    public void testIntern() {
+        String comment = new String("Comment for intern test\n");
+        String pooled = CommentPool.intern(comment);
+        assertEquals(comment, pooled);
+        assertSame(pooled, CommentPool.intern(new String("Comment for intern test\n")));
+    }
+
+    @Test
+    public void testExtraComment() {
+        String comment = CommentPool.extraComment("a7");
+        assertEquals("<a7>", comment);
+        assertSame(comment, CommentPool.extraComment("a7"));
+        assertEquals("a7", CommentPool.getExtraShortcut(comment));
+        assertEquals("a7", CommentPool.getExtraShortcut(new String("<a7>")));
+
+        // Comments that only look like extra comments
+        assertNull(CommentPool.getExtraShortcut("<zz99>"));
+        assertNull(CommentPool.getExtraShortcut("<>"));
+        assertNull(CommentPool.getExtraShortcut(null));
+        assertNull(CommentPool.getExtraShortcut("Heading: 1\n"));
+    }
+}
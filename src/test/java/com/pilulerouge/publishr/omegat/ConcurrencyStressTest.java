@@ -0,0 +1,337 @@
+/**************************************************************************
+ PublishR file filter for OmegaT
+
+ Copyright (C) 2018 Lev Abashkin
+
+ This file is NOT a part of OmegaT.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ **************************************************************************/
+
+
+package com.pilulerouge.publishr.omegat;
+
+import java.awt.Color;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import javax.swing.text.StyleConstants;
+
+import org.junit.Test;
+import org.omegat.core.data.ProtectedPart;
+import org.omegat.filters2.FilterContext;
+import org.omegat.filters2.IFilter;
+import org.omegat.filters2.IParseCallback;
+import org.omegat.filters2.ITranslateCallback;
+import org.omegat.gui.editor.mark.Mark;
+import org.omegat.util.Language;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs file processing, mark painting and options changes concurrently.
+ * Shortcut numbering and label maps are per file, styles and the shared
+ * formatter are replaced as a whole; any torn state shows up as a result
+ * differing from single threaded run.
+ */
+public class ConcurrencyStressTest {
+
+    private static final String RESOURCE = "/filters/publishr/publishr.txt";
+    private static final int THREADS = Math.max(4, Runtime.getRuntime().availableProcessors());
+    private static final int ITERATIONS = 200;
+    private static final long TIMEOUT_SECONDS = 120;
+    // Translation with extra footnote and original formatting, gets tag and text marks
+    private static final String MARKED_TEXT = "Some <ef>note</ef> and **bold** text";
+
+    /**
+     * Parse callback collecting segments.
+     */
+    private static final class CollectingCallback implements IParseCallback {
+        private final List<String> entries = new ArrayList<>();
+
+        @Override
+        public void addEntry(final String id, final String source, final String translation,
+                             final boolean isFuzzy, final String comment, final String path,
+                             final IFilter filter, final List<ProtectedPart> protectedParts) {
+            StringBuilder sb = new StringBuilder(source);
+            if (protectedParts != null) {
+                for (ProtectedPart part : protectedParts) {
+                    sb.append('\t').append(part.getTextInSourceSegment()).append('=')
+                            .append(part.getDetailsFromSourceFile());
+                }
+            }
+            entries.add(sb.toString());
+        }
+
+        public void addEntry(final String id, final String source, final String translation,
+                             final boolean isFuzzy, final String comment, final IFilter filter) {
+            addEntry(id, source, translation, isFuzzy, comment, null, filter, null);
+        }
+
+        public void addEntryWithProperties(final String id, final String source,
+                                           final String translation, final boolean isFuzzy,
+                                           final String[] props, final String path,
+                                           final IFilter filter,
+                                           final List<ProtectedPart> protectedParts) {
+            addEntry(id, source, translation, isFuzzy, null, path, filter, protectedParts);
+        }
+
+        @Override
+        public void linkPrevNextSegments() {
+        }
+    }
+
+    /**
+     * Translate callback returning source text.
+     */
+    private static final class IdentityCallback implements ITranslateCallback {
+
+        @Override
+        public void setPass(final int pass) {
+        }
+
+        @Override
+        public String getTranslation(final String id, final String source, final String path) {
+            return source;
+        }
+
+        public String getTranslation(final String id, final String source) {
+            return source;
+        }
+
+        @Override
+        public void linkPrevNextSegments() {
+        }
+    }
+
+    private static File getFile() {
+        return new File(ConcurrencyStressTest.class.getResource(RESOURCE).getFile());
+    }
+
+    private static FilterContext createContext() {
+        FilterContext fc = new FilterContext(new Language("en"), new Language("be"), false);
+        fc.setInEncoding(StandardCharsets.UTF_8.name());
+        fc.setOutEncoding(StandardCharsets.UTF_8.name());
+        return fc;
+    }
+
+    /**
+     * Options of a processing variant: plain shortcuts and parallel conversion.
+     */
+    private static Map<String, String> createOptions(final int variant) {
+        Map<String, String> options = new HashMap<>();
+        options.put(Util.PLAIN_SHORTCUTS, Boolean.toString((variant & 1) != 0));
+        options.put(Util.PARALLEL_CONVERSION, Boolean.toString((variant & 2) != 0));
+        return options;
+    }
+
+    /**
+     * Options as saved by settings dialog. Color of tags and text is derived
+     * from the same number, so styles of different settings can be told apart.
+     */
+    private static Map<String, String> createStyleOptions(final int number) {
+        Map<String, String> options = new HashMap<>();
+        options.put(Util.EXTRA_TAG_COLOR, String.format("#0000%02X", number));
+        options.put(Util.EXTRA_TEXT_COLOR, String.format("#00%02X00", number));
+        if (number % 2 == 0) {
+            options.put(Util.ENABLED_ELEMENTS, Util.encodeElements(
+                    Util.getEnabledElements(null)));
+        } else {
+            options.put(Util.ENABLED_ELEMENTS, "STRONG,EMPHASIS,LINK");
+        }
+        return options;
+    }
+
+    private static List<String> parse(final Map<String, String> options) throws Exception {
+        CollectingCallback callback = new CollectingCallback();
+        new PublishrFilter().parseFile(getFile(), options, createContext(), callback);
+        return callback.entries;
+    }
+
+    private static byte[] translate(final Map<String, String> options) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new PublishrFilter().translateToStream(getFile(), out, options, createContext(),
+                new IdentityCallback());
+        return out.toByteArray();
+    }
+
+    /**
+     * Check that all marks have styles of the same settings.
+     * @param marks marks of {@link #MARKED_TEXT}
+     * @return number of settings, 0 for default colors or -1 if styles are not set
+     */
+    private static int checkMarks(final List<Mark> marks) {
+        // Extra footnote tags and text, both asterisk pairs of bold formatting
+        assertEquals(5, marks.size());
+        if (marks.get(0).attributes == null) {
+            for (Mark mark : marks) {
+                assertNull(mark.attributes);
+            }
+            return -1;
+        }
+        Color tagColor = StyleConstants.getForeground(marks.get(0).attributes);
+        Color textColor;
+        int number;
+        // Files processed without color options get default colors
+        if (tagColor.equals(Color.decode(Util.DEFAULT_EXTRA_TAG_COLOR))) {
+            textColor = Color.decode(Util.DEFAULT_EXTRA_TEXT_COLOR);
+            number = 0;
+        } else {
+            number = tagColor.getBlue();
+            textColor = new Color(0, number, 0);
+        }
+        for (int i = 0; i < marks.size(); i++) {
+            Color color = StyleConstants.getForeground(marks.get(i).attributes);
+            if (i == 1) {
+                assertEquals("Text style of other settings", textColor, color);
+            } else {
+                assertEquals("Tag style of other settings", tagColor, color);
+            }
+        }
+        return number;
+    }
+
+    /**
+     * Run tasks on threads released at the same moment.
+     * @param tasks tasks
+     * @throws Exception first failure of any task
+     */
+    private static void runConcurrently(final List<Callable<Void>> tasks) throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(tasks.size());
+        CyclicBarrier start = new CyclicBarrier(tasks.size());
+        try {
+            List<Future<Void>> futures = new ArrayList<>();
+            for (Callable<Void> task : tasks) {
+                futures.add(pool.submit(() -> {
+                    start.await();
+                    return task.call();
+                }));
+            }
+            for (Future<Void> future : futures) {
+                try {
+                    future.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof Error) {
+                        throw (Error) e.getCause();
+                    }
+                    throw (Exception) e.getCause();
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testProcessingWhileOptionsChange() throws Exception {
+        // Results of single threaded run for every variant
+        List<List<String>> segments = new ArrayList<>();
+        List<byte[]> outputs = new ArrayList<>();
+        for (int variant = 0; variant < 4; variant++) {
+            segments.add(parse(createOptions(variant)));
+            outputs.add(translate(createOptions(variant)));
+        }
+
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (int t = 0; t < THREADS - 2; t++) {
+            int first = t;
+            tasks.add(() -> {
+                for (int i = 0; i < ITERATIONS; i++) {
+                    int variant = (first + i) % 4;
+                    if (i % 2 == 0) {
+                        assertEquals("Segments of variant " + variant,
+                                segments.get(variant), parse(createOptions(variant)));
+                    } else {
+                        assertTrue("Output of variant " + variant, Arrays.equals(
+                                outputs.get(variant), translate(createOptions(variant))));
+                    }
+                }
+                return null;
+            });
+        }
+        // Settings dialog
+        tasks.add(() -> {
+            for (int i = 0; i < ITERATIONS; i++) {
+                PublishrFilter.applyOptions(createStyleOptions(i % 255 + 1));
+            }
+            return null;
+        });
+        // Editor painting marks and applying formatting from popup menu
+        tasks.add(() -> {
+            for (int i = 0; i < ITERATIONS * 10; i++) {
+                checkMarks(PublishrFilter.getHighlighter().getMarks(MARKED_TEXT));
+                assertEquals("**bold**", Util.getFormatter().applyElement("bold",
+                        Element.STRONG));
+            }
+            return null;
+        });
+        // Files set up shared highlighter and formatter like in OmegaT
+        PublishrFilter.setEditorIntegration(true);
+        try {
+            runConcurrently(tasks);
+        } finally {
+            PublishrFilter.setEditorIntegration(false);
+        }
+    }
+
+    @Test
+    public void testStylesAreNotTornOrLost() throws Exception {
+        for (int round = 0; round < ITERATIONS / 10; round++) {
+            Highlighter highlighter = new Highlighter();
+            List<Callable<Void>> tasks = new ArrayList<>();
+            // Files being processed with options saved before dialog was closed
+            tasks.add(() -> {
+                for (int i = 0; i < ITERATIONS; i++) {
+                    highlighter.setupStyles(createStyleOptions(0), false);
+                }
+                return null;
+            });
+            // Settings dialog, every writer uses own colors
+            for (int t = 1; t < THREADS / 2; t++) {
+                int number = t;
+                tasks.add(() -> {
+                    for (int i = 0; i < ITERATIONS; i++) {
+                        highlighter.setupStyles(createStyleOptions(number), true);
+                        assertTrue(checkMarks(highlighter.getMarks(MARKED_TEXT)) > 0);
+                    }
+                    return null;
+                });
+            }
+            // Editor
+            tasks.add(() -> {
+                for (int i = 0; i < ITERATIONS; i++) {
+                    checkMarks(highlighter.getMarks(MARKED_TEXT));
+                }
+                return null;
+            });
+            runConcurrently(tasks);
+
+            // Options of a processed file never replace styles set by dialog
+            int number = checkMarks(highlighter.getMarks(MARKED_TEXT));
+            assertTrue("Styles of dialog were lost: " + number, number > 0);
+        }
+    }
+}
@@ -0,0 +1,152 @@
+/**************************************************************************
+ PublishR file filter for OmegaT
+
+ Copyright (C) 2018 Lev Abashkin
+
+ This file is NOT a part of OmegaT.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ **************************************************************************/
+
+
+
+package com.pilulerouge.publishr.omegat;
+
+import java.io.File;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class DocumentStatisticsTest {
+
+    private static final Pattern TAG = Pattern.compile("</?[a-z0-9]+/?>");
+    private static final Pattern WORD = Pattern.compile("[\\p{L}\\p{N}]+");
+
+    private static DocumentStatistics collect(final File file) throws Exception {
+        DocumentStatistics statistics = new DocumentStatistics(file.getName());
+        PublishrFilter filter = new PublishrFilter();
+        filter.setObserver(statistics);
+        filter.parseFile(file, FilterFixtures.options(), FilterFixtures.createContext(),
+            new FilterFixtures.CollectingCallback());
+        return statistics;
+    }
+
+    @Test
+    public void testFixtureCounts() throws Exception {
+        DocumentStatistics statistics = collect(FilterFixtures.getFile());
+        assertEquals(33, statistics.getSegments());
+        assertEquals(2, statistics.getExtras());
+        long[] expected = {5, 6, 1, 2, 1, 1, 2, 2, 2, 19};
+        Element[] elements = {Element.STRONG, Element.EMPHASIS, Element.SUBSCRIPT,
+            Element.SUPERSCRIPT, Element.NAME, Element.TITLE, Element.IMAGE, Element.LINK,
+            Element.FOOTNOTE, Element.SEPARATOR};
+        assertEquals(Element.values().length, elements.length);
+        for (int i = 0; i < elements.length; i++) {
+            assertEquals(elements[i].name(), expected[i],
+                statistics.getElementCount(elements[i]));
+        }
+
+        // Words and characters of segment text without shortcut tags
+        long words = 0;
+        long characters = 0;
+        long withSpaces = 0;
+        for (String segment : FilterFixtures.parseSegments(FilterFixtures.getFile(),
+                FilterFixtures.options())) {
+            String text = TAG.matcher(segment).replaceAll("");
+            Matcher matcher = WORD.matcher(text);
+            while (matcher.find()) {
+                words++;
+            }
+            withSpaces += text.codePointCount(0, text.length());
+            characters += text.replaceAll("\\s", "").codePoints().count();
+        }
+        assertEquals(words, statistics.getWords());
+        assertEquals(characters, statistics.getCharacters());
+        assertEquals(withSpaces, statistics.getCharactersWithSpaces());
+    }
+
+    @Test
+    public void testProcessingTotalsSumFiles() throws Exception {
+        File file = FilterFixtures.writeTemp("One *a*\n\nTwo\n\n    code\n\nOne *a*\n");
+        PublishrFilter.resetProcessingTotals();
+        FilterFixtures.parse(file, FilterFixtures.options());
+        List<String> totals = PublishrFilter.getProcessingTotals();
+        assertEquals("stages skipped: comments=0, restore and write=4, verbatim writes=3",
+            totals.get(1));
+        assertEquals("unchanged lines copied from source: 0", totals.get(2));
+
+        // Counts of every parsed file are added up
+        FilterFixtures.parse(file, FilterFixtures.options());
+        totals = PublishrFilter.getProcessingTotals();
+        assertEquals("stages skipped: comments=0, restore and write=8, verbatim writes=6",
+            totals.get(1));
+        assertEquals("duplicate or untranslatable extras not sent: 0", totals.get(3));
+
+        PublishrFilter.resetProcessingTotals();
+        assertEquals("stages skipped: comments=0, restore and write=0, verbatim writes=0",
+            PublishrFilter.getProcessingTotals().get(1));
+    }
+
+    @Test
+    public void testWordsAndCharacters() throws Exception {
+        File file = FilterFixtures.writeTemp(
+            "Hello **big** world, 42!\n\n[Caf\u00e9 \ud834\udd1e](http://a.b/c)\n");
+        DocumentStatistics statistics = collect(file);
+        assertEquals(2, statistics.getSegments());
+        assertEquals(1, statistics.getExtras());
+        assertEquals(1, statistics.getElementCount(Element.STRONG));
+        assertEquals(1, statistics.getElementCount(Element.LINK));
+        // Hello, big, world, 42, Cafe, http, a, b, c
+        // "Hello big world, 42!" + "Cafe" with accent, space and a clef + "http://a.b/c"
+        assertEquals(20 + 6 + 12, statistics.getCharactersWithSpaces());
+        assertEquals(17 + 5 + 12, statistics.getCharacters());
+    }
+
+    @Test
+    public void testMergeAndOutput() throws Exception {
+        DocumentStatistics first = collect(FilterFixtures.writeTemp("One **two**\n"));
+        DocumentStatistics second = collect(FilterFixtures.writeTemp("Three, \"four\"\n"));
+        DocumentStatistics total = new DocumentStatistics("total").merge(first).merge(second);
+        assertEquals(2, total.getSegments());
+        assertEquals(4, total.getWords());
+        assertEquals(1, total.getElementCount(Element.STRONG));
+
+        StringWriter csv = new StringWriter();
+        DocumentStatistics.writeCsv(Collections.singletonList(
+            new DocumentStatistics("a,\"b\".page").merge(first)), total, csv);
+        List<String> rows = Arrays.asList(csv.toString().split("\n"));
+        assertEquals(3, rows.size());
+        assertEquals("file,files,segments,extras,words,characters,characters_with_spaces,"
+            + "emphasis,strong,name,title,superscript,subscript,image,link,footnote,separator",
+            rows.get(0).replace("\r", ""));
+        assertEquals("\"a,\"\"b\"\".page\",1,1,0,2,6,7,0,1,0,0,0,0,0,0,0,0", rows.get(1));
+        assertEquals("\"total\",2,2,0,4,18,20,0,1,0,0,0,0,0,0,0,0", rows.get(2));
+
+        StringWriter json = new StringWriter();
+        DocumentStatistics.writeJson(Collections.singletonList(first), total, json);
+        assertTrue(json.toString().startsWith("{\"files\":[\n{\"file\":\""));
+        assertTrue(json.toString().endsWith(",\"total\":{\"file\":\"total\",\"files\":2,"
+            + "\"segments\":2,\"extras\":0,\"words\":4,\"characters\":18,"
+            + "\"charactersWithSpaces\":20,\"elements\":{\"EMPHASIS\":0,\"STRONG\":1,"
+            + "\"NAME\":0,\"TITLE\":0,\"SUPERSCRIPT\":0,\"SUBSCRIPT\":0,\"IMAGE\":0,\"LINK\":0,"
+            + "\"FOOTNOTE\":0,\"SEPARATOR\":0}}}\n"));
+    }
+}
@@ -0,0 +1,191 @@
+/**************************************************************************
+ PublishR file filter for OmegaT
+
+ Copyright (C) 2018 Lev Abashkin
+
+ This file is NOT a part of OmegaT.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ **************************************************************************/
+
+
+
+package com.pilulerouge.publishr.omegat;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.SortedMap;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ElementIndexTest {
+
+    private static final String DOCUMENT =
+        "Plain *light* [a](http://User@Example.com:80/x) text.\n"
+        + "\n"
+        + "> Quote ![pic](img/p.png) and [b](https://example.com/y).\n"
+        + "\n"
+        + "# Heading **bold** [a](http://User@Example.com:80/x)\n";
+
+    private static ElementIndex.FileEntry index(final String text, final long modified)
+            throws Exception {
+        ElementIndex.Builder builder = new ElementIndex.Builder();
+        PublishrFilter filter = new PublishrFilter();
+        filter.setObserver(builder);
+        filter.parseFile(FilterFixtures.writeTemp(text), FilterFixtures.options(),
+            FilterFixtures.createContext(), new FilterFixtures.CollectingCallback());
+        return builder.build(modified);
+    }
+
+    private static void assertLines(final SortedMap<String, int[]> found,
+                                    final String file, final int... lines) {
+        assertNotNull(file + " is not found", found.get(file));
+        assertEquals(Arrays.toString(lines), Arrays.toString(found.get(file)));
+    }
+
+    @Test
+    public void testParsedKeys() throws Exception {
+        ElementIndex index = new ElementIndex();
+        index.update("a.page", index(DOCUMENT, 1));
+
+        assertLines(index.find("element:EMPHASIS"), "a.page", 0);
+        assertLines(index.find("element:STRONG"), "a.page", 4);
+        assertLines(index.find("element:LINK"), "a.page", 0, 2, 4);
+        assertLines(index.find("element:IMAGE"), "a.page", 2);
+        assertLines(index.find("link:http://User@Example.com:80/x"), "a.page", 0, 4);
+        assertLines(index.find("link:https://example.com/y"), "a.page", 2);
+        assertLines(index.find("domain:example.com"), "a.page", 0, 2, 4);
+        assertLines(index.find("image:img/p.png"), "a.page", 2);
+        assertLines(index.find("format:BLOCK_QUOTE"), "a.page", 2);
+        assertLines(index.find("format:HEADING"), "a.page", 4);
+        assertTrue(index.find("element:TITLE").isEmpty());
+        assertTrue(index.find("format:LIST_ITEM").isEmpty());
+
+        Map<String, Long> keys = index.findKeys(ElementIndex.LINK_PREFIX);
+        assertEquals(Arrays.asList("link:http://User@Example.com:80/x",
+            "link:https://example.com/y"), Arrays.asList(keys.keySet().toArray()));
+        assertEquals(Long.valueOf(2), keys.get("link:http://User@Example.com:80/x"));
+        assertEquals(Long.valueOf(1), keys.get("link:https://example.com/y"));
+        assertTrue(index.findKeys("nothing:").isEmpty());
+    }
+
+    @Test
+    public void testKeysKeepFormattingCharacters() throws Exception {
+        // Tildes and carets of URLs are matched as subscript and superscript first
+        ElementIndex index = new ElementIndex();
+        index.update("a.page", index("See [home](http://host/~user/~x) and "
+            + "![pic](img/~a~.png), [up](http://Host/^a^/b).\n", 1));
+
+        assertLines(index.find("link:http://host/~user/~x"), "a.page", 0);
+        assertLines(index.find("link:http://Host/^a^/b"), "a.page", 0);
+        assertLines(index.find("image:img/~a~.png"), "a.page", 0);
+        assertLines(index.find("domain:host"), "a.page", 0);
+        assertEquals(2, index.findKeys(ElementIndex.LINK_PREFIX).size());
+        assertEquals(1, index.findKeys(ElementIndex.IMAGE_PREFIX).size());
+    }
+
+    @Test
+    public void testUpdate() throws Exception {
+        ElementIndex index = new ElementIndex();
+        index.update("a.page", index(DOCUMENT, 1));
+        index.update("b.page", index("Text *x*\n\nname(Name)\n", 2));
+
+        SortedMap<String, int[]> found = index.find("element:EMPHASIS");
+        assertEquals(Arrays.asList("a.page", "b.page"), Arrays.asList(found.keySet().toArray()));
+        assertLines(found, "b.page", 0);
+        assertEquals(Long.valueOf(2), index.findKeys("element:EMPHASIS").get("element:EMPHASIS"));
+
+        // Replaced file drops its old keys
+        index.update("a.page", index("Only *light* now\n", 3));
+        assertEquals(3, index.getFiles().get("a.page").getModified());
+        assertTrue(index.find("element:LINK").isEmpty());
+        assertTrue(index.findKeys(ElementIndex.DOMAIN_PREFIX).isEmpty());
+        assertLines(index.find("element:EMPHASIS"), "a.page", 0);
+
+        // Removed file
+        index.update("b.page", null);
+        assertEquals(1, index.getFiles().size());
+        assertTrue(index.find("element:NAME").isEmpty());
+        assertEquals(1, index.find("element:EMPHASIS").size());
+    }
+
+    @Test
+    public void testWriteAndRead() throws Exception {
+        ElementIndex index = new ElementIndex();
+        index.update("a.page", index(DOCUMENT, 1));
+        // Long posting list with deltas needing several bytes
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 300; i++) {
+            text.append("Line *").append(i).append("*\n\n");
+            for (int j = 0; j < i % 7; j++) {
+                text.append("Filler\n\n");
+            }
+        }
+        index.update("sub/b.page", index(text.toString(), Long.MAX_VALUE));
+
+        Path file = Files.createTempFile("publishr", ".index");
+        try {
+            index.write(file);
+            ElementIndex loaded = ElementIndex.read(file);
+            assertEquals(index.getFiles().keySet(), loaded.getFiles().keySet());
+            assertEquals(Long.MAX_VALUE, loaded.getFiles().get("sub/b.page").getModified());
+            for (String prefix : new String[] {"element:", "format:", "link:", "domain:",
+                    "image:"}) {
+                assertEquals(index.findKeys(prefix), loaded.findKeys(prefix));
+                for (String key : index.findKeys(prefix).keySet()) {
+                    SortedMap<String, int[]> expected = index.find(key);
+                    SortedMap<String, int[]> actual = loaded.find(key);
+                    assertEquals(expected.keySet(), actual.keySet());
+                    for (String path : expected.keySet()) {
+                        assertArrayEquals(expected.get(path), actual.get(path));
+                    }
+                }
+            }
+            assertEquals(300, loaded.find("element:EMPHASIS").get("sub/b.page").length);
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testReadUnknownFormat() throws Exception {
+        Path file = Files.createTempFile("publishr", ".index");
+        try {
+            try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(file))) {
+                out.writeInt(0x50524958);
+                out.writeInt(99);
+            }
+            ElementIndex.read(file);
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void testGetHost() {
+        assertEquals("example.com", ElementIndex.getHost("http://Example.COM/path"));
+        assertEquals("example.com", ElementIndex.getHost("https://user:pw@example.com:8080"));
+        assertEquals("example.com", ElementIndex.getHost("http://example.com?q=a@b"));
+        assertEquals("example.com", ElementIndex.getHost("http://example.com#top"));
+        assertNull(ElementIndex.getHost("img/p.png"));
+        assertNull(ElementIndex.getHost("mailto:me@example.com"));
+        assertNull(ElementIndex.getHost("file:///tmp/x"));
+    }
+}
@@ -0,0 +1,114 @@
+/**************************************************************************
+ PublishR file filter for OmegaT
+
+ Copyright (C) 2018 Lev Abashkin
+
+ This file is NOT a part of OmegaT.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ **************************************************************************/
+
+
+
+package com.pilulerouge.publishr.omegat;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ExtraStringsTest {
+
+    // Image paths are not extra strings, only link targets are
+    private static final String SOURCE =
+        "First [a](http://same.url) and [b](http://other.url).\n"
+        + "\n"
+        + "Second [c](http://same.url) and ![d](img/same.png).\n";
+
+    private static Map<String, String> translations() {
+        Map<String, String> translations = new HashMap<>();
+        translations.put("http://same.url", "http://same.url/fr");
+        translations.put("http://other.url", "http://other.url/fr");
+        return translations;
+    }
+
+    private static List<String> extras(final List<String> segments) {
+        return Arrays.asList(segments.stream().filter(s -> !s.contains(" "))
+            .toArray(String[]::new));
+    }
+
+    /**
+     * Translate source and check which segments were asked for.
+     */
+    private static String translate(final Map<String, String> options,
+                                    final List<String> requestedExtras) throws Exception {
+        File file = FilterFixtures.writeTemp(SOURCE);
+        FilterFixtures.MapCallback callback = new FilterFixtures.MapCallback(translations());
+        String result = new String(FilterFixtures.translate(new PublishrFilter(), file, options,
+            callback), StandardCharsets.UTF_8);
+        assertEquals(requestedExtras, extras(callback.getRequested()));
+        assertEquals(requestedExtras, extras(FilterFixtures.parseSegments(file, options)));
+        return result;
+    }
+
+    @Test
+    public void testEveryExtraIsSentByDefault() throws Exception {
+        String result = translate(FilterFixtures.options(), Arrays.asList(
+            "http://same.url", "http://other.url", "http://same.url"));
+        assertEquals("First [a](http://same.url/fr) and [b](http://other.url/fr).\n"
+            + "\n"
+            + "Second [c](http://same.url/fr) and ![d](img/same.png).\n", result);
+    }
+
+    @Test
+    public void testDeduplicateExtras() throws Exception {
+        // Extra repeated on another line is sent once, its translation is reused
+        String result = translate(FilterFixtures.options(Util.DEDUPLICATE_EXTRAS, "true"),
+            Arrays.asList("http://same.url", "http://other.url"));
+        assertEquals("First [a](http://same.url/fr) and [b](http://other.url/fr).\n"
+            + "\n"
+            + "Second [c](http://same.url/fr) and ![d](img/same.png).\n", result);
+    }
+
+    @Test
+    public void testUntranslatableExtras() throws Exception {
+        // Matching extras are kept as is even if translation exists
+        String result = translate(FilterFixtures.options(Util.UNTRANSLATABLE_EXTRAS,
+            "^http://same\\."), Collections.singletonList("http://other.url"));
+        assertEquals("First [a](http://same.url) and [b](http://other.url/fr).\n"
+            + "\n"
+            + "Second [c](http://same.url) and ![d](img/same.png).\n", result);
+
+        // Both options together
+        translate(FilterFixtures.options(Util.DEDUPLICATE_EXTRAS, "true",
+            Util.UNTRANSLATABLE_EXTRAS, "other"), Collections.singletonList("http://same.url"));
+    }
+
+    @Test
+    public void testInvalidUntranslatablePattern() throws Exception {
+        assertNull(Util.getUntranslatableExtras(FilterFixtures.options(
+            Util.UNTRANSLATABLE_EXTRAS, "(")));
+        assertNull(Util.getUntranslatableExtras(FilterFixtures.options(
+            Util.UNTRANSLATABLE_EXTRAS, " ")));
+        translate(FilterFixtures.options(Util.UNTRANSLATABLE_EXTRAS, "("), Arrays.asList(
+            "http://same.url", "http://other.url", "http://same.url"));
+    }
+}
@@ -0,0 +1,217 @@
+/**************************************************************************
+ PublishR file filter for OmegaT
+
+ Copyright (C) 2018 Lev Abashkin
+
+ This file is NOT a part of OmegaT.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ **************************************************************************/
+
+
+package com.pilulerouge.publishr.omegat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.omegat.core.data.ProtectedPart;
+import org.omegat.filters2.FilterContext;
+import org.omegat.filters2.IFilter;
+import org.omegat.filters2.IParseCallback;
+import org.omegat.filters2.ITranslateCallback;
+import org.omegat.util.Language;
+
+/**
+ * Fixture files and callbacks shared by filter tests of this package.
+ */
+final class FilterFixtures {
+
+    static final String RESOURCE = "/filters/publishr/publishr.txt";
+
+    /**
+     * Parse callback collecting segments and their comments.
+     */
+    static final class CollectingCallback implements IParseCallback {
+
+        private final List<String> segments = new ArrayList<>();
+        private final List<String> comments = new ArrayList<>();
+
+        @Override
+        public void addEntry(final String id, final String source, final String translation,
+                             final boolean isFuzzy, final String comment, final String path,
+                             final IFilter filter, final List<ProtectedPart> protectedParts) {
+            segments.add(source);
+            comments.add(comment);
+        }
+
+        public void addEntry(final String id, final String source, final String translation,
+                             final boolean isFuzzy, final String comment, final IFilter filter) {
+            addEntry(id, source, translation, isFuzzy, comment, null, filter, null);
+        }
+
+        public void addEntryWithProperties(final String id, final String source,
+                                           final String translation, final boolean isFuzzy,
+                                           final String[] props, final String path,
+                                           final IFilter filter,
+                                           final List<ProtectedPart> protectedParts) {
+            addEntry(id, source, translation, isFuzzy, null, path, filter, protectedParts);
+        }
+
+        @Override
+        public void linkPrevNextSegments() {
+        }
+
+        List<String> getSegments() {
+            return segments;
+        }
+
+        List<String> getComments() {
+            return comments;
+        }
+    }
+
+    /**
+     * Translate callback taking translations from a map, source text is
+     * returned for segments missing in it.
+     */
+    static final class MapCallback implements ITranslateCallback {
+
+        private final Map<String, String> translations;
+        private final List<String> requested = new ArrayList<>();
+        private int pass;
+
+        MapCallback(final Map<String, String> translations) {
+            this.translations = translations;
+        }
+
+        @Override
+        public void setPass(final int newPass) {
+            pass = newPass;
+        }
+
+        @Override
+        public String getTranslation(final String id, final String source, final String path) {
+            if (pass <= 1) {
+                requested.add(source);
+            }
+            return translations.getOrDefault(source, source);
+        }
+
+        public String getTranslation(final String id, final String source) {
+            return getTranslation(id, source, null);
+        }
+
+        @Override
+        public void linkPrevNextSegments() {
+        }
+
+        /**
+         * Get segments asked for in the first pass.
+         * @return source texts in document order
+         */
+        List<String> getRequested() {
+            return requested;
+        }
+    }
+
+    static File getFile() {
+        return new File(FilterFixtures.class.getResource(RESOURCE).getFile());
+    }
+
+    static FilterContext createContext() {
+        FilterContext fc = new FilterContext(new Language("en"), new Language("be"), false);
+        fc.setInEncoding(StandardCharsets.UTF_8.name());
+        fc.setOutEncoding(StandardCharsets.UTF_8.name());
+        return fc;
+    }
+
+    /**
+     * Build filter options.
+     * @param keysAndValues option names each followed by its value
+     * @return options
+     */
+    static Map<String, String> options(final String... keysAndValues) {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i < keysAndValues.length; i += 2) {
+            options.put(keysAndValues[i], keysAndValues[i + 1]);
+        }
+        return options;
+    }
+
+    /**
+     * Write text to a temporary UTF-8 file deleted on exit.
+     * @param text file content
+     * @return file
+     * @throws IOException on write error
+     */
+    static File writeTemp(final String text) throws IOException {
+        return writeTemp(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    static File writeTemp(final byte[] bytes) throws IOException {
+        File file = File.createTempFile("publishr", ".page");
+        file.deleteOnExit();
+        Files.write(file.toPath(), bytes);
+        return file;
+    }
+
+    static CollectingCallback parse(final File file, final Map<String, String> options)
+            throws Exception {
+        CollectingCallback callback = new CollectingCallback();
+        new PublishrFilter().parseFile(file, options, createContext(), callback);
+        return callback;
+    }
+
+    static List<String> parseSegments(final File file, final Map<String, String> options)
+            throws Exception {
+        return parse(file, options).getSegments();
+    }
+
+    /**
+     * Run both translation passes and return written file.
+     * @param filter filter
+     * @param file source file
+     * @param options filter options
+     * @param callback translate callback
+     * @return output bytes
+     * @throws IOException on read or write error
+     */
+    static byte[] translate(final PublishrFilter filter, final File file,
+                            final Map<String, String> options,
+                            final ITranslateCallback callback) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        filter.translateToStream(file, out, options, createContext(), callback);
+        return out.toByteArray();
+    }
+
+    static String translate(final File file, final Map<String, String> options,
+                            final Map<String, String> translations) throws IOException {
+        return new String(translate(new PublishrFilter(), file, options,
+                new MapCallback(translations)), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Do not allow instances of this class.
+     */
+    private FilterFixtures() {
+
+    }
+}
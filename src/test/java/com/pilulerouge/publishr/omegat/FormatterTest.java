@@ -0,0 +1,232 @@
+/**************************************************************************
+ PublishR file filter for OmegaT
+
+ Copyright (C) 2018 Lev Abashkin
+
+ This file is NOT a part of OmegaT.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ **************************************************************************/
+
+
+
+package com.pilulerouge.publishr.omegat;
+
+import java.lang.reflect.Field;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class FormatterTest {
+
+    // Pieces of random text: formatting, its fragments and plain characters
+    private static final String[] PIECES = {
+        "*", "**", "\\*", "[^", "]", "|", "^", "~", "name(", "title(", ")", "![", "](",
+        "[", "(", "a", "b", " ", "\\", "\\|", "url"
+    };
+
+    private static ElementProcessor[] getProcessors(final Formatter formatter)
+            throws Exception {
+        Field field = Formatter.class.getDeclaredField("processors");
+        field.setAccessible(true);
+        return (ElementProcessor[]) field.get(formatter);
+    }
+
+    /**
+     * Compare conversion with the one before trigger prefilter,
+     * when every processor ran in turn.
+     */
+    private static void checkConversion(final Formatter formatter, final String text)
+            throws Exception {
+        ElementProcessor[] processors = getProcessors(formatter);
+        List<ElementProcessor.PendingShortcut> pending = new ArrayList<>();
+        String result = EscapeMask.mask(text, EscapeMask.KRAMDOWN_ESCAPABLE);
+        for (ElementProcessor processor : processors) {
+            result = processor.match(result, pending);
+        }
+        result = EscapeMask.unmask(result);
+        Formatter.Conversion conversion = formatter.convert(text);
+        assertEquals(text, result, conversion.getText());
+        assertEquals(text, pending.size(), conversion.getPending().size());
+    }
+
+    private static String randomText(final Random random) {
+        StringBuilder sb = new StringBuilder();
+        int count = random.nextInt(12);
+        for (int i = 0; i < count; i++) {
+            sb.append(PIECES[random.nextInt(PIECES.length)]);
+        }
+        return sb.toString();
+    }
+
+    @Test
+    public void testPrefilterMatchesFullRun() throws Exception {
+        Formatter formatter = new Formatter(EnumSet.allOf(Element.class));
+        Random random = new Random(42);
+        for (int i = 0; i < 20000; i++) {
+            checkConversion(formatter, randomText(random));
+        }
+        for (String line : FilterFixtures.parseSegments(FilterFixtures.getFile(),
+                FilterFixtures.options())) {
+            checkConversion(formatter, line);
+        }
+    }
+
+    @Test
+    public void testSkipCounts() {
+        Formatter formatter = new Formatter(EnumSet.allOf(Element.class));
+        for (long count : formatter.getSkipCounts().values()) {
+            assertEquals(0L, count);
+        }
+
+        formatter.convert("No formatting at all.");
+        Map<Element, Long> counts = formatter.getSkipCounts();
+        assertEquals(Element.values().length, counts.size());
+        for (long count : counts.values()) {
+            assertEquals(1L, count);
+        }
+
+        // Strong and emphasis share trigger literal
+        formatter.convert("Some **strong** text.");
+        counts = formatter.getSkipCounts();
+        assertEquals(Long.valueOf(1L), counts.get(Element.STRONG));
+        assertEquals(Long.valueOf(1L), counts.get(Element.EMPHASIS));
+        assertEquals(Long.valueOf(2L), counts.get(Element.LINK));
+
+        // Escaped trigger is masked before prefilter
+        formatter.convert("Escaped \\| separator.");
+        assertEquals(Long.valueOf(3L), formatter.getSkipCounts().get(Element.SEPARATOR));
+
+        formatter.convert("[Link](http://url) and ![image](img.png)");
+        counts = formatter.getSkipCounts();
+        assertEquals(Long.valueOf(3L), counts.get(Element.LINK));
+        assertEquals(Long.valueOf(3L), counts.get(Element.IMAGE));
+        assertEquals(Long.valueOf(4L), counts.get(Element.FOOTNOTE));
+
+        // Numbering is reset, counts are kept
+        formatter.resetConverters();
+        assertEquals(Long.valueOf(4L), formatter.getSkipCounts().get(Element.FOOTNOTE));
+    }
+
+    @Test
+    public void testDocumentFormattersShareCompiledProfile() throws Exception {
+        Set<Element> elements = EnumSet.of(Element.EMPHASIS, Element.LINK);
+        Formatter first = Formatter.forDocument(elements);
+        Formatter second = Formatter.forDocument(EnumSet.copyOf(elements));
+        assertNotSame(first, second);
+        assertEquals(elements, second.getElements());
+        assertNotSame(getProcessors(first)[0], getProcessors(second)[0]);
+
+        // Every document numbers its shortcuts from one
+        Map<String, String> firstExtras = new HashMap<>();
+        Map<String, String> secondExtras = new HashMap<>();
+        assertEquals("<a1>x</a1> <a2>y</a2>",
+            first.toShortcuts("[x](http://1) [y](http://2)", firstExtras));
+        assertEquals("<a1>y</a1>", second.toShortcuts("[y](http://2)", secondExtras));
+        assertEquals("<e1>b</e1> <a3>z</a3>",
+            first.toShortcuts("*b* [z](http://3)", firstExtras));
+        assertEquals("[y](http://2)", second.toOriginal("<a1>y</a1>", secondExtras));
+        assertEquals("[x](http://1)", first.toOriginal("<a1>x</a1>", firstExtras));
+
+        // Skip counts are totals of the profile
+        long before = Formatter.getTotalSkipCounts().get(Element.LINK);
+        first.convert("No link");
+        second.convert("Still no link");
+        assertEquals(first.getSkipCounts(), second.getSkipCounts());
+        assertEquals(before + 2, (long) Formatter.getTotalSkipCounts().get(Element.LINK));
+    }
+
+    @Test
+    public void testSkippedTextIsUnchanged() {
+        Formatter formatter = new Formatter(EnumSet.allOf(Element.class));
+        String text = "Plain sentence, nothing to convert.";
+        Formatter.Conversion conversion = formatter.convert(text);
+        assertSame(text, conversion.getText());
+        assertTrue(conversion.getPending().isEmpty());
+        assertSame(text, formatter.toShortcuts(text, new HashMap<>()));
+    }
+
+    @Test
+    public void testEnabledElementsOption() {
+        assertEquals(EnumSet.allOf(Element.class), Util.getEnabledElements(null));
+        assertEquals(EnumSet.allOf(Element.class),
+            Util.getEnabledElements(FilterFixtures.options()));
+        assertEquals(EnumSet.noneOf(Element.class),
+            Util.getEnabledElements(FilterFixtures.options(Util.ENABLED_ELEMENTS, "")));
+        assertEquals(EnumSet.of(Element.STRONG, Element.LINK), Util.getEnabledElements(
+            FilterFixtures.options(Util.ENABLED_ELEMENTS, " STRONG,NO_SUCH_ELEMENT, LINK")));
+
+        EnumSet<Element> elements = EnumSet.of(Element.EMPHASIS, Element.FOOTNOTE);
+        assertEquals(elements, Util.getEnabledElements(FilterFixtures.options(
+            Util.ENABLED_ELEMENTS, Util.encodeElements(elements))));
+    }
+
+    @Test
+    public void testSetupFormatter() {
+        Util.setupFormatter(FilterFixtures.options(Util.ENABLED_ELEMENTS, "STRONG"));
+        Formatter formatter = Util.getFormatter();
+        assertTrue(formatter.hasElement(Element.STRONG));
+        assertFalse(formatter.hasElement(Element.EMPHASIS));
+        assertEquals(1, formatter.getSkipCounts().size());
+
+        // Same profile keeps compiled formatter
+        Util.setupFormatter(FilterFixtures.options(Util.ENABLED_ELEMENTS, "STRONG"));
+        assertSame(formatter, Util.getFormatter());
+
+        Util.setupFormatter(FilterFixtures.options());
+        assertNotSame(formatter, Util.getFormatter());
+        assertEquals(EnumSet.allOf(Element.class), Util.getFormatter().getElements());
+    }
+
+    @Test
+    public void testDisabledElementsStayPlainText() throws Exception {
+        Map<String, String> options = FilterFixtures.options(
+            Util.ENABLED_ELEMENTS, "STRONG,LINK");
+        try {
+            List<String> segments = FilterFixtures.parseSegments(FilterFixtures.getFile(),
+                options);
+            assertTrue(segments.contains("Let's <e2>try</e2> some *formatting*."));
+            assertTrue(segments.contains("name(Philip K. Dick) wrote title(Ubik)."));
+            assertTrue(segments.contains("Water's chemical formula is H~2~O."));
+            assertTrue(segments.contains("Refer to a wise book[^wise-book]"));
+            assertTrue(segments.contains("| Second body"));
+            assertTrue(segments.contains("And here is a link <a2>Link description</a2>."));
+            // Image is not enabled, link processor takes its part
+            assertTrue(segments.contains("Here is an image !<a1>Image description</a1>."));
+            for (String segment : segments) {
+                assertFalse(segment, segment.contains("<e1>"));
+                assertFalse(segment, segment.contains("<s1/>"));
+                assertFalse(segment, segment.contains("<f"));
+            }
+
+            // Plain text of disabled elements is restored as it was
+            String source = new String(Files.readAllBytes(FilterFixtures.getFile().toPath()),
+                StandardCharsets.UTF_8);
+            assertEquals(source, FilterFixtures.translate(FilterFixtures.getFile(), options,
+                new HashMap<>()));
+        } finally {
+            Util.setupFormatter(FilterFixtures.options());
+        }
+    }
+}
@@ -0,0 +1,125 @@
+/**************************************************************************
+ PublishR file filter for OmegaT
+
+ Copyright (C) 2018 Lev Abashkin
+
+ This file is NOT a part of OmegaT.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ **************************************************************************/
+
+
+
+package com.pilulerouge.publishr.omegat;
+
+import java.io.StringReader;
+import java.util.EnumSet;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class HtmlRendererTest {
+
+    private static String body(final HtmlRenderer renderer, final String text)
+            throws Exception {
+        String html = renderer.render(PublishrDocument.read(new StringReader(text)), "Title");
+        return html.substring(html.indexOf("<body>\n") + "<body>\n".length(),
+            html.indexOf("</body>"));
+    }
+
+    private static String body(final String text) throws Exception {
+        return body(new HtmlRenderer(EnumSet.allOf(Element.class)), text);
+    }
+
+    @Test
+    public void testPage() throws Exception {
+        String html = new HtmlRenderer(EnumSet.allOf(Element.class)).render(
+            PublishrDocument.read(new StringReader("Text")), "a < \"b\" & c");
+        assertTrue(html.startsWith("<!DOCTYPE html>\n"));
+        assertTrue(html.contains("<title>a &lt; &quot;b&quot; &amp; c</title>"));
+        assertTrue(html.endsWith("<p>Text</p>\n</body>\n</html>\n"));
+    }
+
+    @Test
+    public void testParagraphs() throws Exception {
+        assertEquals("<p>Simple <em>light</em> and <strong>strong</strong> &amp; &lt;b&gt;.\n"
+            + "Second line</p>\n", body("Simple *light* and **strong** & <b>.\nSecond line"));
+        assertEquals("<p><span class=\"line-number\">12</span> Numbered\n"
+            + "Escaped * and | pipe</p>\n", body("{L12} Numbered\nEscaped \\* and \\| pipe"));
+    }
+
+    @Test
+    public void testBlocks() throws Exception {
+        assertEquals("<h1>Heading <em>x</em></h1>\n"
+            + "<blockquote>\n<p>Quote</p>\n<blockquote>\n<p>Nested</p>\n"
+            + "</blockquote>\n</blockquote>\n"
+            + "<p>After</p>\n",
+            body("# Heading *x*\n\n> Quote\n> > Nested\n\nAfter"));
+        assertEquals("<ul>\n<li>one</li>\n<li>two</li>\n</ul>\n"
+            + "<ol>\n<li>first</li>\n<li>second</li>\n</ol>\n",
+            body("* one\n* two\n\n1. first\n2. second"));
+        assertEquals("<table>\n"
+            + "<tr><td> a </td><td> <strong>b</strong> </td></tr>\n"
+            + "<tr><td> c | d </td><td> e </td></tr>\n"
+            + "</table>\n", body("| a | **b** |\n| c \\| d | e |"));
+    }
+
+    @Test
+    public void testInlineElements() throws Exception {
+        assertEquals("<p>Name <span class=\"name\">Philip</span> <cite>Ubik</cite> "
+            + "H<sub>2</sub>O 1<sup>st</sup></p>\n",
+            body("Name name(Philip) title(Ubik) H~2~O 1^st^"));
+        assertEquals("<p><a href=\"http://x?a=1&amp;b=&quot;2&quot;\">Link</a> "
+            + "<span class=\"image\"><img src=\"p.png\" alt=\"\"/>img</span> "
+            + "note<sup class=\"footnote-ref\"><a href=\"#fn-fn\">fn</a></sup></p>\n"
+            + "<div class=\"footnote\" id=\"fn-fn\"><sup>fn</sup> Foot <em>note</em></div>\n",
+            body("[Link](http://x?a=1&b=\"2\") ![img](p.png) note[^fn]\n\n[^fn]: Foot *note*"));
+    }
+
+    @Test
+    public void testDisabledElements() throws Exception {
+        HtmlRenderer renderer = new HtmlRenderer(EnumSet.of(Element.STRONG));
+        assertEquals("<p><strong>a</strong> *b* name(c)</p>\n",
+            body(renderer, "**a** *b* name(c)"));
+    }
+
+    @Test
+    public void testChangedParagraphsOnly() throws Exception {
+        HtmlRenderer renderer = new HtmlRenderer(EnumSet.allOf(Element.class));
+        String first = body(renderer, "One *a*\n\nTwo\n\nThree");
+        assertEquals(3, renderer.getParagraphCount());
+        assertEquals(3, renderer.getRenderedCount());
+
+        // Same document is taken from cache
+        assertEquals(first, body(renderer, "One *a*\n\nTwo\n\nThree"));
+        assertEquals(3, renderer.getParagraphCount());
+        assertEquals(0, renderer.getRenderedCount());
+
+        assertEquals("<p>One <em>a</em></p>\n<p>Changed</p>\n<p>Three</p>\n",
+            body(renderer, "One *a*\n\nChanged\n\nThree"));
+        assertEquals(3, renderer.getParagraphCount());
+        assertEquals(1, renderer.getRenderedCount());
+
+        // Only previous version is cached
+        body(renderer, "Two");
+        assertEquals(1, renderer.getRenderedCount());
+    }
+
+    @Test
+    public void testEscape() {
+        assertEquals("a &amp;&lt;&gt;&quot; 'b'", HtmlRenderer.escape("a &<>\" 'b'"));
+        assertEquals("", HtmlRenderer.escape(""));
+    }
+}
@@ -0,0 +1,140 @@
+/**************************************************************************
+ PublishR file filter for OmegaT
+
+ Copyright (C) 2018 Lev Abashkin
+
+ This file is NOT a part of OmegaT.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ **************************************************************************/
+
+
+
+package com.pilulerouge.publishr.omegat;
+
+import java.io.File;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+import org.omegat.filters2.ITranslateCallback;
+
+import static org.junit.Assert.*;
+
+public class ParallelConversionTest {
+
+    private static final int REPEAT = 40;
+
+    /**
+     * Translate callback changing every segment, so every line is restored.
+     */
+    private static final class MarkingCallback implements ITranslateCallback {
+
+        @Override
+        public void setPass(final int pass) {
+        }
+
+        @Override
+        public String getTranslation(final String id, final String source, final String path) {
+            return "T " + source;
+        }
+
+        public String getTranslation(final String id, final String source) {
+            return getTranslation(id, source, null);
+        }
+
+        @Override
+        public void linkPrevNextSegments() {
+        }
+    }
+
+    /**
+     * Fixture repeated many times, so document is split into many chunks.
+     */
+    private static File createLargeFile() throws Exception {
+        String fixture = new String(Files.readAllBytes(FilterFixtures.getFile().toPath()),
+            StandardCharsets.UTF_8);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < REPEAT; i++) {
+            sb.append(fixture);
+            sb.append("\n");
+        }
+        return FilterFixtures.writeTemp(sb.toString());
+    }
+
+    private static void checkSameAsSerial(final File file, final String... options)
+            throws Exception {
+        Map<String, String> serial = FilterFixtures.options(options);
+        Map<String, String> parallel = FilterFixtures.options(options);
+        parallel.put(Util.PARALLEL_CONVERSION, "true");
+
+        FilterFixtures.CollectingCallback serialParse = FilterFixtures.parse(file, serial);
+        FilterFixtures.CollectingCallback parallelParse = FilterFixtures.parse(file, parallel);
+        assertEquals(serialParse.getSegments(), parallelParse.getSegments());
+        assertEquals(serialParse.getComments(), parallelParse.getComments());
+
+        assertArrayEquals(
+            FilterFixtures.translate(new PublishrFilter(), file, serial, new MarkingCallback()),
+            FilterFixtures.translate(new PublishrFilter(), file, parallel,
+                new MarkingCallback()));
+        FilterFixtures.MapCallback serialIdentity =
+            new FilterFixtures.MapCallback(new HashMap<>());
+        FilterFixtures.MapCallback parallelIdentity =
+            new FilterFixtures.MapCallback(new HashMap<>());
+        assertArrayEquals(
+            FilterFixtures.translate(new PublishrFilter(), file, serial, serialIdentity),
+            FilterFixtures.translate(new PublishrFilter(), file, parallel, parallelIdentity));
+        assertEquals(serialIdentity.getRequested(), parallelIdentity.getRequested());
+    }
+
+    @Test
+    public void testParallelMatchesSerial() throws Exception {
+        File file = createLargeFile();
+        checkSameAsSerial(file);
+        checkSameAsSerial(file, Util.DEDUPLICATE_EXTRAS, "true");
+    }
+
+    @Test
+    public void testParallelMatchesSerialPlain() throws Exception {
+        checkSameAsSerial(createLargeFile(), Util.PLAIN_SHORTCUTS, "true");
+    }
+
+    @Test
+    public void testSmallFile() throws Exception {
+        checkSameAsSerial(FilterFixtures.getFile());
+        checkSameAsSerial(FilterFixtures.writeTemp(""));
+        checkSameAsSerial(FilterFixtures.writeTemp("One *line* without break"));
+    }
+
+    @Test
+    public void testParagraphChunks() throws Exception {
+        String text = new String(Files.readAllBytes(createLargeFile().toPath()),
+            StandardCharsets.UTF_8);
+        PublishrDocument document = PublishrDocument.read(new StringReader(text));
+        int[] chunks = document.getParagraphChunks(64);
+        assertTrue(chunks.length > 3);
+        assertEquals(0, chunks[0]);
+        assertEquals(document.getLineCount(), chunks[chunks.length - 1]);
+        for (int i = 1; i < chunks.length - 1; i++) {
+            assertTrue(chunks[i] - chunks[i - 1] >= 64);
+            // Chunks start right after an empty line
+            assertEquals(PublishrDocument.LINE_EMPTY, document.getKind(chunks[i] - 1));
+        }
+        assertArrayEquals(new int[] {0, document.getLineCount()},
+            document.getParagraphChunks(document.getLineCount() + 1));
+    }
+}
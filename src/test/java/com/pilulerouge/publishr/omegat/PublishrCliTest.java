@@ -0,0 +1,263 @@
+/**************************************************************************
+ PublishR file filter for OmegaT
+
+ Copyright (C) 2018 Lev Abashkin
+
+ This file is NOT a part of OmegaT.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ **************************************************************************/
+
+
+
+package com.pilulerouge.publishr.omegat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import static org.junit.Assert.*;
+
+public class PublishrCliTest {
+
+    private Path dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("publishr-cli");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    private Path write(final String relativePath, final String text) throws IOException {
+        Path path = dir.resolve(relativePath);
+        Files.createDirectories(path.getParent());
+        Files.write(path, text.getBytes(StandardCharsets.UTF_8));
+        return path;
+    }
+
+    private Path copyFixture(final String relativePath) throws IOException {
+        Path path = dir.resolve(relativePath);
+        Files.createDirectories(path.getParent());
+        Files.copy(FilterFixtures.getFile().toPath(), path);
+        return path;
+    }
+
+    private static List<String> readLines(final Path path) throws IOException {
+        return Files.readAllLines(path, StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testExtractJsonLines() throws Exception {
+        copyFixture("src/a.page");
+        write("src/sub/b.page", "Sub *file* [x](http://y \"t\")\n");
+        write("src/c.txt", "Not a page\n");
+        Path out = dir.resolve("out");
+
+        assertEquals(0, PublishrCli.run(new String[] {
+            "extract", "-f", "jsonl", "-j", "2", "-o", out.toString(),
+            dir.resolve("src").toString()}));
+
+        List<String> lines = readLines(out.resolve("a.page.jsonl"));
+        assertEquals(FilterFixtures.parseSegments(FilterFixtures.getFile(),
+            FilterFixtures.options()).size(), lines.size());
+        assertEquals("{\"file\":\"a.page\",\"id\":1,\"source\":\"Simple paragraph.\"}",
+            lines.get(0));
+        assertEquals("{\"file\":\"a.page\",\"id\":2,\"source\":\"Single quote.\",\"comment\":\""
+            + Util.RB.getString("FMT_BLOCK_QUOTE") + ": 1\\n\"}", lines.get(1));
+        assertTrue(lines.contains("{\"file\":\"a.page\",\"id\":17,"
+            + "\"source\":\"http://first.url\",\"extraOf\":\"a1\"}"));
+
+        lines = readLines(out.resolve("sub").resolve("b.page.jsonl"));
+        assertEquals(2, lines.size());
+        assertEquals("{\"file\":\"sub/b.page\",\"id\":1,"
+            + "\"source\":\"Sub <e1>file</e1> <a1>x</a1>\","
+            + "\"comment\":\"<a1>: http://y \\\"t\\\"\\n\"}", lines.get(0));
+        assertEquals("{\"file\":\"sub/b.page\",\"id\":2,"
+            + "\"source\":\"http://y \\\"t\\\"\",\"extraOf\":\"a1\"}", lines.get(1));
+        assertFalse(Files.exists(out.resolve("c.txt.jsonl")));
+    }
+
+    @Test
+    public void testExtractXliff() throws Exception {
+        Path source = write("b.page", "Sub *file* & [x](http://y?a=1&b=2)\n\n> Quote\n");
+        Path out = dir.resolve("b.xlf");
+
+        assertEquals(0, PublishrCli.run(new String[] {
+            "extract", "-s", "en", "-t", "fr", "-o", out.toString(), source.toString()}));
+
+        Document xml = DocumentBuilderFactory.newInstance().newDocumentBuilder()
+            .parse(out.toFile());
+        Element file = (Element) xml.getElementsByTagName("file").item(0);
+        assertEquals("b.page", file.getAttribute("original"));
+        assertEquals("en", file.getAttribute("source-language"));
+        assertEquals("fr", file.getAttribute("target-language"));
+
+        NodeList units = xml.getElementsByTagName("trans-unit");
+        assertEquals(3, units.getLength());
+        Element first = (Element) units.item(0);
+        assertEquals("Sub <e1>file</e1> & <a1>x</a1>",
+            first.getElementsByTagName("source").item(0).getTextContent());
+        assertEquals("<a1>: http://y?a=1&b=2\n",
+            first.getElementsByTagName("note").item(0).getTextContent());
+        Element extra = (Element) units.item(1);
+        assertEquals("a1", extra.getAttribute("resname"));
+        assertEquals("http://y?a=1&b=2",
+            extra.getElementsByTagName("source").item(0).getTextContent());
+        Element quote = (Element) units.item(2);
+        assertEquals("Quote", quote.getElementsByTagName("source").item(0).getTextContent());
+        assertEquals(Util.RB.getString("FMT_BLOCK_QUOTE") + ": 1\n",
+            quote.getElementsByTagName("note").item(0).getTextContent());
+    }
+
+    @Test
+    public void testExtractFailures() throws Exception {
+        // Usage error
+        assertEquals(2, PublishrCli.run(new String[] {"extract"}));
+
+        // Command must be known, directory input needs output directory,
+        // format must be known
+        assertEquals(1, PublishrCli.run(new String[] {"no-such-command", dir.toString()}));
+        assertEquals(1, PublishrCli.run(new String[] {"extract", dir.toString()}));
+        assertEquals(1, PublishrCli.run(new String[] {"extract", "-f", "csv", "-o",
+            dir.resolve("out").toString(), dir.toString()}));
+
+        // Unreadable file is reported, others are still extracted
+        write("src/a.page", "Text\n");
+        Path broken = write("src/b.page", "Text\n");
+        File brokenFile = broken.toFile();
+        if (brokenFile.setReadable(false) && !brokenFile.canRead()) {
+            Path out = dir.resolve("out");
+            assertEquals(1, PublishrCli.run(new String[] {
+                "extract", "-f", "jsonl", "-o", out.toString(), dir.resolve("src").toString()}));
+            assertEquals(1, readLines(out.resolve("a.page.jsonl")).size());
+            brokenFile.setReadable(true);
+        }
+    }
+
+    /**
+     * Run command and collect what it printed to standard error.
+     */
+    private static String runCapturingErrors(final int expectedCode, final String... args)
+            throws IOException {
+        ByteArrayOutputStream errors = new ByteArrayOutputStream();
+        PrintStream oldErr = System.err;
+        System.setErr(new PrintStream(errors, true, "UTF-8"));
+        try {
+            assertEquals(expectedCode, PublishrCli.run(args));
+        } finally {
+            System.setErr(oldErr);
+        }
+        return new String(errors.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static long compare(final String expected, final byte[]... writes) {
+        PublishrCli.ComparingOutputStream out = new PublishrCli.ComparingOutputStream(
+            ByteBuffer.wrap(expected.getBytes(StandardCharsets.UTF_8)));
+        for (byte[] bytes : writes) {
+            if (bytes.length == 1) {
+                out.write(bytes[0]);
+            } else {
+                out.write(bytes, 0, bytes.length);
+            }
+        }
+        return out.getFirstDifference();
+    }
+
+    private static byte[] bytes(final String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testComparingOutputStream() {
+        assertEquals(-1, compare(""));
+        assertEquals(-1, compare("abc", bytes("abc")));
+        assertEquals(-1, compare("abc", bytes("a"), bytes("bc")));
+        assertEquals(-1, compare("abcd", bytes("ab"), bytes("c"), bytes("d")));
+        assertEquals(1, compare("abc", bytes("aXc")));
+        assertEquals(2, compare("abcd", bytes("ab"), bytes("X"), bytes("d")));
+        // First difference is kept
+        assertEquals(1, compare("abcd", bytes("aX"), bytes("cY")));
+        // Shorter and longer output
+        assertEquals(2, compare("abc", bytes("ab")));
+        assertEquals(0, compare("abc"));
+        assertEquals(3, compare("abc", bytes("abcd")));
+        assertEquals(3, compare("abc", bytes("abc"), bytes("d")));
+        assertEquals(0, compare("", bytes("x")));
+    }
+
+    @Test
+    public void testVerify() throws Exception {
+        copyFixture("src/a.page");
+        copyFixture("src/sub/b.page");
+        write("src/c.page", "Escaped \\*a\\* \\| b\r\nCR\r\r> Quote *x*");
+        String errors = runCapturingErrors(0, "verify", dir.resolve("src").toString());
+        assertFalse(errors, errors.contains("FAILED"));
+        assertTrue(errors, errors.contains("Files: 3, failed: 0"));
+        errors = runCapturingErrors(0, "verify", "-O", Util.PLAIN_SHORTCUTS + "=true",
+            dir.resolve("src").toString());
+        assertFalse(errors, errors.contains("FAILED"));
+    }
+
+    @Test
+    public void testVerifyFailure() throws Exception {
+        copyFixture("src/a.page");
+        // Not UTF-8: decoding replaces the byte, so output differs right there
+        Path latin1 = dir.resolve("src").resolve("latin1.page");
+        Files.write(latin1, new byte[] {'T', 'e', 'x', 't', '\n', 'C', 'a', 'f', (byte) 0xE9,
+            ' ', '*', 'x', '*', '\n'});
+
+        String errors = runCapturingErrors(1, "verify", dir.resolve("src").toString());
+        assertTrue(errors, errors.contains("latin1.page: differs from source at byte 8"));
+        assertFalse(errors, errors.contains("a.page:"));
+        assertTrue(errors, errors.contains("failed: 1"));
+    }
+
+    @Test
+    public void testVerifyRestoresUnchangedLines() throws Exception {
+        // Plain mode takes tags in source text for its own shortcuts, so
+        // restoring formatting breaks this line even though nothing is translated
+        write("src/tags.page", "Text\n\nLiteral <e1>tag</e1> here\n");
+        String errors = runCapturingErrors(1, "verify", "-O", Util.PLAIN_SHORTCUTS + "=true",
+            dir.resolve("src").toString());
+        assertTrue(errors, errors.contains("tags.page: differs from source at byte 14"));
+        errors = runCapturingErrors(0, "verify", dir.resolve("src").toString());
+        assertFalse(errors, errors.contains("FAILED"));
+    }
+}
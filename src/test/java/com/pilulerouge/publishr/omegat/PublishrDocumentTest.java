@@ -0,0 +1,422 @@
+/**************************************************************************
+ PublishR file filter for OmegaT
+
+ Copyright (C) 2018 Lev Abashkin
+
+ This file is NOT a part of OmegaT.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ **************************************************************************/
+
+package com.pilulerouge.publishr.omegat;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Field;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+import org.omegat.filters2.AbstractFilter;
+import org.omegat.filters2.FilterContext;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+public class PublishrDocumentTest {
+
+    private static final int REPEAT = 25000;
+    // Allowed for writing the whole document, does not grow with line count
+    private static final long ALLOCATION_BUDGET = 1024;
+
+    /**
+     * Writer which only counts characters.
+     */
+    private static final class CountingWriter extends Writer {
+        private long count;
+
+        @Override
+        public void write(final char[] cbuf, final int off, final int len) {
+            count += len;
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static void writeDocument(final PublishrDocument document, final Writer out)
+            throws IOException {
+        for (int line = 0; line < document.getLineCount(); line++) {
+            if (document.getKind(line) == PublishrDocument.LINE_TEXT) {
+                document.writePrefix(line, out);
+                document.writeLineBreak(line, out);
+            } else {
+                document.writeLine(line, out);
+            }
+        }
+        document.writeLines(0, document.getLineCount(), out);
+    }
+
+    @Test
+    public void testPassThroughOutputAllocation() throws Exception {
+        java.lang.management.ThreadMXBean mxBean = ManagementFactory.getThreadMXBean();
+        assumeTrue(mxBean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) mxBean;
+        assumeTrue(bean.isThreadAllocatedMemorySupported());
+        bean.setThreadAllocatedMemoryEnabled(true);
+
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < REPEAT; i++) {
+            sb.append("{:.comment}\r\n");
+            sb.append("\n");
+            sb.append("|---+---|\r");
+            sb.append("> > Quote\n");
+            sb.append("^\n");
+        }
+        PublishrDocument document = PublishrDocument.read(new StringReader(sb.toString()));
+        CountingWriter out = new CountingWriter();
+
+        // Warm up
+        for (int i = 0; i < 3; i++) {
+            writeDocument(document, out);
+        }
+
+        long threadId = Thread.currentThread().getId();
+        long before = bean.getThreadAllocatedBytes(threadId);
+        writeDocument(document, out);
+        long allocated = bean.getThreadAllocatedBytes(threadId) - before;
+
+        assertTrue("Allocated " + allocated + " bytes for " + document.getLineCount()
+                + " lines", allocated < ALLOCATION_BUDGET);
+        // Prefixes, line breaks and whole lines are all written
+        assertEquals(4 * (sb.length() * 2L - "Quote".length() * REPEAT), out.count);
+    }
+
+    @Test
+    public void testRawRegionsAreVerbatim() throws Exception {
+        String[] lines = {
+            "---",                        // 0 front matter
+            "title: *Not* a segment",
+            "---",
+            "Text *one*",                 // 3
+            "",
+            "~~~ ruby",                   // 5 fenced code
+            "a * b | c",
+            "",
+            "~~~~",
+            "```text```",                 // 9 inline code, not a fence
+            "",
+            "<div class=\"box\">",        // 11 block-level HTML holds text
+            "**Bold** inside",
+            "",
+            "<pre>",                      // 14 raw HTML up to closing tag
+            "",
+            "x | y</PRE>",
+            "<!-- note",                  // 17 comment
+            "still note -->",
+            "```",                        // 19 unclosed fence is text
+            "<span>Inline</span>"         // 20 inline HTML is text
+        };
+        PublishrDocument document = PublishrDocument.read(
+                new StringReader(String.join("\n", lines)));
+        byte[] expected = {1, 1, 1, 2, 0, 1, 1, 1, 1, 2, 0, 2, 2, 0, 1, 1, 1, 1, 1, 2, 2};
+        assertEquals(expected.length, document.getLineCount());
+        for (int line = 0; line < expected.length; line++) {
+            assertEquals("Line " + line, expected[line], document.getKind(line));
+        }
+    }
+
+    @Test
+    public void testBlockHtmlTextIsExtracted() throws Exception {
+        File file = FilterFixtures.writeTemp(String.join("\n",
+            "<p>Some *prose* here.</p>",
+            "",
+            "<div class=\"note\">",
+            "More **text**",
+            "</div>",
+            "",
+            "<script>",
+            "var a = 1;",
+            "",
+            "b();",
+            "</script>",
+            ""));
+        assertEquals(Arrays.asList("<p>Some <e1>prose</e1> here.</p>",
+            "<div class=\"note\">", "More <e2>text</e2>", "</div>"),
+            FilterFixtures.parseSegments(file, FilterFixtures.options()));
+    }
+
+    @Test
+    public void testFrontMatterNeedsYamlKeys() throws Exception {
+        // Document opening with a horizontal rule has no front matter
+        String[] lines = {
+            "---",
+            "",
+            "First *paragraph*.",
+            "",
+            "---",
+            "Second paragraph."
+        };
+        PublishrDocument document = PublishrDocument.read(
+                new StringReader(String.join("\n", lines)));
+        assertEquals(PublishrDocument.LINE_TEXT, document.getKind(2));
+        assertEquals(PublishrDocument.LINE_TEXT, document.getKind(5));
+
+        // Keys with nested values, list items and blank lines
+        lines = new String[] {
+            "---",
+            "title: Book",
+            "",
+            "author:",
+            "  name: Someone",
+            "tags:",
+            "- one",
+            "layout.page-2:",
+            "...",
+            "Text"
+        };
+        document = PublishrDocument.read(new StringReader(String.join("\n", lines)));
+        for (int line = 0; line < 9; line++) {
+            assertEquals("Line " + line, PublishrDocument.LINE_VERBATIM, document.getKind(line));
+        }
+        assertEquals(PublishrDocument.LINE_TEXT, document.getKind(9));
+
+        // Value before any key, text without colon, colon inside a word
+        for (String second : new String[] {"  indented", "- item", "Plain text", "a:b",
+                "http://example.com"}) {
+            document = PublishrDocument.read(new StringReader("---\n" + second + "\n---\n"));
+            assertNotEquals(second, PublishrDocument.LINE_VERBATIM, document.getKind(1));
+        }
+    }
+
+    @Test(timeout = 5000)
+    public void testManyUnclosedRawBlocks() throws Exception {
+        // Every opener used to scan the rest of document for its closer
+        int count = 50000;
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            sb.append("````a\n<!-- b\n<pre>\nText\n");
+        }
+        // Shorter fence does not close longer ones
+        sb.append("```\n");
+        PublishrDocument document = PublishrDocument.read(new StringReader(sb.toString()));
+        assertEquals(count * 4 + 1, document.getLineCount());
+        for (int line = 0; line < document.getLineCount(); line++) {
+            assertEquals("Line " + line, PublishrDocument.LINE_TEXT, document.getKind(line));
+        }
+
+        // Closer after many openers still closes the first of them
+        sb.append("````\n");
+        document = PublishrDocument.read(new StringReader(sb.toString()));
+        for (int line = 0; line < document.getLineCount(); line++) {
+            assertEquals("Line " + line, PublishrDocument.LINE_VERBATIM, document.getKind(line));
+        }
+        sb.setLength(0);
+        for (int i = 0; i < count; i++) {
+            sb.append("<!-- b\n");
+        }
+        sb.append("Text\n\n<pre>\n-->\nText</PRE>\nText\n");
+        document = PublishrDocument.read(new StringReader(sb.toString()));
+        assertEquals(count + 6, document.getLineCount());
+        for (int line = 0; line < count + 4; line++) {
+            assertEquals("Line " + line, PublishrDocument.LINE_VERBATIM, document.getKind(line));
+        }
+        assertEquals(PublishrDocument.LINE_TEXT, document.getKind(count + 4));
+        assertEquals(PublishrDocument.LINE_TEXT, document.getKind(count + 5));
+    }
+
+    @Test
+    public void testReservedCharsAreVerbatim() throws Exception {
+        String source = "Mask \uFDD0 char *one*\n"
+            + "Unused mask \uFDEF char *two*\n"
+            + "Placeholder \uFFFF0\uFFFE *three*\n"
+            + "Plain *four*\n";
+        PublishrDocument document = PublishrDocument.read(new StringReader(source));
+        assertEquals(PublishrDocument.LINE_VERBATIM, document.getKind(0));
+        assertEquals(PublishrDocument.LINE_VERBATIM, document.getKind(1));
+        assertEquals(PublishrDocument.LINE_VERBATIM, document.getKind(2));
+        assertEquals(PublishrDocument.LINE_TEXT, document.getKind(3));
+
+        // Such lines are neither sent for translation nor changed
+        File file = FilterFixtures.writeTemp(source);
+        assertEquals(Arrays.asList("Plain <e1>four</e1>"),
+            FilterFixtures.parseSegments(file, FilterFixtures.options()));
+        Map<String, String> translations = new HashMap<>();
+        translations.put("Plain <e1>four</e1>", "Simple <e1>quatre</e1>");
+        assertEquals(source.replace("Plain *four*", "Simple *quatre*"),
+            FilterFixtures.translate(file, FilterFixtures.options(), translations));
+    }
+
+    /**
+     * Check that mapped document has the same lines as the one read by reader.
+     */
+    private static void checkMappedSameAsRead(final byte[] bytes) throws Exception {
+        File file = FilterFixtures.writeTemp(bytes);
+        PublishrDocument mapped = PublishrDocument.map(file);
+        PublishrDocument read = PublishrDocument.read(new InputStreamReader(
+            new ByteArrayInputStream(bytes), StandardCharsets.UTF_8));
+        assertNotNull(mapped);
+        assertEquals(read.getLineCount(), mapped.getLineCount());
+        for (int line = 0; line < read.getLineCount(); line++) {
+            assertEquals("Line " + line, read.getText(line, line + 1),
+                mapped.getText(line, line + 1));
+            assertEquals("Line " + line, read.getKind(line), mapped.getKind(line));
+            if (read.getKind(line) == PublishrDocument.LINE_TEXT) {
+                assertEquals(read.getPrefix(line), mapped.getPrefix(line));
+                assertEquals(read.getContent(line), mapped.getContent(line));
+            }
+        }
+        if (read.getLineCount() > 0) {
+            assertEquals(new String(bytes, StandardCharsets.UTF_8),
+                mapped.getText(0, mapped.getLineCount()));
+        }
+    }
+
+    private static byte[] utf8(final String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testMappedLineBreaks() throws Exception {
+        checkMappedSameAsRead(utf8(""));
+        checkMappedSameAsRead(utf8("\n"));
+        checkMappedSameAsRead(utf8("\r"));
+        checkMappedSameAsRead(utf8("\r\n"));
+        checkMappedSameAsRead(utf8("No break at end"));
+        checkMappedSameAsRead(utf8("CRLF\r\n> Quote\r\n\r\nText\r\n"));
+        checkMappedSameAsRead(utf8("Lone CR\r# Heading\r\rText\r"));
+        checkMappedSameAsRead(utf8("Mixed\r\n\n\r\r\n\n\rEnd"));
+
+        PublishrDocument document = PublishrDocument.map(
+            FilterFixtures.writeTemp(utf8("a\r\nb\rc\n\n\rd")));
+        String[] breaks = {"\r\n", "\r", "\n", "\n", "\r", ""};
+        assertEquals(breaks.length, document.getLineCount());
+        for (int line = 0; line < breaks.length; line++) {
+            StringWriter out = new StringWriter();
+            document.writeLineBreak(line, out);
+            assertEquals("Line " + line, breaks[line], out.toString());
+        }
+    }
+
+    @Test
+    public void testMappedMultibyte() throws Exception {
+        // Two, three and four byte sequences right at line edges
+        checkMappedSameAsRead(utf8("\u00e9\n\u20ac\r\n\ud834\udd1e\r\u00e9\u20ac\ud834\udd1e"));
+        checkMappedSameAsRead(utf8("> \u00ab Citation \u00bb\n\n*\u0416\u0438\u0440*\n"));
+
+        // Multibyte characters across reader buffer and line array growth
+        String[] pieces = {"a", " ", "*", "\u00e9", "\u20ac", "\ud834\udd1e", "\n", "\r",
+            "\r\n", "> ", "# "};
+        Random random = new Random(42);
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() < 50000) {
+            sb.append(pieces[random.nextInt(pieces.length)]);
+        }
+        checkMappedSameAsRead(utf8(sb.toString()));
+
+        // Broken sequences are replaced the same way
+        checkMappedSameAsRead(new byte[] {'a', (byte) 0xE2, (byte) 0x82, '\n', 'b', (byte) 0xFF,
+            'c', '\r', (byte) 0xF0, (byte) 0x9D});
+    }
+
+    @Test
+    public void testMappedLongLine() throws Exception {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            sb.append("\u20ac\u00e9 ");
+        }
+        sb.append("\r\n");
+        checkMappedSameAsRead(utf8(sb.toString() + sb + sb));
+    }
+
+    @Test
+    public void testByteOrderMarkFallsBackToReader() throws Exception {
+        byte[] bytes = utf8("\ufeffHello *world*\r\nLine two\r");
+        File file = FilterFixtures.writeTemp(bytes);
+        assertNull(PublishrDocument.map(file));
+
+        // Filter reads such files through the reader and keeps them intact
+        List<String> segments = FilterFixtures.parseSegments(file, FilterFixtures.options());
+        assertEquals(2, segments.size());
+        assertTrue(segments.get(0).endsWith("Hello <e1>world</e1>"));
+        assertEquals("Line two", segments.get(1));
+        assertArrayEquals(bytes, FilterFixtures.translate(new PublishrFilter(), file,
+            FilterFixtures.options(), new FilterFixtures.MapCallback(new HashMap<>())));
+    }
+
+    @Test
+    public void testEncodingOfLastParsedFile() throws Exception {
+        File mapped = FilterFixtures.writeTemp("Mapped *text*\n");
+        File withBom = FilterFixtures.writeTemp(utf8("\ufeffRead *text*\n"));
+        PublishrFilter filter = new PublishrFilter();
+
+        parse(filter, mapped, StandardCharsets.UTF_8.name());
+        assertEquals(StandardCharsets.UTF_8.name(), getEncodingOfLastParsedFile(filter));
+        parse(filter, withBom, "utf8");
+        assertEquals("utf8", getEncodingOfLastParsedFile(filter));
+        parse(filter, mapped, StandardCharsets.ISO_8859_1.name());
+        assertEquals(StandardCharsets.ISO_8859_1.name(), getEncodingOfLastParsedFile(filter));
+        parse(filter, mapped, null);
+        assertEquals(Charset.defaultCharset().name(), getEncodingOfLastParsedFile(filter));
+    }
+
+    private static void parse(final PublishrFilter filter, final File file,
+                              final String encoding) throws Exception {
+        FilterContext fc = FilterFixtures.createContext();
+        fc.setInEncoding(encoding);
+        filter.parseFile(file, FilterFixtures.options(), fc,
+            new FilterFixtures.CollectingCallback());
+    }
+
+    private static String getEncodingOfLastParsedFile(final PublishrFilter filter)
+            throws Exception {
+        Field field = AbstractFilter.class.getDeclaredField("inEncodingLastParsedFile");
+        field.setAccessible(true);
+        return (String) field.get(filter);
+    }
+
+    @Test
+    public void testTooLargeFileIsNotMapped() throws Exception {
+        File file = File.createTempFile("publishr", ".page");
+        file.deleteOnExit();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            // Sparse file, no space is actually used
+            raf.setLength((long) Integer.MAX_VALUE);
+        } catch (IOException e) {
+            assumeTrue("Cannot create large file: " + e, false);
+        }
+        try {
+            assertNull(PublishrDocument.map(file));
+        } finally {
+            assertTrue(file.delete());
+        }
+    }
+}
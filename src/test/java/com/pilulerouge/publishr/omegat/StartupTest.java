@@ -0,0 +1,187 @@
+/**************************************************************************
+ PublishR file filter for OmegaT
+
+ Copyright (C) 2018 Lev Abashkin
+
+ This file is NOT a part of OmegaT.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ **************************************************************************/
+
+
+package com.pilulerouge.publishr.omegat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks and measures plugin startup: loading the filter class, creating an
+ * instance and asking its name, as OmegaT does for every installed filter.
+ * Plugin classes are loaded by a fresh class loader, so static
+ * initialization of other tests does not hide the cost.
+ */
+public class StartupTest {
+
+    private static final String PACKAGE = "com.pilulerouge.publishr.omegat.";
+    private static final Logger LOGGER = Logger.getLogger(StartupTest.class.getName());
+    private static final int MEASURED_RUNS = 5;
+
+    // Classes whose initialization is deferred until a file is processed
+    private static final String[] DEFERRED_CLASSES = {
+        "Formatter", "ElementProcessor", "Highlighter", "PublishrFilter$PlainMode"
+    };
+
+    /**
+     * Loads plugin classes itself, everything else comes from parent.
+     */
+    private static final class IsolatingClassLoader extends ClassLoader {
+
+        IsolatingClassLoader(final ClassLoader parent) {
+            super(parent);
+        }
+
+        @Override
+        protected Class<?> loadClass(final String name, final boolean resolve)
+                throws ClassNotFoundException {
+            if (!name.startsWith(PACKAGE)) {
+                return super.loadClass(name, resolve);
+            }
+            synchronized (getClassLoadingLock(name)) {
+                Class<?> c = findLoadedClass(name);
+                if (c == null) {
+                    byte[] bytes = readClass(name);
+                    c = defineClass(name, bytes, 0, bytes.length);
+                }
+                if (resolve) {
+                    resolveClass(c);
+                }
+                return c;
+            }
+        }
+
+        private byte[] readClass(final String name) throws ClassNotFoundException {
+            String resource = name.replace('.', '/') + ".class";
+            try (InputStream in = getParent().getResourceAsStream(resource)) {
+                if (in == null) {
+                    throw new ClassNotFoundException(name);
+                }
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                byte[] buffer = new byte[8192];
+                int n;
+                while ((n = in.read(buffer)) > 0) {
+                    out.write(buffer, 0, n);
+                }
+                return out.toByteArray();
+            } catch (IOException e) {
+                throw new ClassNotFoundException(name, e);
+            }
+        }
+
+        boolean isLoaded(final String simpleName) {
+            return findLoadedClass(PACKAGE + simpleName) != null;
+        }
+    }
+
+    /**
+     * Do what OmegaT does with every installed filter on startup.
+     * @return filter instance
+     */
+    private static Object startPlugin(final IsolatingClassLoader loader) throws Exception {
+        Class<?> filterClass = loader.loadClass(PACKAGE + "PublishrFilter");
+        Object filter = filterClass.getConstructor().newInstance();
+        assertNotNull(filterClass.getMethod("getFileFormatName").invoke(filter));
+        filterClass.getMethod("getDefaultInstances").invoke(filter);
+        return filter;
+    }
+
+    /**
+     * Do work of the first processed file in current and plain modes.
+     */
+    private static void processFirstFile(final Object filter) throws Exception {
+        Class<?> filterClass = filter.getClass();
+        Map<String, String> options = new HashMap<>();
+        options.put("plainShortcuts", "true");
+        Method applyOptions = filterClass.getDeclaredMethod("applyOptions", Map.class);
+        applyOptions.setAccessible(true);
+        applyOptions.invoke(null, options);
+        Method convertPlain = filterClass.getDeclaredMethod("convertPlain", String.class);
+        convertPlain.setAccessible(true);
+        assertEquals("<e2>Bold</e2>", convertPlain.invoke(filter, "**Bold**"));
+    }
+
+    @Test
+    public void testStartupDefersInitialization() throws Exception {
+        IsolatingClassLoader loader = new IsolatingClassLoader(getClass().getClassLoader());
+
+        Object filter = startPlugin(loader);
+        for (String name : DEFERRED_CLASSES) {
+            assertFalse(name + " is loaded on startup", loader.isLoaded(name));
+        }
+
+        processFirstFile(filter);
+        for (String name : DEFERRED_CLASSES) {
+            assertTrue(name + " is not loaded on first use", loader.isLoaded(name));
+        }
+    }
+
+    @Test
+    public void testStartupTime() throws Exception {
+        // Best of several runs, each with its own loader, so every run
+        // defines and initializes plugin classes again
+        long startup = Long.MAX_VALUE;
+        long deferred = Long.MAX_VALUE;
+        for (int run = 0; run < MEASURED_RUNS; run++) {
+            IsolatingClassLoader loader =
+                new IsolatingClassLoader(getClass().getClassLoader());
+            long start = System.nanoTime();
+            Object filter = startPlugin(loader);
+            long started = System.nanoTime();
+            processFirstFile(filter);
+            long processed = System.nanoTime();
+            startup = Math.min(startup, started - start);
+            deferred = Math.min(deferred, processed - started);
+        }
+        LOGGER.info(String.format("Plugin startup %.1f ms, deferred to first file %.1f ms",
+            startup / 1e6, deferred / 1e6));
+    }
+
+    @Test
+    public void testCommandLineDoesNotLoadHighlighter() throws Exception {
+        IsolatingClassLoader loader = new IsolatingClassLoader(getClass().getClassLoader());
+        File output = File.createTempFile("publishr", ".jsonl");
+        output.deleteOnExit();
+
+        Class<?> cliClass = loader.loadClass(PACKAGE + "PublishrCli");
+        Method run = cliClass.getDeclaredMethod("run", String[].class);
+        run.setAccessible(true);
+        assertEquals(0, run.invoke(null, (Object) new String[] {
+            "extract", "-f", "jsonl", "-o", output.getPath(),
+            FilterFixtures.getFile().getPath()}));
+        assertTrue(output.length() > 0);
+
+        // Editor helpers and their Swing styles are not needed without editor
+        assertTrue(loader.isLoaded("Formatter"));
+        assertFalse(loader.isLoaded("Highlighter"));
+    }
+}
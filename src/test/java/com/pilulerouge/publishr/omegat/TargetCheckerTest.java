@@ -0,0 +1,120 @@
+/**************************************************************************
+ PublishR file filter for OmegaT
+
+ Copyright (C) 2018 Lev Abashkin
+
+ This file is NOT a part of OmegaT.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ **************************************************************************/
+
+
+
+package com.pilulerouge.publishr.omegat;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TargetCheckerTest {
+
+    private static List<String> check(final boolean plainShortcuts, final String... lines)
+            throws Exception {
+        PublishrDocument document = PublishrDocument.read(
+            new StringReader(String.join("\n", lines)));
+        List<String> result = new ArrayList<>();
+        for (TargetChecker.Problem problem : TargetChecker.check(document, plainShortcuts)) {
+            result.add(problem.format("t.page"));
+        }
+        return result;
+    }
+
+    private static List<String> check(final String... lines) throws Exception {
+        return check(false, lines);
+    }
+
+    @Test
+    public void testFixtureIsClean() throws Exception {
+        PublishrDocument document = PublishrDocument.map(FilterFixtures.getFile());
+        assertEquals(Collections.emptyList(), TargetChecker.check(document, false));
+        assertEquals(Collections.emptyList(), TargetChecker.check(document, true));
+    }
+
+    @Test
+    public void testEmphasis() throws Exception {
+        assertEquals(Collections.emptyList(), check(
+            "Some *light*, **strong** and ***both*** text.",
+            "Math 2 * 3 * 4 and a lone * star.",
+            "*Emphasis with * inside*"));
+        assertEquals(Arrays.asList("t.page:1:6: Unclosed *"), check("Some *light text."));
+        assertEquals(Arrays.asList("t.page:1:6: Unclosed **"), check("Some **strong text."));
+        assertEquals(Arrays.asList("t.page:1:10: Unmatched closing *"), check("Some text* here."));
+        assertEquals(Arrays.asList("t.page:1:5: Unmatched closing **"),
+            check("Text** and *light*."));
+        // Emphasis never spans lines
+        assertEquals(Arrays.asList("t.page:1:1: Unclosed *", "t.page:2:5: Unmatched closing *"),
+            check("*Open", "line* closed"));
+    }
+
+    @Test
+    public void testPositionsAfterBlockPrefix() throws Exception {
+        assertEquals(Arrays.asList("t.page:2:8: Unclosed **"),
+            check("# Heading", "> > Qu **ote"));
+    }
+
+    @Test
+    public void testEscapes() throws Exception {
+        assertEquals(Collections.emptyList(), check("Escaped \\*star and \\<e1> tag."));
+        assertEquals(Collections.emptyList(), check(true, "Escaped \\*star."));
+        // Only asterisks are escapable in plain shortcut mode
+        assertEquals(Arrays.asList("t.page:1:10: Shortcut tag <e1> left in text"),
+            check(true, "Escaped \\<e1> tag."));
+    }
+
+    @Test
+    public void testShortcutsLeftInText() throws Exception {
+        assertEquals(Arrays.asList(
+            "t.page:1:6: Shortcut tag <e1> left in text",
+            "t.page:1:14: Shortcut tag </e1> left in text",
+            "t.page:2:5: Shortcut tag <f2/> left in text",
+            "t.page:3:1: Shortcut tag <sup1> left in text",
+            "t.page:4:3: Shortcut tag <ef> left in text"),
+            check("Text <e1>word</e1>.", "Note<f2/>", "<sup1>st", "A <ef>b"));
+        // HTML and unknown tags are not shortcuts
+        assertEquals(Collections.emptyList(),
+            check("Some <b>bold</b>, <br/>, <x1> and <e> tags.", "<ef1> and <h1>"));
+    }
+
+    @Test
+    public void testFootnotes() throws Exception {
+        assertEquals(Collections.emptyList(), check(
+            "Text[^one] and again[^one].",
+            "",
+            "[^one]: Definition"));
+        assertEquals(Arrays.asList("t.page:1:5: Footnote [^two] has no definition",
+            "t.page:2:3: Footnote [^three] has no definition"), check(
+            "Text[^two] and [^one].",
+            "A [^three]",
+            "",
+            "[^one]: Definition"));
+        // Labels with escaped characters
+        assertEquals(Collections.emptyList(), check("Text[^a\\_b]", "", "[^a\\_b]: Definition"));
+    }
+}
@@ -0,0 +1,199 @@
+/**************************************************************************
+ PublishR file filter for OmegaT
+
+ Copyright (C) 2018 Lev Abashkin
+
+ This file is NOT a part of OmegaT.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ **************************************************************************/
+
+
+
+package com.pilulerouge.publishr.omegat;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TranslationIndexTest {
+
+    @Test
+    public void testPutGet() {
+        TranslationIndex index = new TranslationIndex();
+        assertEquals(0, index.size());
+        assertNull(index.get("Missing"));
+
+        index.put("Hello <e1>world</e1>", "Bonjour <e1>monde</e1>", true);
+        index.put("", "Empty", true);
+        index.put("\u0416\u00e9\u20ac\ud834\udd1e", "Multibyte", true);
+        index.put("Empty target", "", true);
+        assertEquals(4, index.size());
+        assertEquals("Bonjour <e1>monde</e1>", index.get("Hello <e1>world</e1>"));
+        assertEquals("Empty", index.get(""));
+        assertEquals("Multibyte", index.get("\u0416\u00e9\u20ac\ud834\udd1e"));
+        assertEquals("", index.get("Empty target"));
+        assertNull(index.get("Hello <e1>world</e1> "));
+    }
+
+    @Test
+    public void testReplace() {
+        TranslationIndex index = new TranslationIndex();
+        index.put("Source", "First", false);
+        index.put("Source", "Alternative", false);
+        assertEquals("First", index.get("Source"));
+        index.put("Source", "Default", true);
+        assertEquals("Default", index.get("Source"));
+        assertEquals(1, index.size());
+    }
+
+    @Test
+    public void testResize() {
+        TranslationIndex index = new TranslationIndex();
+        Map<String, String> expected = new HashMap<>();
+        Random random = new Random(42);
+        for (int i = 0; i < 100000; i++) {
+            String source = "Segment " + random.nextInt(60000);
+            String target = "Translation " + i;
+            index.put(source, target, true);
+            expected.put(source, target);
+            // Lookups keep working while table grows
+            if (i % 997 == 0) {
+                assertEquals(target, index.get(source));
+            }
+        }
+        assertEquals(expected.size(), index.size());
+        for (Map.Entry<String, String> e : expected.entrySet()) {
+            assertEquals(e.getValue(), index.get(e.getKey()));
+        }
+        assertNull(index.get("Segment 60000"));
+    }
+
+    @Test
+    public void testCollisions() {
+        // "Aa" and "BB" have equal hash codes, so do all their concatenations
+        List<String> keys = new ArrayList<>();
+        keys.add("");
+        for (int length = 0; length < 12; length++) {
+            List<String> longer = new ArrayList<>();
+            for (String key : keys) {
+                longer.add(key + "Aa");
+                longer.add(key + "BB");
+            }
+            keys = longer;
+        }
+        assertEquals(Arrays.hashCode(keys.get(0).getBytes()),
+            Arrays.hashCode(keys.get(keys.size() - 1).getBytes()));
+
+        TranslationIndex index = new TranslationIndex();
+        for (int i = 0; i < keys.size(); i += 2) {
+            index.put(keys.get(i), Integer.toString(i), true);
+        }
+        assertEquals(keys.size() / 2, index.size());
+        for (int i = 0; i < keys.size(); i++) {
+            if (i % 2 == 0) {
+                assertEquals(Integer.toString(i), index.get(keys.get(i)));
+            } else {
+                assertNull(index.get(keys.get(i)));
+            }
+        }
+    }
+
+    @Test
+    public void testLargeEntriesSpanChunks() {
+        TranslationIndex index = new TranslationIndex();
+        char[] text = new char[1 << 20];
+        for (int i = 0; i < 20; i++) {
+            Arrays.fill(text, (char) ('a' + i));
+            index.put("Key " + i, new String(text), true);
+        }
+        assertTrue(index.getDataSize() > 20L << 20);
+        for (int i = 0; i < 20; i++) {
+            String value = index.get("Key " + i);
+            assertEquals(1 << 20, value.length());
+            assertEquals('a' + i, value.charAt(value.length() - 1));
+        }
+    }
+
+    @Test
+    public void testLoadTmx() throws Exception {
+        File tmx = FilterFixtures.writeTemp(String.join("\n",
+            "<?xml version=\"1.0\" encoding=\"UTF-8\"?>",
+            "<tmx version=\"1.4\"><header srclang=\"EN-US\" adminlang=\"en\"/><body>",
+            "<tu><tuv xml:lang=\"fr\"><seg>Bonjour</seg></tuv>",
+            "<tuv xml:lang=\"en-US\"><seg>Hello</seg></tuv></tu>",
+            "<tu><prop type=\"file\">a.page</prop>",
+            "<tuv lang=\"en-US\"><seg>Hello</seg></tuv>",
+            "<tuv lang=\"fr\"><seg>Salut</seg></tuv></tu>",
+            "<tu><tuv xml:lang=\"en-US\"><seg>Some <bpt i=\"1\">&lt;e1&gt;</bpt>text"
+                + "<ept i=\"1\">&lt;/e1&gt;</ept> &amp; more</seg></tuv>",
+            "<tuv xml:lang=\"fr\"><seg>Du <ph>&lt;e1&gt;</ph>texte<ph>&lt;/e1&gt;</ph>"
+                + " <![CDATA[& plus]]></seg></tuv></tu>",
+            "<tu><prop type=\"id\">x</prop><tuv xml:lang=\"en-US\"><seg>Alt only</seg></tuv>",
+            "<tuv xml:lang=\"fr\"><seg>Seulement</seg></tuv></tu>",
+            "<tu><tuv xml:lang=\"en-US\"><seg>No target</seg></tuv></tu>",
+            "</body></tmx>"));
+        TranslationIndex index = TranslationIndex.loadTmx(tmx.toPath(), "de", "fr");
+        assertEquals(3, index.size());
+        assertEquals("Bonjour", index.get("Hello"));
+        assertEquals("Du <e1>texte</e1> & plus", index.get("Some <e1>text</e1> & more"));
+        assertEquals("Seulement", index.get("Alt only"));
+        assertNull(index.get("No target"));
+    }
+
+    @Test
+    public void testLoadTmxTakesTargetLanguage() throws Exception {
+        File tmx = FilterFixtures.writeTemp(String.join("\n",
+            "<?xml version=\"1.0\" encoding=\"UTF-8\"?>",
+            "<tmx version=\"1.4\"><header srclang=\"en\"/><body>",
+            "<tu><tuv xml:lang=\"de\"><seg>Hallo</seg></tuv>",
+            "<tuv xml:lang=\"en\"><seg>Hello</seg></tuv>",
+            "<tuv xml:lang=\"fr\"><seg>Bonjour</seg></tuv></tu>",
+            "<tu><tuv xml:lang=\"en-GB\"><seg>Colour</seg></tuv>",
+            "<tuv xml:lang=\"fr-CA\"><seg>Couleur</seg></tuv>",
+            "<tuv><seg>No language</seg></tuv></tu>",
+            "<tu><tuv xml:lang=\"en\"><seg>Car</seg></tuv>",
+            "<tuv xml:lang=\"fr-CA\"><seg>Char</seg></tuv>",
+            "<tuv xml:lang=\"fr-FR\"><seg>Voiture</seg></tuv></tu>",
+            "<tu><tuv xml:lang=\"en\"><seg>German only</seg></tuv>",
+            "<tuv xml:lang=\"de\"><seg>Nur Deutsch</seg></tuv></tu>",
+            "</body></tmx>"));
+        TranslationIndex index = TranslationIndex.loadTmx(tmx.toPath(), "en", "fr");
+        assertEquals("Bonjour", index.get("Hello"));
+        assertEquals("Couleur", index.get("Colour"));
+        assertEquals("Char", index.get("Car"));
+        assertNull(index.get("German only"));
+        assertEquals(3, index.size());
+
+        index = TranslationIndex.loadTmx(tmx.toPath(), "en", "FR-fr");
+        assertEquals("Voiture", index.get("Car"));
+        assertEquals("Bonjour", index.get("Hello"));
+        assertEquals("Hallo", TranslationIndex.loadTmx(tmx.toPath(), "en", "de").get("Hello"));
+    }
+
+    @Test(expected = IOException.class)
+    public void testInvalidTmx() throws Exception {
+        File tmx = FilterFixtures.writeTemp("<tmx><body><tu></body></tmx>");
+        TranslationIndex.loadTmx(tmx.toPath(), "en", "fr");
+    }
+}
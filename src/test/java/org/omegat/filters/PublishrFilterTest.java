@@ -26,11 +26,18 @@
 
 package org.omegat.filters;
 
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
 import org.junit.Test;
+import org.omegat.core.data.ProtectedPart;
+import org.omegat.filters2.IFilter;
+import org.omegat.filters2.IParseCallback;
+import org.omegat.filters2.ITranslateCallback;
 import com.pilulerouge.publishr.omegat.PublishrFilter;
 import com.pilulerouge.publishr.omegat.Util;
 
@@ -136,4 +143,117 @@ public class PublishrFilterTest extends TestFilterBase {
         translateText(new PublishrFilter(), "/filters/publishr/publishr.txt");
     }
 
+    @Test
+    public void testAlign() throws Exception {
+        TestAlignCallback callback = new TestAlignCallback();
+        new PublishrFilter().alignFile(
+                new File(getClass().getResource("/filters/publishr/publishr-align.txt").getFile()),
+                new File(getClass().getResource("/filters/publishr/publishr-align_fr.txt")
+                        .getFile()),
+                new HashMap<>(), context, callback);
+        checkAlignStart(callback);
+        checkAlign(null, "Heading with <e2>bold</e2>", "Titre avec <e2>gras</e2>", null);
+        checkAlign(null, "First paragraph with <a1>link</a1>.",
+                "Premier paragraphe avec <a1>lien</a1>.", null);
+        checkAlign(null, "http://example.com/en", "http://example.com/fr", null);
+        checkAlign(null, "Item <e1>one</e1>", "Élément <e1>un</e1>", null);
+        checkAlign(null, "Item two", "Élément deux", null);
+        checkAlign(null, "Last<f1/> paragraph.", "Dernier<f1/> paragraphe.", null);
+        checkAlign(null, "Note", "Note fr", null);
+        checkAlignEnd();
+    }
+
+    @Test
+    public void testProtectedParts() throws Exception {
+        final Map<String, List<ProtectedPart>> parts = new HashMap<>();
+        new PublishrFilter().parseFile(
+                new File(getClass().getResource("/filters/publishr/publishr.txt").getFile()),
+                new HashMap<>(), context, new IParseCallback() {
+                    public void addEntry(String id, String source, String translation,
+                                         boolean isFuzzy, String comment, IFilter filter) {
+                        addEntry(id, source, translation, isFuzzy, comment, null, filter, null);
+                    }
+
+                    public void addEntry(String id, String source, String translation,
+                                         boolean isFuzzy, String comment, String path,
+                                         IFilter filter, List<ProtectedPart> protectedParts) {
+                        parts.put(source, protectedParts);
+                    }
+
+                    public void addEntryWithProperties(String id, String source,
+                                                       String translation, boolean isFuzzy,
+                                                       String[] props, String path,
+                                                       IFilter filter,
+                                                       List<ProtectedPart> protectedParts) {
+                    }
+
+                    public void linkPrevNextSegments() {
+                    }
+                });
+
+        assertNull(parts.get("Simple paragraph."));
+        List<ProtectedPart> emphasis = parts.get("Let's <e2>try</e2> some <e1>formatting</e1>.");
+        assertEquals(4, emphasis.size());
+        assertEquals("<e2>", emphasis.get(0).getTextInSourceSegment());
+        assertEquals("**", emphasis.get(0).getDetailsFromSourceFile());
+        assertEquals("</e1>", emphasis.get(3).getTextInSourceSegment());
+        assertEquals("*", emphasis.get(3).getDetailsFromSourceFile());
+        List<ProtectedPart> link = parts.get("And here is a link <a1>Link description</a1>.");
+        assertEquals("](http://first.url)", link.get(1).getDetailsFromSourceFile());
+        List<ProtectedPart> table = parts.get("<s1/> Second body");
+        assertEquals(1, table.size());
+        assertEquals("<s1/>", table.get(0).getTextInSourceSegment());
+        assertEquals("|", table.get(0).getDetailsFromSourceFile());
+    }
+
+    @Test
+    public void testEscapesRoundTrip() throws Exception {
+        List<String> entries = parse(new PublishrFilter(), "/filters/publishr/publishr-escapes.txt");
+        int i = 0;
+        assertEquals("Escaped \\: \\| \\\" \\' \\$ \\= \\< \\> \\^ \\~ signs and <e1>light</e1> text.",
+                entries.get(i++));
+        assertEquals("Escaped backslash before \\\\<e2>bold</e2> text.", entries.get(i++));
+        assertEquals("Escaped \\*asterisks\\* and <e1>light</e1> text.", entries.get(i++));
+        assertEquals("See <a1>price in $1 and $2</a1> now.", entries.get(i++));
+        assertEquals("http://example.com/?q=$1&r=$0", entries.get(i++));
+        assertEquals(i, entries.size());
+
+        final Map<String, String> translations = new HashMap<>();
+        translations.put(entries.get(0),
+                "Signes \\: \\| \\\" \\' \\$ \\= \\< \\> \\^ \\~ échappés et texte <e1>léger</e1>.");
+        translations.put(entries.get(1), "Barre oblique inverse avant le texte \\\\<e2>gras</e2>.");
+        translations.put(entries.get(2), "\\*Astérisques\\* échappés et texte <e1>léger</e1>.");
+        translations.put(entries.get(3), "Voir <a1>prix en $1 et $2</a1> maintenant.");
+        translations.put(entries.get(4), "http://example.com/fr/?q=$1&r=$0");
+
+        outFile = File.createTempFile("output", ".txt");
+        outFile.deleteOnExit();
+        new PublishrFilter().translateFile(
+                new File(getClass().getResource("/filters/publishr/publishr-escapes.txt").getFile()),
+                outFile, new HashMap<>(), context, new ITranslateCallback() {
+                    public String getTranslation(String id, String source, String path) {
+                        return translations.getOrDefault(source, source);
+                    }
+
+                    public String getTranslation(String id, String source) {
+                        return getTranslation(id, source, null);
+                    }
+
+                    public void linkPrevNextSegments() {
+                    }
+
+                    public void setPass(int pass) {
+                    }
+                });
+
+        // Escapes survive, labels with $ are restored literally
+        String expected = "Signes \\: \\| \\\" \\' \\$ \\= \\< \\> \\^ \\~ échappés et texte *léger*.\n"
+                + "\n"
+                + "Barre oblique inverse avant le texte \\\\**gras**.\n"
+                + "\n"
+                + "\\*Astérisques\\* échappés et texte *léger*.\n"
+                + "\n"
+                + "Voir [prix en $1 et $2](http://example.com/fr/?q=$1&r=$0) maintenant.\n";
+        assertEquals(expected, new String(Files.readAllBytes(outFile.toPath()), StandardCharsets.UTF_8));
+    }
 }